@@ -0,0 +1,42 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.decoder.BrotliInputStream;
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+/**
+ * The Brotli coding, using Brotli4j. The highest qualities are far too slow
+ * for responses made on the fly, so the default is a middling one.
+ */
+public class BrotliCodec implements ContentCodec {
+
+    private static final int DEFAULT_QUALITY = 5;
+
+    private static final int MAX_QUALITY = 11;
+
+    /**
+     * Creates a new instance, loading the native library.
+     */
+    public BrotliCodec() {
+        Brotli4jLoader.ensureAvailability();
+    }
+
+    public String getName() {
+        return "br";
+    }
+
+    public OutputStream encode(OutputStream out, int level) throws IOException {
+        Encoder.Parameters parameters = new Encoder.Parameters().setQuality(level < 0 ? DEFAULT_QUALITY : Math
+                .min(level, MAX_QUALITY));
+        return new BrotliOutputStream(out, parameters);
+    }
+
+    public InputStream decode(InputStream in) throws IOException {
+        return new BrotliInputStream(in);
+    }
+}
@@ -0,0 +1,39 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * The Zstandard coding, using zstd-jni. It compresses OSM XML smaller than
+ * gzip does in less time.
+ */
+public class ZstdCodec implements ContentCodec {
+
+    private static final int DEFAULT_LEVEL = 3;
+
+    private final int maxLevel;
+
+    /**
+     * Creates a new instance, loading the native library.
+     */
+    public ZstdCodec() {
+        maxLevel = Zstd.maxCompressionLevel();
+    }
+
+    public String getName() {
+        return "zstd";
+    }
+
+    public OutputStream encode(OutputStream out, int level) throws IOException {
+        return new ZstdOutputStream(out, level < 0 ? DEFAULT_LEVEL : Math.min(level, maxLevel));
+    }
+
+    public InputStream decode(InputStream in) throws IOException {
+        return new ZstdInputStream(in);
+    }
+}
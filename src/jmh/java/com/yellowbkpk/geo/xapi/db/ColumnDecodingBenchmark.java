@@ -0,0 +1,141 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstreetmap.osmosis.hstore.PGHStore;
+
+/**
+ * Compares reading the tags and node list of a typical way from the text
+ * form the driver gives by default, which is what rows were read from before
+ * {@link BinaryColumnDecoder}, with reading them from the binary form. Run
+ * with:
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ColumnDecodingBenchmark {
+
+    private String tagsText;
+    private byte[] tagsBinary;
+    private String nodesText;
+    private byte[] nodesBinary;
+    private BinaryColumnDecoder decoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("highway", "residential");
+        tags.put("name", "Rue de l'\u00C9glise");
+        tags.put("oneway", "yes");
+        tags.put("surface", "asphalt");
+        tags.put("maxspeed", "30");
+        tags.put("source", "survey");
+        tags.put("tiger:county", "Hennepin, MN");
+        tags.put("note", "says \"no through road\" => ignore");
+        tagsText = new PGHStore(tags).getValue();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeText(out, tag.getKey());
+            writeText(out, tag.getValue());
+        }
+        tagsBinary = bytes.toByteArray();
+
+        int nodeCount = 40;
+        StringBuilder text = new StringBuilder("{");
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(0);
+        out.writeInt(20);
+        out.writeInt(nodeCount);
+        out.writeInt(1);
+        for (int i = 0; i < nodeCount; i++) {
+            long nodeId = 1700000000L + i * 7919L;
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(nodeId);
+            out.writeInt(8);
+            out.writeLong(nodeId);
+        }
+        nodesText = text.append('}').toString();
+        nodesBinary = bytes.toByteArray();
+
+        decoder = new BinaryColumnDecoder();
+    }
+
+    @Benchmark
+    public void tagsText(Blackhole blackhole) throws SQLException {
+        for (Map.Entry<String, String> tag : new PGHStore(tagsText).entrySet()) {
+            blackhole.consume(tag.getKey());
+            blackhole.consume(tag.getValue());
+        }
+    }
+
+    @Benchmark
+    public void tagsBinary(Blackhole blackhole) {
+        for (Map.Entry<String, String> tag : decoder.readTags(tagsBinary).entrySet()) {
+            blackhole.consume(tag.getKey());
+            blackhole.consume(tag.getValue());
+        }
+    }
+
+    /**
+     * Parses the array into boxed values the way the driver's
+     * <tt>Array.getArray()</tt> does.
+     */
+    @Benchmark
+    public void nodesText(Blackhole blackhole) {
+        List<Long> nodeIds = new ArrayList<Long>();
+        int start = 1;
+        for (int i = 1; i < nodesText.length(); i++) {
+            char c = nodesText.charAt(i);
+            if (c == ',' || c == '}') {
+                nodeIds.add(Long.valueOf(nodesText.substring(start, i)));
+                start = i + 1;
+            }
+        }
+        Long[] array = nodeIds.toArray(new Long[nodeIds.size()]);
+        for (Long nodeId : array) {
+            blackhole.consume(nodeId.longValue());
+        }
+    }
+
+    @Benchmark
+    public void nodesBinary(Blackhole blackhole) {
+        int count = decoder.readLongs(nodesBinary);
+        long[] nodeIds = decoder.getLongs();
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(nodeIds[i]);
+        }
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes("UTF-8");
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+}
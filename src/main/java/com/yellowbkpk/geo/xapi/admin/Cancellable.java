@@ -0,0 +1,14 @@
+package com.yellowbkpk.geo.xapi.admin;
+
+/**
+ * Something a tracked request is waiting on which can be stopped from another
+ * thread, such as a database statement.
+ */
+public interface Cancellable {
+
+    /**
+     * Stops the work in progress. Called from a thread other than the one
+     * doing the work, so it must not block on that work finishing.
+     */
+    void cancel();
+}
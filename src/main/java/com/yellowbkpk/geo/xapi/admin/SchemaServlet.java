@@ -0,0 +1,84 @@
+package com.yellowbkpk.geo.xapi.admin;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openstreetmap.osmosis.core.database.DatabasePreferences;
+
+import com.yellowbkpk.geo.xapi.db.DatabaseCapabilities;
+import com.yellowbkpk.geo.xapi.servlet.XapiContextListener;
+
+public class SchemaServlet extends HttpServlet {
+    private static Logger log = Logger.getLogger("Admin");
+
+    private static final DatabasePreferences preferences = new DatabasePreferences(false, false);
+
+    private static final DateFormat timeFormat = DateFormat.getDateTimeInstance();
+
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        writePage(response, null);
+    }
+
+    /**
+     * Re-probes the schema, for after a migration, and shows the result.
+     */
+    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        log.info("Re-probing the database schema.");
+        String result;
+        try {
+            DatabaseCapabilities.reprobe(XapiContextListener.getLoginCredentials(getServletContext()), preferences);
+            result = "Re-probed Schema";
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Couldn't re-probe the database schema.", e);
+            result = "Couldn't Re-probe Schema: " + escape(String.valueOf(e.getMessage()))
+                    + " See the log for details.";
+        }
+        writePage(response, result);
+    }
+
+    private void writePage(HttpServletResponse response, String result) throws IOException {
+        response.setContentType("text/html");
+        PrintWriter writer = response.getWriter();
+
+        writer.println("<html><body>");
+
+        if (result != null) {
+            writer.append("<h4>").append(result).println("</h4>");
+        }
+
+        writer.println("<h1>Database Schema</h1>");
+        DatabaseCapabilities capabilities = DatabaseCapabilities.getShared();
+        if (capabilities == null) {
+            writer.println("<p>The schema hasn't been probed yet.</p>");
+        } else {
+            writer.println("<table border='1'>");
+            writer.append("<tr><th>Probed</th><td>").append(timeFormat.format(capabilities.getProbed()))
+                    .println("</td></tr>");
+            writer.append("<tr><th>Way linestrings</th><td>")
+                    .append(Boolean.toString(capabilities.isWayLinestringSupported())).println("</td></tr>");
+            writer.append("<tr><th>Way bboxes</th><td>")
+                    .append(Boolean.toString(capabilities.isWayBboxSupported())).println("</td></tr>");
+            writer.println("</table>");
+        }
+
+        writer.println("<form method=\"post\">");
+        writer.println("<input type=\"submit\" value=\"Re-probe after migration\">");
+        writer.println("</form>");
+
+        writer.println("</body></html>");
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -10,6 +10,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.yellowbkpk.geo.xapi.servlet.ResponseCache;
+import com.yellowbkpk.geo.xapi.servlet.TileCache;
+import com.yellowbkpk.geo.xapi.servlet.XapiContextListener;
+
 public class StatsServlet extends HttpServlet {
 
     private static final DateFormat timeFormat = DateFormat.getDateTimeInstance();
@@ -34,6 +38,21 @@ public class StatsServlet extends HttpServlet {
         writer.println("</script>");
         writer.println("</head><body>");
 
+        ResponseCache responseCache = XapiContextListener.getResponseCache(getServletContext());
+        if (responseCache != null) {
+            writer.append("<p>Response cache: ").append(Integer.toString(responseCache.getEntryCount()))
+                    .append(" responses, ").append(Long.toString(responseCache.getSize() / 1024)).append(" KB, ")
+                    .append(Long.toString(responseCache.getHits())).append(" hits, ")
+                    .append(Long.toString(responseCache.getMisses())).println(" misses.</p>");
+        }
+        TileCache tileCache = XapiContextListener.getTileCache(getServletContext());
+        if (tileCache != null) {
+            writer.append("<p>Tile cache: ").append(Integer.toString(tileCache.getTileCount()))
+                    .append(" tiles, ").append(Long.toString(tileCache.getSize() / 1024)).append(" KB, ")
+                    .append(Long.toString(tileCache.getHits())).append(" hits, ")
+                    .append(Long.toString(tileCache.getMisses())).println(" misses.</p>");
+        }
+
         writer.append("<h1>Last ").append(Integer.toString(XapiQueryStats.MAX_STATS)).println(" Requests</h1>\n");
         writer.println("<table border='1'>");
         writer.println("<tr>");
@@ -43,7 +62,7 @@ public class StatsServlet extends HttpServlet {
         writer.println("<th>Request</th>");
         writer.println("<th>Elements</th>");
         writer.println("<th>Runtime</th>");
-        // writer.println("<th>Action</th>");
+        writer.println("<th>Action</th>");
         writer.println("</tr>\n");
 
         int exNum = 0;
@@ -98,6 +117,12 @@ public class StatsServlet extends HttpServlet {
                 writer.println("</table></div>");
                 writer.println("</td>");
             }
+            String threadId = stat.getThreadId();
+            if (threadId != null) {
+                writer.append("<td><a href=\"kill?id=").append(threadId).println("\">Kill</a></td>");
+            } else {
+                writer.println("<td></td>");
+            }
             timeNum++;
             writer.println("</tr>\n");
             even = !even;
@@ -15,7 +15,11 @@ public class ThreadKillServlet extends HttpServlet {
         String id = request.getParameter("id");
         log.info("Attempt to kill thread id " + id);
         XapiQueryStats stats = XapiQueryStats.getByThreadId(id);
-        stats.killThread();
+        if (stats == null) {
+            log.info("Thread id " + id + " is not running a request.");
+        } else {
+            stats.killThread();
+        }
         response.sendRedirect("stats");
     }
 }
@@ -29,6 +29,7 @@ public class XapiQueryStats {
     private long elementCount;
     private String remoteHost;
     private String threadId;
+    private volatile Cancellable cancellable;
 	private List<Timepoint> timepoints = new ArrayList<Timepoint>();
 
     private XapiQueryStats(Thread requestThread) {
@@ -66,6 +67,16 @@ public class XapiQueryStats {
         }
     }
 
+    /**
+     * Registers the work to cancel if the request is killed.
+     *
+     * @param cancellable
+     *            The work being waited on, or null for none.
+     */
+    public void setCancellable(Cancellable cancellable) {
+        this.cancellable = cancellable;
+    }
+
     public void startDbQuery() {
         dbStartTime = System.currentTimeMillis();
         state = QueryState.DATABASE_QUERY;
@@ -77,11 +88,14 @@ public class XapiQueryStats {
     }
 
     public void complete() {
+        if (state == QueryState.KILLED) {
+            return;
+        }
         completionTime = System.currentTimeMillis();
         state = QueryState.DONE;
         thread = null;
-        threadId = null;
-        activeThreads.remove(threadId);
+        cancellable = null;
+        removeActiveThread();
         synchronized (activeQueries) {
             Set<String> queries = activeQueries.get(remoteHost);
             if (queries != null) {
@@ -94,12 +108,17 @@ public class XapiQueryStats {
     }
 
     public void error(Exception e) {
+        // The request thread fails as a result of being killed, which
+        // shouldn't hide that it was.
+        if (state == QueryState.KILLED) {
+            return;
+        }
         completionTime = System.currentTimeMillis();
         state = QueryState.ERROR;
         exception = e;
         thread = null;
-        threadId = null;
-        activeThreads.remove(threadId);
+        cancellable = null;
+        removeActiveThread();
         synchronized (activeQueries) {
             Set<String> queries = activeQueries.get(remoteHost);
             if (queries != null) {
@@ -165,10 +184,16 @@ public class XapiQueryStats {
 
     public void killThread() {
         if (isActive()) {
+            // Interrupting the thread doesn't reach a statement blocked in
+            // the database, so that is cancelled first.
+            Cancellable toCancel = cancellable;
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
             thread.interrupt();
             thread = null;
-            threadId = null;
-            activeThreads.remove(threadId);
+            cancellable = null;
+            removeActiveThread();
             state = QueryState.KILLED;
             completionTime = System.currentTimeMillis();
             synchronized (activeQueries) {
@@ -183,6 +208,13 @@ public class XapiQueryStats {
         }
     }
 
+    private void removeActiveThread() {
+        synchronized (XapiQueryStats.class) {
+            activeThreads.remove(threadId);
+        }
+        threadId = null;
+    }
+
     public String getThreadId() {
         return threadId;
     }
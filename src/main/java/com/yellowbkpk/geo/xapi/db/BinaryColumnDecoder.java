@@ -0,0 +1,337 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * Decodes hstore and one-dimensional array columns from the binary form the
+ * <tt>hstore_send</tt> and <tt>array_send</tt> functions give them, into
+ * buffers that are reused from one row to the next. The binary form has
+ * lengths in front of every value instead of the quoting and escaping of the
+ * text form, and short strings seen before, which includes nearly every tag
+ * key and many values and roles, are shared instead of being decoded again.
+ *
+ * Text is taken to be UTF-8, the encoding pgsnapshot databases are created
+ * with. Whatever a method returns is only valid until it is next called.
+ */
+class BinaryColumnDecoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The longest string, in bytes, kept in the string cache.
+     */
+    private static final int CACHED_LENGTH = 24;
+
+    /**
+     * The number of strings the cache holds. Must be a power of two.
+     */
+    private static final int CACHE_SIZE = 4096;
+
+    private final TagMap tags = new TagMap();
+    private long[] longs = new long[256];
+    private String[] strings = new String[16];
+    private EntityType[] types = new EntityType[16];
+
+    private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+    private final String[] cachedStrings = new String[CACHE_SIZE];
+
+    /**
+     * Decodes an hstore.
+     *
+     * @param data
+     *            The output of <tt>hstore_send</tt>, or null.
+     * @return The tags, empty if the column was null. The map and its entries
+     *         are reused by the next call.
+     */
+    Map<String, String> readTags(byte[] data) {
+        tags.size = 0;
+        if (data == null) {
+            return tags;
+        }
+        int count = readInt(data, 0);
+        tags.ensureCapacity(count);
+        int offset = 4;
+        for (int i = 0; i < count; i++) {
+            int length = readInt(data, offset);
+            offset += 4;
+            tags.keys[i] = readString(data, offset, length);
+            offset += length;
+            length = readInt(data, offset);
+            offset += 4;
+            if (length < 0) {
+                tags.values[i] = null;
+            } else {
+                tags.values[i] = readString(data, offset, length);
+                offset += length;
+            }
+        }
+        tags.size = count;
+        return tags;
+    }
+
+    /**
+     * Decodes a bigint array into {@link #getLongs()}.
+     *
+     * @param data
+     *            The output of <tt>array_send</tt>, or null.
+     * @return The number of elements, zero if the column was null.
+     */
+    int readLongs(byte[] data) {
+        int count = readArrayLength(data);
+        if (longs.length < count) {
+            longs = new long[Math.max(count, longs.length * 2)];
+        }
+        int offset = arrayElementsOffset(data);
+        for (int i = 0; i < count; i++) {
+            if (readInt(data, offset) != 8) {
+                throw new OsmosisRuntimeException("Null or malformed element in a bigint array.");
+            }
+            longs[i] = readLong(data, offset + 4);
+            offset += 12;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a text array into {@link #getStrings()}.
+     *
+     * @param data
+     *            The output of <tt>array_send</tt>, or null.
+     * @return The number of elements, zero if the column was null.
+     */
+    int readStrings(byte[] data) {
+        int count = readArrayLength(data);
+        if (strings.length < count) {
+            strings = new String[Math.max(count, strings.length * 2)];
+        }
+        int offset = arrayElementsOffset(data);
+        for (int i = 0; i < count; i++) {
+            int length = readInt(data, offset);
+            offset += 4;
+            if (length < 0) {
+                strings[i] = null;
+            } else {
+                strings[i] = readString(data, offset, length);
+                offset += length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a text array of relation member types, each 'N', 'W' or 'R',
+     * into {@link #getMemberTypes()}.
+     *
+     * @param data
+     *            The output of <tt>array_send</tt>, or null.
+     * @return The number of elements, zero if the column was null.
+     */
+    int readMemberTypes(byte[] data) {
+        int count = readArrayLength(data);
+        if (types.length < count) {
+            types = new EntityType[Math.max(count, types.length * 2)];
+        }
+        int offset = arrayElementsOffset(data);
+        for (int i = 0; i < count; i++) {
+            int length = readInt(data, offset);
+            offset += 4;
+            if (length < 1) {
+                throw new OsmosisRuntimeException("Empty relation member type.");
+            }
+            switch (data[offset]) {
+            case 'N':
+                types[i] = EntityType.Node;
+                break;
+            case 'W':
+                types[i] = EntityType.Way;
+                break;
+            case 'R':
+                types[i] = EntityType.Relation;
+                break;
+            default:
+                throw new OsmosisRuntimeException("Unknown relation member type "
+                        + new String(data, offset, length, UTF8) + ".");
+            }
+            offset += length;
+        }
+        return count;
+    }
+
+    /**
+     * @return The elements of the last bigint array decoded.
+     */
+    long[] getLongs() {
+        return longs;
+    }
+
+    /**
+     * @return The elements of the last text array decoded.
+     */
+    String[] getStrings() {
+        return strings;
+    }
+
+    /**
+     * @return The elements of the last member type array decoded.
+     */
+    EntityType[] getMemberTypes() {
+        return types;
+    }
+
+    /**
+     * Reads the number of elements from an array's header. The header is the
+     * number of dimensions, a flag for nulls and the element type, followed
+     * by the size and lower bound of each dimension.
+     */
+    private static int readArrayLength(byte[] data) {
+        if (data == null) {
+            return 0;
+        }
+        int dimensions = readInt(data, 0);
+        if (dimensions == 0) {
+            return 0;
+        }
+        if (dimensions != 1) {
+            throw new OsmosisRuntimeException("Only one-dimensional arrays can be read, not " + dimensions + ".");
+        }
+        return readInt(data, 12);
+    }
+
+    private static int arrayElementsOffset(byte[] data) {
+        return data == null || readInt(data, 0) == 0 ? 12 : 20;
+    }
+
+    /**
+     * Decodes a UTF-8 string, sharing the decoded copy of short strings
+     * with earlier calls.
+     */
+    private String readString(byte[] data, int offset, int length) {
+        if (length > CACHED_LENGTH) {
+            return new String(data, offset, length, UTF8);
+        }
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        byte[] cached = cachedBytes[slot];
+        if (cached != null && cached.length == length) {
+            boolean same = true;
+            for (int i = 0; i < length; i++) {
+                if (cached[i] != data[offset + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return cachedStrings[slot];
+            }
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, offset, bytes, 0, length);
+        String value = new String(bytes, UTF8);
+        cachedBytes[slot] = bytes;
+        cachedStrings[slot] = value;
+        return value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xffffffffL);
+    }
+
+    /**
+     * A read-only map over the keys and values of the last hstore decoded,
+     * in the order the database stores them. Its entry set and iterator are
+     * reused too, and the iterator is itself the entry it returns.
+     */
+    private static class TagMap extends AbstractMap<String, String> {
+        private String[] keys = new String[16];
+        private String[] values = new String[16];
+        private int size;
+
+        private final EntrySet entrySet = new EntrySet();
+        private final EntryIterator iterator = new EntryIterator();
+
+        void ensureCapacity(int count) {
+            if (keys.length < count) {
+                int capacity = Math.max(count, keys.length * 2);
+                keys = new String[capacity];
+                values = new String[capacity];
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return entrySet;
+        }
+
+        private class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                iterator.index = -1;
+                return iterator;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+
+        private class EntryIterator implements Iterator<Map.Entry<String, String>>, Map.Entry<String, String> {
+            private int index;
+
+            public boolean hasNext() {
+                return index + 1 < size;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                index++;
+                return this;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public String getKey() {
+                return keys[index];
+            }
+
+            public String getValue() {
+                return values[index];
+            }
+
+            public String setValue(String value) {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+}
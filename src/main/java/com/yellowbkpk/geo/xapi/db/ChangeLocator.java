@@ -0,0 +1,151 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.pgsnapshot.common.DatabaseContext;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * Works out the {@link ChangedArea} of the changes fed to it, typically by an
+ * osmChange file reader. Nodes carry their own location. Ways and relations
+ * are located by where their nodes are in the database, so it must be run
+ * after the changes have been applied.
+ *
+ * That only finds where elements are after the changes. Where a deleted
+ * element, a moved node or a way or relation's old members were isn't known,
+ * so results must also be checked against the changed element ids.
+ */
+public class ChangeLocator implements ChangeSink {
+
+    private final ChangedArea area = new ChangedArea();
+    private final Set<Long> nodeIdsToLocate = new HashSet<Long>();
+    private final Set<Long> wayIdsToLocate = new HashSet<Long>();
+
+    /**
+     * Accepts the metadata of the change stream, which isn't needed.
+     *
+     * @param metaData
+     *            The stream metadata.
+     */
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(ChangeContainer change) {
+        EntityContainer container = change.getEntityContainer();
+        Entity entity = container.getEntity();
+
+        if (change.getAction() == ChangeAction.Delete) {
+            // A deleted element has no location, nor usually any members, in
+            // the change, and is gone from the database, so only its id is
+            // any use.
+            if (entity instanceof Node) {
+                area.addNodeId(entity.getId());
+            } else if (entity instanceof Way) {
+                area.addWayId(entity.getId());
+            } else if (entity instanceof Relation) {
+                area.addRelationId(entity.getId());
+            }
+            return;
+        }
+
+        if (entity instanceof Node) {
+            Node node = (Node) entity;
+            area.addNodeId(node.getId());
+            area.addPoint(node.getLongitude(), node.getLatitude());
+        } else if (entity instanceof Way) {
+            area.addWayId(entity.getId());
+            for (WayNode wayNode : ((Way) entity).getWayNodes()) {
+                nodeIdsToLocate.add(wayNode.getNodeId());
+            }
+        } else if (entity instanceof Relation) {
+            area.addRelationId(entity.getId());
+            for (RelationMember member : ((Relation) entity).getMembers()) {
+                switch (member.getMemberType()) {
+                case Node:
+                    nodeIdsToLocate.add(member.getMemberId());
+                    break;
+                case Way:
+                    wayIdsToLocate.add(member.getMemberId());
+                    break;
+                case Relation:
+                    // Results holding the member relation pull in its
+                    // parents, so they are out of date too.
+                    area.addRelationId(member.getMemberId());
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void complete() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+    }
+
+    /**
+     * Looks up where the changed ways and relations are and returns the
+     * complete area.
+     *
+     * @param loginCredentials
+     *            Contains all information required to connect to the database.
+     * @return The area touched by all of the changes processed.
+     */
+    public ChangedArea locate(DatabaseLoginCredentials loginCredentials) {
+        if (nodeIdsToLocate.isEmpty() && wayIdsToLocate.isEmpty()) {
+            return area;
+        }
+
+        DatabaseContext dbCtx = new DatabaseContext(loginCredentials);
+        try {
+            SimpleJdbcTemplate jdbcTemplate = dbCtx.getSimpleJdbcTemplate();
+            RowCallbackHandler addPoint = new RowCallbackHandler() {
+                public void processRow(ResultSet rs) throws SQLException {
+                    area.addPoint(rs.getDouble(1), rs.getDouble(2));
+                }
+            };
+
+            if (!nodeIdsToLocate.isEmpty()) {
+                jdbcTemplate.getJdbcOperations().query("SELECT ST_X(geom), ST_Y(geom) FROM nodes WHERE id = ANY(?)",
+                        new Object[] { new LongArrayParameter(nodeIdsToLocate) }, addPoint);
+            }
+            if (!wayIdsToLocate.isEmpty()) {
+                jdbcTemplate.getJdbcOperations().query(
+                        "SELECT ST_X(n.geom), ST_Y(n.geom) FROM nodes n"
+                                + " WHERE n.id IN (SELECT unnest(w.nodes) FROM ways w WHERE w.id = ANY(?))",
+                        new Object[] { new LongArrayParameter(wayIdsToLocate) }, addPoint);
+            }
+        } finally {
+            dbCtx.release();
+        }
+
+        return area;
+    }
+}
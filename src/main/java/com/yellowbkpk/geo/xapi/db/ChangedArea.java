@@ -0,0 +1,160 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Where a batch of replication changes touched the data, for deciding which
+ * cached results are out of date. Locations are held as the cells of the zoom
+ * 12 tile grid, each change marking its own cell and the ones around it so
+ * that moves to a nearby cell are covered too. The ids of the changed elements
+ * are kept as well, for results which know what they contain.
+ */
+public class ChangedArea {
+
+    /**
+     * The zoom level of the grid. Tiles are only served from this zoom up, so
+     * a tile always falls within one cell.
+     */
+    public static final int GRID_ZOOM = 12;
+
+    private static final int GRID_SIZE = 1 << GRID_ZOOM;
+
+    private final Set<Long> cells = new HashSet<Long>();
+    private final Set<Long> nodeIds = new HashSet<Long>();
+    private final Set<Long> wayIds = new HashSet<Long>();
+    private final Set<Long> relationIds = new HashSet<Long>();
+
+    /**
+     * Marks the cells around a location as changed.
+     *
+     * @param longitude
+     *            The longitude of the change.
+     * @param latitude
+     *            The latitude of the change.
+     */
+    public void addPoint(double longitude, double latitude) {
+        int x = lonToCell(longitude);
+        int y = latToCell(latitude);
+        for (int i = Math.max(0, x - 1); i <= Math.min(GRID_SIZE - 1, x + 1); i++) {
+            for (int j = Math.max(0, y - 1); j <= Math.min(GRID_SIZE - 1, y + 1); j++) {
+                cells.add(cellKey(i, j));
+            }
+        }
+    }
+
+    public void addNodeId(long id) {
+        nodeIds.add(id);
+    }
+
+    public void addWayId(long id) {
+        wayIds.add(id);
+    }
+
+    public void addRelationId(long id) {
+        relationIds.add(id);
+    }
+
+    /**
+     * @return True if nothing changed.
+     */
+    public boolean isEmpty() {
+        return cells.isEmpty() && nodeIds.isEmpty() && wayIds.isEmpty() && relationIds.isEmpty();
+    }
+
+    /**
+     * Checks whether any change falls in a bounding box.
+     *
+     * @param left
+     *            The western edge.
+     * @param right
+     *            The eastern edge.
+     * @param top
+     *            The northern edge.
+     * @param bottom
+     *            The southern edge.
+     * @return True if a changed cell overlaps the box.
+     */
+    public boolean intersects(double left, double right, double top, double bottom) {
+        int minX = lonToCell(left);
+        int maxX = lonToCell(right);
+        int minY = latToCell(top);
+        int maxY = latToCell(bottom);
+
+        // Walk whichever is smaller, the box's cells or the changed ones.
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) <= cells.size()) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    if (cells.contains(cellKey(x, y))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        for (Long cell : cells) {
+            long x = cell >> 32;
+            long y = cell & 0xffffffffL;
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a tile at or above the grid zoom overlaps a change.
+     *
+     * @param zoom
+     *            The tile's zoom level, at least {@link #GRID_ZOOM}.
+     * @param x
+     *            The tile's column.
+     * @param y
+     *            The tile's row.
+     * @return True if the tile's cell changed.
+     */
+    public boolean intersectsTile(int zoom, int x, int y) {
+        int shift = zoom - GRID_ZOOM;
+        return cells.contains(cellKey(x >> shift, y >> shift));
+    }
+
+    /**
+     * Checks whether any of the given elements changed.
+     *
+     * @param nodes
+     *            Node ids in ascending order.
+     * @param ways
+     *            Way ids in ascending order.
+     * @param relations
+     *            Relation ids in ascending order.
+     * @return True if one of them changed.
+     */
+    public boolean containsAny(long[] nodes, long[] ways, long[] relations) {
+        return containsAny(nodeIds, nodes) || containsAny(wayIds, ways) || containsAny(relationIds, relations);
+    }
+
+    private static boolean containsAny(Set<Long> changed, long[] ids) {
+        for (long id : ids) {
+            if (changed.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long cellKey(long x, long y) {
+        return (x << 32) | y;
+    }
+
+    private static int lonToCell(double longitude) {
+        int x = (int) Math.floor((longitude + 180.0) / 360.0 * GRID_SIZE);
+        return Math.max(0, Math.min(GRID_SIZE - 1, x));
+    }
+
+    private static int latToCell(double latitude) {
+        double lat = Math.toRadians(Math.max(-85.0511, Math.min(85.0511, latitude)));
+        int y = (int) Math.floor((1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * GRID_SIZE);
+        return Math.max(0, Math.min(GRID_SIZE - 1, y));
+    }
+}
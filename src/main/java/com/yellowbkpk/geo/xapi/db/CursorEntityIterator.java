@@ -0,0 +1,116 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+
+/**
+ * Streams entities out of a named server-side cursor, fetching a fixed number
+ * of rows at a time. At most one batch is held in memory however large the
+ * result is. The cursor only lives as long as the current transaction, so the
+ * iterator must be consumed and released before the transaction is committed.
+ */
+class CursorEntityIterator implements ReleasableIterator<EntityContainer> {
+
+    private static final Logger LOG = Logger.getLogger(CursorEntityIterator.class.getName());
+
+    private static final AtomicInteger cursorCount = new AtomicInteger();
+
+    private final SimpleJdbcTemplate jdbcTemplate;
+    private final String cursorName;
+    private final int fetchSize;
+    private final EntityRowReader rowReader;
+    private Iterator<EntityContainer> batch;
+    private boolean exhausted;
+    private boolean open;
+
+    /**
+     * Creates a new instance, declaring the cursor straight away. Rows are
+     * not fetched until they are asked for.
+     *
+     * @param jdbcTemplate
+     *            The template of the transaction the cursor belongs to.
+     * @param query
+     *            A query producing the columns read by {@link EntityRowReader}.
+     * @param fetchSize
+     *            The number of rows to fetch in each round trip.
+     * @param args
+     *            The query parameters.
+     */
+    public CursorEntityIterator(SimpleJdbcTemplate jdbcTemplate, String query, int fetchSize, Object... args) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.fetchSize = fetchSize;
+        this.cursorName = newCursorName();
+        this.rowReader = new EntityRowReader();
+        this.batch = Collections.<EntityContainer> emptyList().iterator();
+
+        jdbcTemplate.update("DECLARE " + cursorName + " NO SCROLL CURSOR FOR " + query, args);
+        open = true;
+    }
+
+    /**
+     * @return A cursor name no other cursor in this server has been given.
+     */
+    static String newCursorName() {
+        return "xapi_cursor_" + cursorCount.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        while (!batch.hasNext() && !exhausted) {
+            List<EntityContainer> rows = jdbcTemplate.query("FETCH FORWARD " + fetchSize + " FROM " + cursorName,
+                    rowReader);
+            if (rows.size() < fetchSize) {
+                exhausted = true;
+            }
+            batch = rows.iterator();
+        }
+
+        return batch.hasNext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public EntityContainer next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return batch.next();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+        if (open) {
+            open = false;
+            try {
+                jdbcTemplate.update("CLOSE " + cursorName);
+            } catch (DataAccessException e) {
+                // The transaction has probably failed, which closes the
+                // cursor anyway.
+                LOG.log(Level.FINE, "Unable to close cursor " + cursorName + ".", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.Date;
+
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+import org.openstreetmap.osmosis.core.database.DatabasePreferences;
+import org.openstreetmap.osmosis.pgsnapshot.common.DatabaseContext;
+import org.openstreetmap.osmosis.pgsnapshot.common.SchemaVersionValidator;
+import org.openstreetmap.osmosis.pgsnapshot.v0_6.PostgreSqlVersionConstants;
+import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.DatabaseCapabilityChecker;
+
+/**
+ * The result of validating the schema version and checking which optional way
+ * geometry columns exist. Both checks hit the system catalog, so they are run
+ * once and the answer is shared by every dataset context until
+ * {@link #reprobe(DatabaseLoginCredentials, DatabasePreferences)} is called,
+ * for example after a schema migration.
+ */
+public class DatabaseCapabilities {
+
+    private static volatile DatabaseCapabilities shared;
+
+    private final boolean wayLinestringSupported;
+    private final boolean wayBboxSupported;
+    private final Date probed;
+
+    private DatabaseCapabilities(boolean wayLinestringSupported, boolean wayBboxSupported) {
+        this.wayLinestringSupported = wayLinestringSupported;
+        this.wayBboxSupported = wayBboxSupported;
+        this.probed = new Date();
+    }
+
+    /**
+     * Validates the schema and probes its capabilities using a connection of
+     * its own, replacing whatever was shared before.
+     *
+     * @param loginCredentials
+     *            Contains all information required to connect to the database.
+     * @param preferences
+     *            Contains preferences configuring database behaviour.
+     * @return The newly shared capabilities.
+     */
+    public static DatabaseCapabilities reprobe(DatabaseLoginCredentials loginCredentials,
+            DatabasePreferences preferences) {
+        DatabaseContext dbCtx = new DatabaseContext(loginCredentials);
+        try {
+            shared = probe(dbCtx, preferences);
+            return shared;
+        } finally {
+            dbCtx.release();
+        }
+    }
+
+    /**
+     * Returns the shared capabilities, probing them over the supplied
+     * connection if nobody has done so yet.
+     *
+     * @param dbCtx
+     *            The database context to probe with if necessary.
+     * @param preferences
+     *            Contains preferences configuring database behaviour.
+     * @return The shared capabilities.
+     */
+    static DatabaseCapabilities getShared(DatabaseContext dbCtx, DatabasePreferences preferences) {
+        DatabaseCapabilities capabilities = shared;
+        if (capabilities == null) {
+            capabilities = probe(dbCtx, preferences);
+            shared = capabilities;
+        }
+        return capabilities;
+    }
+
+    /**
+     * @return The shared capabilities, or null if they haven't been probed.
+     */
+    public static DatabaseCapabilities getShared() {
+        return shared;
+    }
+
+    private static DatabaseCapabilities probe(DatabaseContext dbCtx, DatabasePreferences preferences) {
+        new SchemaVersionValidator(dbCtx.getSimpleJdbcTemplate(), preferences)
+                .validateVersion(PostgreSqlVersionConstants.SCHEMA_VERSION);
+
+        DatabaseCapabilityChecker capabilityChecker = new DatabaseCapabilityChecker(dbCtx);
+        return new DatabaseCapabilities(capabilityChecker.isWayLinestringSupported(),
+                capabilityChecker.isWayBboxSupported());
+    }
+
+    public boolean isWayLinestringSupported() {
+        return wayLinestringSupported;
+    }
+
+    public boolean isWayBboxSupported() {
+        return wayBboxSupported;
+    }
+
+    public Date getProbed() {
+        return probed;
+    }
+}
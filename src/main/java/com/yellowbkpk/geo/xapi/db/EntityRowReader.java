@@ -0,0 +1,145 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Builds entities from rows of a single result set holding nodes, ways and
+ * relations together. Every row has the columns:
+ *
+ * <pre>
+ * kind, id, version, user_id, user_name, tstamp, changeset_id, tags,
+ * longitude, latitude, nodes, member_ids, member_types, member_roles
+ * </pre>
+ *
+ * where <tt>kind</tt> is one of {@link #NODE}, {@link #WAY} or
+ * {@link #RELATION} and the columns which don't apply to that kind are null.
+ * The hstore and array columns are selected in their binary form and read
+ * by a {@link BinaryColumnDecoder}.
+ */
+class EntityRowReader implements RowMapper<EntityContainer> {
+
+    static final int NODE = 0;
+    static final int WAY = 1;
+    static final int RELATION = 2;
+
+    /**
+     * The select list matching the columns described above, for a query over
+     * <tt>nodes e</tt> joined to <tt>users u</tt>.
+     */
+    static final String NODE_COLUMNS = NODE + " AS kind, e.id, e.version, e.user_id, u.name AS user_name,"
+            + " e.tstamp, e.changeset_id, hstore_send(e.tags) AS tags, ST_X(e.geom) AS longitude,"
+            + " ST_Y(e.geom) AS latitude, NULL::bytea AS nodes, NULL::bytea AS member_ids,"
+            + " NULL::bytea AS member_types, NULL::bytea AS member_roles";
+
+    /**
+     * The select list for a query over <tt>ways e</tt> joined to
+     * <tt>users u</tt>.
+     */
+    static final String WAY_COLUMNS = WAY + " AS kind, e.id, e.version, e.user_id, u.name AS user_name,"
+            + " e.tstamp, e.changeset_id, hstore_send(e.tags) AS tags, NULL::float8 AS longitude,"
+            + " NULL::float8 AS latitude, array_send(e.nodes) AS nodes, NULL::bytea AS member_ids,"
+            + " NULL::bytea AS member_types, NULL::bytea AS member_roles";
+
+    /**
+     * The select list for a query over <tt>relations e</tt> joined to
+     * <tt>users u</tt>. The members are gathered into arrays in sequence
+     * order.
+     */
+    static final String RELATION_COLUMNS = RELATION + " AS kind, e.id, e.version, e.user_id, u.name AS user_name,"
+            + " e.tstamp, e.changeset_id, hstore_send(e.tags) AS tags, NULL::float8 AS longitude,"
+            + " NULL::float8 AS latitude, NULL::bytea AS nodes,"
+            + " array_send(ARRAY(SELECT rm.member_id FROM relation_members rm"
+            + "  WHERE rm.relation_id = e.id ORDER BY rm.sequence_id)) AS member_ids,"
+            + " array_send(ARRAY(SELECT rm.member_type::text FROM relation_members rm"
+            + "  WHERE rm.relation_id = e.id ORDER BY rm.sequence_id)) AS member_types,"
+            + " array_send(ARRAY(SELECT rm.member_role FROM relation_members rm"
+            + "  WHERE rm.relation_id = e.id ORDER BY rm.sequence_id)) AS member_roles";
+
+    private final BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+
+    /**
+     * Builds the entity held in the current row.
+     *
+     * @param rs
+     *            The result set, positioned on a row.
+     * @param rowNum
+     *            The number of the current row.
+     * @return The entity wrapped in its container.
+     * @throws SQLException
+     *             if a column can't be read.
+     */
+    public EntityContainer mapRow(ResultSet rs, int rowNum) throws SQLException {
+        int kind = rs.getInt("kind");
+        CommonEntityData entityData = readEntityData(rs);
+
+        switch (kind) {
+        case NODE:
+            return new NodeContainer(new Node(entityData, rs.getDouble("latitude"), rs.getDouble("longitude")));
+        case WAY:
+            Way way = new Way(entityData);
+            List<WayNode> wayNodes = way.getWayNodes();
+            int nodeCount = decoder.readLongs(rs.getBytes("nodes"));
+            long[] nodeIds = decoder.getLongs();
+            for (int i = 0; i < nodeCount; i++) {
+                wayNodes.add(new WayNode(nodeIds[i]));
+            }
+            return new WayContainer(way);
+        case RELATION:
+            Relation relation = new Relation(entityData);
+            List<RelationMember> members = relation.getMembers();
+            int memberCount = decoder.readLongs(rs.getBytes("member_ids"));
+            decoder.readMemberTypes(rs.getBytes("member_types"));
+            decoder.readStrings(rs.getBytes("member_roles"));
+            long[] memberIds = decoder.getLongs();
+            EntityType[] memberTypes = decoder.getMemberTypes();
+            String[] memberRoles = decoder.getStrings();
+            for (int i = 0; i < memberCount; i++) {
+                members.add(new RelationMember(memberIds[i], memberTypes[i], memberRoles[i]));
+            }
+            return new RelationContainer(relation);
+        default:
+            throw new OsmosisRuntimeException("Unknown entity kind " + kind + " in result set.");
+        }
+    }
+
+    private CommonEntityData readEntityData(ResultSet rs) throws SQLException {
+        OsmUser user;
+        int userId = rs.getInt("user_id");
+        if (userId == OsmUser.NONE.getId()) {
+            user = OsmUser.NONE;
+        } else {
+            String userName = rs.getString("user_name");
+            user = new OsmUser(userId, userName == null ? "" : userName);
+        }
+
+        Date timestamp = new Date(rs.getTimestamp("tstamp").getTime());
+        CommonEntityData entityData = new CommonEntityData(rs.getLong("id"), rs.getInt("version"), timestamp,
+                user, rs.getLong("changeset_id"));
+
+        for (Entry<String, String> tag : decoder.readTags(rs.getBytes("tags")).entrySet()) {
+            entityData.getTags().add(new Tag(tag.getKey(), tag.getValue()));
+        }
+
+        return entityData;
+    }
+}
@@ -0,0 +1,96 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.yellowbkpk.geo.xapi.writer.XapiRowSink;
+
+/**
+ * Writes rows with the columns read by {@link EntityRowReader} straight to a
+ * sink, without building an entity for each. The columns are read by
+ * position, in the order they are listed there.
+ */
+class EntityRowWriter implements RowCallbackHandler {
+
+    private static final int KIND = 1;
+    private static final int ID = 2;
+    private static final int VERSION = 3;
+    private static final int USER_ID = 4;
+    private static final int USER_NAME = 5;
+    private static final int TSTAMP = 6;
+    private static final int CHANGESET_ID = 7;
+    private static final int TAGS = 8;
+    private static final int LONGITUDE = 9;
+    private static final int LATITUDE = 10;
+    private static final int NODES = 11;
+    private static final int MEMBER_IDS = 12;
+    private static final int MEMBER_TYPES = 13;
+    private static final int MEMBER_ROLES = 14;
+
+    private final XapiRowSink sink;
+    private final BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+    private long rowCount;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sink
+     *            The sink to write each row to.
+     */
+    public EntityRowWriter(XapiRowSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Writes the element held in the current row.
+     *
+     * @param rs
+     *            The result set, positioned on a row.
+     * @throws SQLException
+     *             if a column can't be read.
+     */
+    public void processRow(ResultSet rs) throws SQLException {
+        int kind = rs.getInt(KIND);
+        long id = rs.getLong(ID);
+        int version = rs.getInt(VERSION);
+        int userId = rs.getInt(USER_ID);
+        String userName = rs.getString(USER_NAME);
+        long timestamp = rs.getTimestamp(TSTAMP).getTime();
+        long changesetId = rs.getLong(CHANGESET_ID);
+        Map<String, String> tags = decoder.readTags(rs.getBytes(TAGS));
+
+        switch (kind) {
+        case EntityRowReader.NODE:
+            sink.processNode(id, version, timestamp, userId, userName, changesetId, tags, rs.getDouble(LATITUDE),
+                    rs.getDouble(LONGITUDE));
+            break;
+        case EntityRowReader.WAY:
+            int nodeCount = decoder.readLongs(rs.getBytes(NODES));
+            sink.processWay(id, version, timestamp, userId, userName, changesetId, tags, decoder.getLongs(),
+                    nodeCount);
+            break;
+        case EntityRowReader.RELATION:
+            int memberCount = decoder.readLongs(rs.getBytes(MEMBER_IDS));
+            decoder.readMemberTypes(rs.getBytes(MEMBER_TYPES));
+            decoder.readStrings(rs.getBytes(MEMBER_ROLES));
+            sink.processRelation(id, version, timestamp, userId, userName, changesetId, tags, decoder.getLongs(),
+                    decoder.getMemberTypes(), decoder.getStrings(), memberCount);
+            break;
+        default:
+            throw new OsmosisRuntimeException("Unknown entity kind " + kind + " in result set.");
+        }
+
+        rowCount++;
+    }
+
+    /**
+     * @return The number of rows written so far.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+}
@@ -0,0 +1,52 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+
+import org.springframework.jdbc.core.support.AbstractSqlTypeValue;
+
+/**
+ * Binds a collection of ids as a single bigint[] parameter, so a statement
+ * can select them with <tt>id = ANY(?)</tt> however many there are instead of
+ * needing one placeholder per id.
+ */
+class LongArrayParameter extends AbstractSqlTypeValue {
+
+    private final long[] values;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param values
+     *            The ids to bind.
+     */
+    public LongArrayParameter(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param values
+     *            The ids to bind.
+     */
+    public LongArrayParameter(Collection<Long> values) {
+        this.values = new long[values.size()];
+        int i = 0;
+        for (Long value : values) {
+            this.values[i++] = value;
+        }
+    }
+
+    @Override
+    protected Object createTypeValue(Connection con, int sqlType, String typeName) throws SQLException {
+        // The driver only accepts object arrays, so the ids are boxed here
+        // rather than being held boxed.
+        Long[] elements = new Long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            elements[i] = values[i];
+        }
+        return con.createArrayOf("int8", elements);
+    }
+}
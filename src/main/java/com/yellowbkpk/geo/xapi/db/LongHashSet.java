@@ -0,0 +1,106 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs held in an open addressing table, so collecting ids doesn't
+ * box every one.
+ */
+class LongHashSet {
+
+    /**
+     * Marks a free slot. The value itself is tracked separately.
+     */
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] slots = newSlots(64);
+    private int size;
+    private boolean containsFree;
+
+    /**
+     * Adds a value.
+     *
+     * @param value
+     *            The value.
+     * @return True if it wasn't already in the set.
+     */
+    public boolean add(long value) {
+        if (value == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+
+        if ((size + 1) * 2 > slots.length) {
+            grow();
+        }
+        if (!insert(slots, value)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return The number of values held.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if nothing has been added.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The values, in no particular order.
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int i = 0;
+        if (containsFree) {
+            values[i++] = FREE;
+        }
+        for (long slot : slots) {
+            if (slot != FREE) {
+                values[i++] = slot;
+            }
+        }
+        return values;
+    }
+
+    private void grow() {
+        long[] grown = newSlots(slots.length * 2);
+        for (long slot : slots) {
+            if (slot != FREE) {
+                insert(grown, slot);
+            }
+        }
+        slots = grown;
+    }
+
+    private static boolean insert(long[] slots, long value) {
+        int mask = slots.length - 1;
+        int index = (int) ((value * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (slots[index] != FREE) {
+            if (slots[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        return true;
+    }
+
+    private static long[] newSlots(int length) {
+        long[] slots = new long[length];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+}
@@ -1,12 +1,15 @@
 // This software is released into the Public Domain.  See copying.txt for details.
 package com.yellowbkpk.geo.xapi.db;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.openstreetmap.osmosis.core.OsmosisConstants;
@@ -31,12 +34,8 @@ import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
 import org.openstreetmap.osmosis.core.store.MultipleSourceIterator;
 import org.openstreetmap.osmosis.core.store.ReleasableAdaptorForIterator;
 import org.openstreetmap.osmosis.core.store.UpcastIterator;
-import org.openstreetmap.osmosis.hstore.PGHStore;
 import org.openstreetmap.osmosis.pgsnapshot.common.DatabaseContext;
-import org.openstreetmap.osmosis.pgsnapshot.common.SchemaVersionValidator;
-import org.openstreetmap.osmosis.pgsnapshot.v0_6.PostgreSqlVersionConstants;
 import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.ActionDao;
-import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.DatabaseCapabilityChecker;
 import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.NodeDao;
 import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.PostgreSqlEntityManager;
 import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.RelationDao;
@@ -45,9 +44,15 @@ import org.openstreetmap.osmosis.pgsnapshot.v0_6.impl.WayDao;
 import org.postgis.PGgeometry;
 import org.postgis.Point;
 import org.postgis.Polygon;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 
+import com.yellowbkpk.geo.xapi.admin.Cancellable;
 import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
+import com.yellowbkpk.geo.xapi.writer.XapiRowSink;
 
 /**
  * Provides read-only access to a PostgreSQL dataset store. Each thread
@@ -57,13 +62,15 @@ import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
  *
  * @author Brett Henderson
  */
-public class PostgreSqlDatasetContext implements DatasetContext {
+public class PostgreSqlDatasetContext implements DatasetContext, Cancellable {
 
     private static final Logger LOG = Logger.getLogger(PostgreSqlDatasetContext.class.getName());
 
+    private static final int DEFAULT_FETCH_SIZE = 10000;
+
     private DatabaseLoginCredentials loginCredentials;
     private DatabasePreferences preferences;
-    private DatabaseCapabilityChecker capabilityChecker;
+    private DatabaseCapabilities capabilities;
     private boolean initialized;
     private DatabaseContext dbCtx;
     private SimpleJdbcTemplate jdbcTemplate;
@@ -77,8 +84,18 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
 	private XapiQueryStats tracker;
 
+    private QueryEngine queryEngine = QueryEngine.TEMP_TABLE;
+    private boolean scratchTables;
+    private int fetchSize;
+    private int statementTimeout;
+    private final Object cancelLock = new Object();
+    private Connection connection;
+    private int backendPid;
+
     /**
-     * Creates a new instance.
+     * Creates a new instance. If the credentials name a JNDI data source the
+     * connection is borrowed from that pool when the first query runs and is
+     * handed back to it by {@link #release()}.
      *
      * @param loginCredentials
      *            Contains all information required to connect to the database.
@@ -104,10 +121,29 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
             dbCtx.beginTransaction();
 
-            new SchemaVersionValidator(jdbcTemplate, preferences)
-                    .validateVersion(PostgreSqlVersionConstants.SCHEMA_VERSION);
+            // Keep hold of the transaction's connection so a statement running
+            // on it can be cancelled from another thread.
+            Connection transactionConnection = DataSourceUtils.getConnection(((JdbcTemplate) jdbcTemplate
+                    .getJdbcOperations()).getDataSource());
+            int pid = 0;
+            if (statementTimeout > 0) {
+                // set_config with is_local is SET LOCAL. The backend pid is
+                // only wanted if the driver can't cancel, and the driver has
+                // no other way to tell it, so it is read only when it comes
+                // with this round trip for free.
+                pid = jdbcTemplate.queryForInt(
+                        "SELECT pg_backend_pid() FROM set_config('statement_timeout', ?, true)",
+                        Integer.toString(statementTimeout));
+            }
+            synchronized (cancelLock) {
+                connection = transactionConnection;
+                backendPid = pid;
+            }
+            if (tracker != null) {
+                tracker.setCancellable(this);
+            }
 
-            capabilityChecker = new DatabaseCapabilityChecker(dbCtx);
+            capabilities = DatabaseCapabilities.getShared(dbCtx, preferences);
 
             actionDao = new ActionDao(dbCtx);
             userDao = new UserDao(dbCtx, actionDao);
@@ -213,9 +249,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
     public ReleasableIterator<EntityContainer> iterateBoundingBox(double left, double right, double top, double bottom,
             boolean completeWays) {
         List<Bound> bounds;
-        Point[] bboxPoints;
         Polygon bboxPolygon;
-        int rowCount;
         List<ReleasableIterator<EntityContainer>> resultSets = new ArrayList<ReleasableIterator<EntityContainer>>();
 
         if (!initialized) {
@@ -226,54 +260,140 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         bounds = new ArrayList<Bound>();
         bounds.add(new Bound(right, left, top, bottom, "Osmosis " + OsmosisConstants.VERSION));
 
-        // PostgreSQL sometimes incorrectly chooses to perform full table scans,
-        // these options prevent this. Note that this is not recommended
-        // practice according to documentation but fixing this would require
-        // modifying the table statistics gathering configuration to produce
-        // better plans.
-        tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        bboxPolygon = createBboxPolygon(left, right, top, bottom);
+
+        if (queryEngine == QueryEngine.CTE) {
+            return iterateBoundingBoxWithCte(bounds, bboxPolygon, completeWays);
+        }
+
+        stageBoundingBox(bboxPolygon, completeWays);
+
+        // Create iterators for the selected records for each of the entity
+        // types.
+        LOG.finer("Iterating over results.");
+        resultSets.add(new UpcastIterator<EntityContainer, BoundContainer>(new BoundContainerIterator(
+                new ReleasableAdaptorForIterator<Bound>(bounds.iterator()))));
+        resultSets.add(iterateBboxNodes());
+        resultSets.add(iterateBboxWays());
+        resultSets.add(iterateBboxRelations());
 
-        // Build a polygon representing the bounding box.
+		tracker.recordTimepoint("iterate results");
+
+        // Merge all readers into a single result iterator and return.
+        return new MultipleSourceIterator<EntityContainer>(resultSets);
+    }
+
+    /**
+     * Writes the result of a bounding box query straight to a sink. The same
+     * elements are selected, in the same order, as by
+     * {@link #iterateBoundingBox(double, double, double, double, boolean)}
+     * with a fetch size set, but each row is written to the sink as it is
+     * read instead of being built into an entity first. Rows are always read
+     * through cursors, a default number at a time if no fetch size has been
+     * set.
+     *
+     * @param sink
+     *            The sink to write the bound and then each element to. It is
+     *            not completed.
+     * @return The number of elements written, not counting the bound.
+     */
+    public long writeBoundingBox(double left, double right, double top, double bottom, boolean completeWays,
+            XapiRowSink sink) {
+        Polygon bboxPolygon;
+        EntityRowWriter rowWriter = new EntityRowWriter(sink);
+
+        if (!initialized) {
+            initialize();
+        }
+
+        sink.process(new BoundContainer(new Bound(right, left, top, bottom, "Osmosis " + OsmosisConstants.VERSION)));
+
+        bboxPolygon = createBboxPolygon(left, right, top, bottom);
+
+        if (queryEngine == QueryEngine.CTE) {
+            List<Object> args = new ArrayList<Object>();
+            String sql = buildBoundingBoxCte(bboxPolygon, completeWays, args);
+
+            disableSeqScanForCte();
+
+            LOG.finer("Writing all entities inside bounding box from a single statement.");
+            fetchRows(sql, rowWriter, args.toArray());
+            tracker.recordTimepoint("cte query");
+            return rowWriter.getRowCount();
+        }
+
+        stageBoundingBox(bboxPolygon, completeWays);
+
+        LOG.finer("Writing results.");
+        fetchRows("SELECT " + EntityRowReader.NODE_COLUMNS
+                + " FROM bbox_nodes e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", rowWriter);
+        fetchRows("SELECT " + EntityRowReader.WAY_COLUMNS
+                + " FROM bbox_ways e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", rowWriter);
+        fetchRows("SELECT " + EntityRowReader.RELATION_COLUMNS
+                + " FROM bbox_relations e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", rowWriter);
+        tracker.recordTimepoint("write results");
+
+        return rowWriter.getRowCount();
+    }
+
+    /**
+     * Builds a polygon representing the bounding box.
+     */
+    private static Polygon createBboxPolygon(double left, double right, double top, double bottom) {
         // Sample box for query testing may be:
         // GeomFromText('POLYGON((144.93912192855174 -37.82981987499741,
         // 144.93912192855174 -37.79310006709244, 144.98188026000003
         // -37.79310006709244, 144.98188026000003 -37.82981987499741,
         // 144.93912192855174 -37.82981987499741))', -1)
-        bboxPoints = new Point[5];
+        Point[] bboxPoints = new Point[5];
         bboxPoints[0] = new Point(left, bottom);
         bboxPoints[1] = new Point(left, top);
         bboxPoints[2] = new Point(right, top);
         bboxPoints[3] = new Point(right, bottom);
         bboxPoints[4] = new Point(left, bottom);
-        bboxPolygon = PolygonBuilder.createPolygon(bboxPoints);
+        return PolygonBuilder.createPolygon(bboxPoints);
+    }
+
+    /**
+     * Fills the bbox_nodes, bbox_ways and bbox_relations tables with the
+     * elements of a bounding box query for the temporary table engine.
+     */
+    private void stageBoundingBox(Polygon bboxPolygon, boolean completeWays) {
+        int rowCount;
+
+        // PostgreSQL sometimes incorrectly chooses to perform full table scans,
+        // these options prevent this. Note that this is not recommended
+        // practice according to documentation but fixing this would require
+        // modifying the table statistics gathering configuration to produce
+        // better plans.
+        tracker.recordTimepoint("query start");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         // Select all nodes inside the box into the node temp table.
         LOG.finer("Selecting all nodes inside bounding box.");
-        rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS"
-                + " SELECT * FROM nodes WHERE ST_Intersects(geom, ?)", new PGgeometry(bboxPolygon));
+        rowCount = fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE ST_Intersects(geom, ?)",
+                new PGgeometry(bboxPolygon));
         tracker.recordTimepoint("select nodes");
 
         LOG.finer("Adding a primary key to the temporary nodes table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_nodes ADD CONSTRAINT pk_bbox_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_nodes");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
         jdbcTemplate.update("ANALYZE bbox_nodes");
         tracker.recordTimepoint("uniquify nodes");
 
         // Select all ways inside the bounding box into the way temp table.
-        if (capabilityChecker.isWayLinestringSupported()) {
+        if (capabilities.isWayLinestringSupported()) {
             LOG.finer("Selecting all ways inside bounding box using way linestring geometry.");
             // We have full way geometry available so select ways
             // overlapping the requested bounding box.
-            String sql = "CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT * FROM ways WHERE ST_Intersects(linestring, ?)";
-            LOG.info("Exec SQL: " + sql + " -- args: " + bboxPolygon);
-            rowCount = jdbcTemplate.update(sql, new PGgeometry(bboxPolygon));
+            rowCount = fillScratchTable("bbox_ways", "SELECT * FROM ways WHERE ST_Intersects(linestring, ?)",
+                    new PGgeometry(bboxPolygon));
 
-        } else if (capabilityChecker.isWayBboxSupported()) {
+        } else if (capabilities.isWayBboxSupported()) {
             LOG.finer("Selecting all ways inside bounding box using dynamically built"
                     + " way linestring with way bbox indexing.");
             // The inner query selects the way id and node coordinates for
@@ -284,8 +404,10 @@ public class PostgreSqlDatasetContext implements DatasetContext {
             // The outer query constrains the query to the linestrings
             // inside the bounding box. These aren't indexed but the inner
             // query way bbox constraint will minimise the unnecessary data.
-            rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT w.* FROM ("
+            // Only the way columns are selected so the rows also fit the
+            // scratch table.
+            rowCount = fillScratchTable("bbox_ways",
+                    "SELECT w.id, w.version, w.user_id, w.tstamp, w.changeset_id, w.tags, w.nodes FROM ("
                     + "  SELECT c.id AS id, First(c.version) AS version, First(c.user_id) AS user_id,"
                     + "   First(c.tstamp) AS tstamp, First(c.changeset_id) AS changeset_id, First(c.tags) AS tags,"
                     + "   First(c.nodes) AS nodes, MakeLine(c.geom) AS way_line FROM ("
@@ -303,8 +425,8 @@ public class PostgreSqlDatasetContext implements DatasetContext {
             LOG.finer("Selecting all way ids inside bounding box using already selected nodes.");
             // No way bbox support is available so select ways containing
             // the selected nodes.
-            rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT w.* FROM ways w" + " INNER JOIN (" + " SELECT wn.way_id FROM way_nodes wn"
+            rowCount = fillScratchTable("bbox_ways", "SELECT w.* FROM ways w"
+                    + " INNER JOIN (" + " SELECT wn.way_id FROM way_nodes wn"
                     + " INNER JOIN bbox_nodes n ON wn.node_id = n.id GROUP BY wn.way_id"
                     + ") wids ON w.id = wids.way_id");
         }
@@ -312,7 +434,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         tracker.recordTimepoint("select ways");
 
         LOG.finer("Adding a primary key to the temporary ways table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_ways ADD CONSTRAINT pk_bbox_ways PRIMARY KEY (id)");
+        addPrimaryKey("bbox_ways");
 
         LOG.finer("Updating query analyzer statistics on the temporary ways table.");
         jdbcTemplate.update("ANALYZE bbox_ways");
@@ -321,8 +443,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Select all relations containing the nodes or ways into the relation
         // table.
         LOG.finer("Selecting all relation ids containing selected nodes or ways.");
-        rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_relations ON COMMIT DROP AS"
-                + " SELECT r.* FROM relations r"
+        rowCount = fillScratchTable("bbox_relations", "SELECT r.* FROM relations r"
                 + " INNER JOIN ("
                 + "    SELECT relation_id FROM ("
                 + "        SELECT rm.relation_id AS relation_id FROM relation_members rm"
@@ -336,43 +457,26 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         tracker.recordTimepoint("backfill relations");
 
         LOG.finer("Adding a primary key to the temporary relations table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_relations ADD CONSTRAINT pk_bbox_relations PRIMARY KEY (id)");
+        addPrimaryKey("bbox_relations");
 
         LOG.finer("Updating query analyzer statistics on the temporary relations table.");
         jdbcTemplate.update("ANALYZE bbox_relations");
         tracker.recordTimepoint("uniquify relations");
 
-        // Include all relations containing the current relations into the
-        // relation table and repeat until no more inclusions occur.
-        do {
-            LOG.finer("Selecting parent relations of selected relations.");
-            rowCount = jdbcTemplate.update("INSERT INTO bbox_relations "
-                    + "SELECT r.* FROM relations r INNER JOIN ("
-                    + "    SELECT rm.relation_id FROM relation_members rm"
-                    + "    INNER JOIN bbox_relations br ON rm.member_id = br.id"
-                    + "    WHERE rm.member_type = 'R' AND NOT EXISTS ("
-                    + "        SELECT * FROM bbox_relations br2 WHERE rm.relation_id = br2.id"
-                    + "    ) GROUP BY rm.relation_id"
-                    + ") rids ON r.id = rids.relation_id");
-            LOG.finer(rowCount + " rows affected.");
-        } while (rowCount > 0);
-
-        LOG.finer("Updating query analyzer statistics on the temporary relations table.");
-        jdbcTemplate.update("ANALYZE bbox_relations");
+        backfillRelationsTables();
 
         // If complete ways is set, select all nodes contained by the ways into
         // the node temp table.
         if (completeWays) {
             LOG.finer("Selecting all nodes for selected ways.");
-            jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
+            createWayNodesTable();
             jdbcTemplate.queryForList("SELECT unnest_bbox_way_nodes()");
-            jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_missing_way_nodes ON COMMIT DROP AS "
-                    + "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
+            fillScratchTable("bbox_missing_way_nodes",
+                    "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
                     + "WHERE NOT EXISTS ("
                     + "    SELECT * FROM bbox_nodes WHERE id = buwn.id"
                     + ");");
-            jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
-                    + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
+            addPrimaryKey("bbox_missing_way_nodes");
             jdbcTemplate.update("ANALYZE bbox_missing_way_nodes");
             rowCount = jdbcTemplate.update("INSERT INTO bbox_nodes "
                     + "SELECT n.* FROM nodes n INNER JOIN bbox_missing_way_nodes bwn ON n.id = bwn.id;");
@@ -382,25 +486,145 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
         jdbcTemplate.update("ANALYZE bbox_nodes");
+    }
 
-        // Create iterators for the selected records for each of the entity
-        // types.
-        LOG.finer("Iterating over results.");
+    /**
+     * Runs a bounding box query as a single <tt>WITH RECURSIVE</tt> statement
+     * rather than staging each entity type in a temporary table, and streams
+     * the rows back as the caller consumes them. Nodes, ways and relations are
+     * returned in the same order as the temporary table engine.
+     */
+    private ReleasableIterator<EntityContainer> iterateBoundingBoxWithCte(List<Bound> bounds, Polygon bboxPolygon,
+            boolean completeWays) {
+        List<ReleasableIterator<EntityContainer>> resultSets = new ArrayList<ReleasableIterator<EntityContainer>>();
+        List<Object> args = new ArrayList<Object>();
+        String sql = buildBoundingBoxCte(bboxPolygon, completeWays, args);
+
+        disableSeqScanForCte();
+
+        LOG.finer("Selecting all entities inside bounding box in a single statement.");
         resultSets.add(new UpcastIterator<EntityContainer, BoundContainer>(new BoundContainerIterator(
                 new ReleasableAdaptorForIterator<Bound>(bounds.iterator()))));
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, WayContainer>(new WayContainerIterator(wayDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, RelationContainer>(new RelationContainerIterator(relationDao
-                .iterate("bbox_"))));
-
-		tracker.recordTimepoint("iterate results");
+        resultSets.add(new CursorEntityIterator(jdbcTemplate, sql,
+                fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE, args.toArray()));
+        tracker.recordTimepoint("cte query");
 
         // Merge all readers into a single result iterator and return.
         return new MultipleSourceIterator<EntityContainer>(resultSets);
     }
 
+    /**
+     * Prepares the transaction for running the statement built by
+     * {@link #buildBoundingBoxCte(Polygon, boolean, List)}. Only sequential
+     * scans are disabled. The intermediate results live in CTEs which have no
+     * indexes, so hash joins are the cheapest way of combining them and must
+     * stay enabled.
+     */
+    private void disableSeqScanForCte() {
+        tracker.recordTimepoint("query start");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+    }
+
+    /**
+     * Builds the <tt>WITH RECURSIVE</tt> statement of the CTE engine, which
+     * returns every element of a bounding box query ordered by kind and id in
+     * the columns read by {@link EntityRowReader}.
+     *
+     * @param args
+     *            The list to add the statement's parameters to.
+     * @return The statement.
+     */
+    private String buildBoundingBoxCte(Polygon bboxPolygon, boolean completeWays, List<Object> args) {
+        StringBuilder sql = new StringBuilder("WITH RECURSIVE");
+
+        sql.append(" cte_nodes AS (SELECT * FROM nodes WHERE ST_Intersects(geom, ?)),");
+        args.add(new PGgeometry(bboxPolygon));
+
+        if (capabilities.isWayLinestringSupported()) {
+            sql.append(" cte_ways AS (SELECT * FROM ways WHERE ST_Intersects(linestring, ?)),");
+            args.add(new PGgeometry(bboxPolygon));
+
+        } else if (capabilities.isWayBboxSupported()) {
+            // The indexed way bbox narrows the candidates, then a linestring
+            // is built from each candidate's nodes to test the real overlap.
+            sql.append(" cte_ways AS (SELECT w.* FROM ways w WHERE w.bbox && ? AND ("
+                    + "  SELECT MakeLine(c.geom) FROM ("
+                    + "   SELECT n.geom FROM way_nodes wn INNER JOIN nodes n ON n.id = wn.node_id"
+                    + "   WHERE wn.way_id = w.id ORDER BY wn.sequence_id"
+                    + "  ) c"
+                    + " ) && ?),");
+            args.add(new PGgeometry(bboxPolygon));
+            args.add(new PGgeometry(bboxPolygon));
+
+        } else {
+            sql.append(" cte_ways AS (SELECT w.* FROM ways w WHERE w.id IN ("
+                    + "  SELECT wn.way_id FROM way_nodes wn INNER JOIN cte_nodes n ON wn.node_id = n.id"
+                    + " )),");
+        }
+
+        // Relations containing the selected nodes or ways, then their parents
+        // until no more are found. UNION discards rows that have already been
+        // seen so the recursion terminates even if relations form a cycle.
+        sql.append(" cte_relation_ids(id) AS ("
+                + "  SELECT rm.relation_id FROM relation_members rm"
+                + "  INNER JOIN cte_nodes n ON rm.member_id = n.id WHERE rm.member_type = 'N'"
+                + "  UNION"
+                + "  SELECT rm.relation_id FROM relation_members rm"
+                + "  INNER JOIN cte_ways w ON rm.member_id = w.id WHERE rm.member_type = 'W'"
+                + "  UNION"
+                + "  SELECT rm.relation_id FROM relation_members rm"
+                + "  INNER JOIN cte_relation_ids r ON rm.member_id = r.id WHERE rm.member_type = 'R'"
+                + " ),");
+
+        if (completeWays) {
+            sql.append(" cte_way_node_ids AS (SELECT DISTINCT unnest(nodes) AS id FROM cte_ways),");
+            sql.append(" cte_all_nodes AS ("
+                    + "  SELECT * FROM cte_nodes"
+                    + "  UNION ALL"
+                    + "  SELECT n.* FROM nodes n INNER JOIN cte_way_node_ids wn ON n.id = wn.id"
+                    + "  WHERE wn.id NOT IN (SELECT id FROM cte_nodes)"
+                    + " )");
+        } else {
+            sql.append(" cte_all_nodes AS (SELECT * FROM cte_nodes)");
+        }
+
+        sql.append(" SELECT ").append(EntityRowReader.NODE_COLUMNS)
+                .append(" FROM cte_all_nodes e LEFT OUTER JOIN users u ON e.user_id = u.id");
+        sql.append(" UNION ALL SELECT ").append(EntityRowReader.WAY_COLUMNS)
+                .append(" FROM cte_ways e LEFT OUTER JOIN users u ON e.user_id = u.id");
+        sql.append(" UNION ALL SELECT ").append(EntityRowReader.RELATION_COLUMNS)
+                .append(" FROM relations e INNER JOIN cte_relation_ids r ON e.id = r.id")
+                .append(" LEFT OUTER JOIN users u ON e.user_id = u.id");
+        sql.append(" ORDER BY kind, id");
+
+        return sql.toString();
+    }
+
+    /**
+     * Hands the rows of a query to a handler through a server-side cursor,
+     * fetching a batch at a time as {@link CursorEntityIterator} does, so
+     * only one batch is held in memory. If anything fails the cursor is left
+     * for the end of the transaction to close.
+     */
+    private void fetchRows(String query, final RowCallbackHandler handler, Object... args) {
+        int batchSize = fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+        String cursorName = CursorEntityIterator.newCursorName();
+        final int[] fetched = new int[1];
+        RowCallbackHandler counter = new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                fetched[0]++;
+                handler.processRow(rs);
+            }
+        };
+
+        jdbcTemplate.update("DECLARE " + cursorName + " NO SCROLL CURSOR FOR " + query, args);
+        do {
+            fetched[0] = 0;
+            jdbcTemplate.getJdbcOperations().query("FETCH FORWARD " + batchSize + " FROM " + cursorName, counter);
+        } while (fetched[0] == batchSize);
+        jdbcTemplate.update("CLOSE " + cursorName);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -409,9 +633,19 @@ public class PostgreSqlDatasetContext implements DatasetContext {
     }
 
     /**
-     * {@inheritDoc}
+     * Releases the database connection, returning it to the pool if one is in
+     * use.
      */
     public void release() {
+        if (tracker != null) {
+            tracker.setCancellable(null);
+        }
+        // Waits for a cancel in progress, after which none can reach the
+        // connection once it has gone back to the pool.
+        synchronized (cancelLock) {
+            connection = null;
+            backendPid = 0;
+        }
         if (dbCtx != null) {
             dbCtx.release();
 
@@ -435,18 +669,18 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         // Select all nodes inside the box into the node temp table.
         LOG.finer("Selecting all nodes inside bounding box.");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS"
-                + " SELECT * FROM nodes WHERE " + whereStr, whereObj.toArray());
+        fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE " + whereStr, whereObj.toArray());
         tracker.recordTimepoint("select nodes");
 
         LOG.finer("Adding a primary key to the temporary nodes table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_nodes ADD CONSTRAINT pk_bbox_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_nodes");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
         jdbcTemplate.update("ANALYZE bbox_nodes");
@@ -455,8 +689,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Create iterators for the selected records for each of the entity
         // types.
         LOG.finer("Iterating over results.");
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxNodes());
 
         tracker.recordTimepoint("iterate results");
 
@@ -535,9 +768,9 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         }
 
         String whereStr = buildSelectorWhereClause(tagSelectors);
-        if (capabilityChecker.isWayLinestringSupported()) {
+        if (capabilities.isWayLinestringSupported()) {
             whereStr = whereStr.replace("geom", "linestring");
-        } else if (capabilityChecker.isWayBboxSupported()) {
+        } else if (capabilities.isWayBboxSupported()) {
             whereStr = whereStr.replace("geom", "bbox");
         }
         List<Object> whereObj = buildSelectorWhereParameters(tagSelectors);
@@ -559,48 +792,44 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         LOG.finer("Creating empty nodes table.");
-        rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS"
-                + " SELECT * FROM nodes WHERE FALSE");
+        rowCount = fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE FALSE");
         tracker.recordTimepoint("select nodes");
 
         // Select all ways inside the bounding box into the way temp table.
         LOG.finer("Selecting all ways inside bounding box using way linestring geometry.");
         // We have full way geometry available so select ways
         // overlapping the requested bounding box.
-        String sql = "CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS SELECT * FROM ways WHERE "
-            + whereStr;
-
-        rowCount = jdbcTemplate.update(sql, whereObj.toArray());
+        rowCount = fillScratchTable("bbox_ways", "SELECT * FROM ways WHERE " + whereStr, whereObj.toArray());
         tracker.recordTimepoint("select ways");
 
         LOG.finer(rowCount + " rows affected.");
 
         LOG.finer("Adding a primary key to the temporary ways table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_ways ADD CONSTRAINT pk_bbox_ways PRIMARY KEY (id)");
+        addPrimaryKey("bbox_ways");
 
         LOG.finer("Updating query analyzer statistics on the temporary ways table.");
         jdbcTemplate.update("ANALYZE bbox_ways");
         tracker.recordTimepoint("uniquify ways");
 
         LOG.finer("Selecting all nodes for selected ways.");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
+        createWayNodesTable();
         jdbcTemplate.queryForList("SELECT unnest_bbox_way_nodes()");
         tracker.recordTimepoint("unnest way nodes");
 
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_missing_way_nodes ON COMMIT DROP AS "
-                + "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
+        fillScratchTable("bbox_missing_way_nodes",
+                "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
                 + "WHERE NOT EXISTS ("
                 + "    SELECT * FROM bbox_nodes WHERE id = buwn.id"
                 + ");");
         tracker.recordTimepoint("find unnested nodes not previously selected");
 
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
-                + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_missing_way_nodes");
         jdbcTemplate.update("ANALYZE bbox_missing_way_nodes");
         tracker.recordTimepoint("uniquify unnested way nodes");
 
@@ -618,10 +847,8 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         LOG.finer("Iterating over results.");
         resultSets.add(new UpcastIterator<EntityContainer, BoundContainer>(new BoundContainerIterator(
                 new ReleasableAdaptorForIterator<Bound>(bounds.iterator()))));
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, WayContainer>(new WayContainerIterator(wayDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxNodes());
+        resultSets.add(iterateBboxWays());
 
         tracker.recordTimepoint("iterate results");
 
@@ -649,13 +876,10 @@ public class PostgreSqlDatasetContext implements DatasetContext {
             }
         }
 
-        String bboxWhereStr = buildBboxWhereClause(bboxSelectors);
-        String tagsWhereStr = buildSelectorWhereClause(tagSelectors);
-        List<Object> tagsWhereObj = buildSelectorWhereParameters(tagSelectors);
-        List<Object> bboxWhereObj = buildBboxWhereParameters(bboxSelectors);
-        List<Object> objArgs = new LinkedList<Object>();
-        objArgs.addAll(bboxWhereObj);
-        objArgs.addAll(tagsWhereObj);
+        // Relations have no geometry of their own so only the tag selectors
+        // can be applied to them.
+        String tagsWhereStr = buildTagSelectorWhereClause(tagSelectors);
+        List<Object> tagsWhereObj = buildTagSelectorWhereParameters(tagSelectors);
 
         // PostgreSQL sometimes incorrectly chooses to perform full table scans,
         // these options prevent this. Note that this is not recommended
@@ -663,17 +887,18 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         LOG.finer("Selecting all relations matching tags.");
-        rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_relations ON COMMIT DROP AS"
-                + " SELECT * FROM relations WHERE " + tagsWhereStr, objArgs.toArray());
+        rowCount = fillScratchTable("bbox_relations", "SELECT * FROM relations WHERE " + tagsWhereStr,
+                tagsWhereObj.toArray());
         tracker.recordTimepoint("select relations");
 
         LOG.finer("Adding a primary key to the temporary relations table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_relations ADD CONSTRAINT pk_bbox_relations PRIMARY KEY (id)");
+        addPrimaryKey("bbox_relations");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
         jdbcTemplate.update("ANALYZE bbox_relations");
@@ -685,15 +910,9 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         LOG.finer("Iterating over results.");
         resultSets.add(new UpcastIterator<EntityContainer, BoundContainer>(new BoundContainerIterator(
                 new ReleasableAdaptorForIterator<Bound>(bounds.iterator()))));
-        resultSets.add(new UpcastIterator<EntityContainer, RelationContainer>(new RelationContainerIterator(relationDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxRelations());
 
         tracker.recordTimepoint("iterate results");
-                        new NodeContainerIterator(nodeDao.iterate("bbox_"))));
-        resultSets.add(
-                new UpcastIterator<EntityContainer, WayContainer>(
-                        new WayContainerIterator(wayDao.iterate("bbox_"))));
-        resultSets.add(
 
         // Merge all readers into a single result iterator and return.
         return new MultipleSourceIterator<EntityContainer>(resultSets);
@@ -733,9 +952,10 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         String whereStr = buildSelectorWhereClause(tagSelectors);
         List<Object> whereObj = buildSelectorWhereParameters(tagSelectors);
@@ -752,7 +972,6 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         tracker.recordTimepoint("select relations");
 
         backfillRelationsTables();
-        tracker.recordTimepoint("backill relations");
 
         backfillNodesTables();
         tracker.recordTimepoint("backill nodes");
@@ -762,12 +981,9 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         LOG.finer("Iterating over results.");
         resultSets.add(new UpcastIterator<EntityContainer, BoundContainer>(new BoundContainerIterator(
                 new ReleasableAdaptorForIterator<Bound>(bounds.iterator()))));
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, WayContainer>(new WayContainerIterator(wayDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, RelationContainer>(new RelationContainerIterator(relationDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxNodes());
+        resultSets.add(iterateBboxWays());
+        resultSets.add(iterateBboxRelations());
 
         tracker.recordTimepoint("iterate results");
 
@@ -775,7 +991,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         return new MultipleSourceIterator<EntityContainer>(resultSets);
     }
 
-    public ReleasableIterator<EntityContainer> iterateNodes(List<Long> ids) {
+    public ReleasableIterator<EntityContainer> iterateNodes(long[] ids) {
         List<ReleasableIterator<EntityContainer>> resultSets = new ArrayList<ReleasableIterator<EntityContainer>>();
 
         if (!initialized) {
@@ -788,14 +1004,13 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         LOG.finer("Creating nodes table with single ID.");
-        String idsSql = buildListSql(ids);
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS"
-                + " SELECT * FROM nodes WHERE id IN " + idsSql, ids.toArray());
+        fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE id = ANY(?)", new LongArrayParameter(ids));
         tracker.recordTimepoint("select nodes");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
@@ -804,8 +1019,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Create iterators for the selected records for each of the entity
         // types.
         LOG.finer("Iterating over results.");
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxNodes());
 
         tracker.recordTimepoint("iterate results");
 
@@ -814,78 +1028,52 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
     }
 
-    public String primitivesAsGeoJSON(String primitiveType, List<Long> ids) {
+    /**
+     * Lists the versions of primitives, and of the nodes written out along
+     * with ways, so a client's copy can be checked without fetching them.
+     *
+     * @param primitiveType
+     *            One of node, way or relation.
+     * @param ids
+     *            The primitives' ids.
+     * @return The type, id and version of each element found, in order.
+     */
+    public String primitiveVersions(String primitiveType, long[] ids) {
         if (!initialized) {
             initialize();
         }
 
-		String tableName;
-		String geoColumnName;
-		if ("node".equals(primitiveType))
-		{
-			tableName = "nodes";
-			geoColumnName = "geom";
-		}
-		else if ("way".equals(primitiveType))
-		{
-	        if (capabilityChecker.isWayLinestringSupported()) {
-	        	tableName = "ways";
-	        	geoColumnName = "linestring";
-	        }
-	        else
-	        {
-	            throw new IllegalArgumentException("I can only serialize ways as geoJSON if the ways table has a geometry column");
-	        }
-		}
-		else {
-            throw new IllegalArgumentException("I can only serialize nodes or ways as geoJSON");
+        String sql;
+        Object[] args;
+        if ("node".equals(primitiveType)) {
+            sql = "SELECT 'n', id, version FROM nodes WHERE id = ANY(?)";
+            args = new Object[] { new LongArrayParameter(ids) };
+        } else if ("way".equals(primitiveType)) {
+            sql = "SELECT 'w', id, version FROM ways WHERE id = ANY(?)"
+                    + " UNION ALL SELECT 'n', n.id, n.version FROM nodes n"
+                    + " WHERE n.id IN (SELECT unnest(w.nodes) FROM ways w WHERE w.id = ANY(?))";
+            args = new Object[] { new LongArrayParameter(ids), new LongArrayParameter(ids) };
+        } else if ("relation".equals(primitiveType)) {
+            sql = "SELECT 'r', id, version FROM relations WHERE id = ANY(?)";
+            args = new Object[] { new LongArrayParameter(ids) };
+        } else {
+            throw new IllegalArgumentException("Unknown primitive type " + primitiveType + ".");
         }
-        LOG.info("GeoJSON query starting.");
-
-        String idsSql = buildListSql(ids);
-        String sql = "SELECT ST_AsGeoJSON(" + geoColumnName + ", 7) AS geojson, tags FROM " + tableName + " WHERE id IN " + idsSql;
-
-        List<Map<String,Object>> results = jdbcTemplate.queryForList(sql, ids.toArray());
-
-        StringBuilder out = new StringBuilder("{\"type\": \"FeatureCollection\", \"features\": [");
-        Iterator<Map<String, Object>> iterator = results.iterator();
-        while (iterator.hasNext()) {
-            Map<String, Object> result = iterator.next();
-
-            out.append("{\"type\": \"Feature\",\"geometry\": ");
-
-            String geojson = (String) result.get("geojson");
-            out.append(geojson);
-
-            out.append(",\"properties\": {");
-            PGHStore tags = (PGHStore) result.get("tags");
-            Iterator<Entry<String, String>> tagIter = tags.entrySet().iterator();
-            while (tagIter.hasNext()) {
-                Map.Entry<String, String> entry = tagIter.next();
-                out.append("\"");
-                out.append(entry.getKey());
-                out.append("\": \"");
-                out.append(entry.getValue());
-                out.append("\"");
-
-                if (tagIter.hasNext()) {
-                    out.append(",");
-                }
-            }
-            out.append("}");
-
-            out.append("}");
 
-            if (iterator.hasNext()) {
-                out.append(",");
+        final StringBuilder versions = new StringBuilder();
+        jdbcTemplate.getJdbcOperations().query(sql + " ORDER BY 1, 2", args, new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                versions.append(rs.getString(1)).append(rs.getLong(2)).append('v').append(rs.getInt(3))
+                        .append(',');
             }
+        });
+        if (tracker != null) {
+            tracker.recordTimepoint("select versions");
         }
-        out.append("]}");
-
-        return out.toString();
+        return versions.toString();
     }
 
-    public ReleasableIterator<EntityContainer> iterateWays(List<Long> ids) {
+    public ReleasableIterator<EntityContainer> iterateWays(long[] ids) {
         int rowCount;
         List<ReleasableIterator<EntityContainer>> resultSets = new ArrayList<ReleasableIterator<EntityContainer>>();
 
@@ -899,19 +1087,16 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         LOG.finer("Creating empty nodes table.");
-        rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS"
-                + " SELECT * FROM nodes WHERE FALSE");
+        rowCount = fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE FALSE");
         tracker.recordTimepoint("select nodes");
 
-        String idsSql = buildListSql(ids);
-        rowCount = jdbcTemplate.update(
-                "CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS SELECT * FROM ways WHERE id IN " + idsSql,
-                ids.toArray());
+        rowCount = fillScratchTable("bbox_ways", "SELECT * FROM ways WHERE id = ANY(?)", new LongArrayParameter(ids));
 
         LOG.finer(rowCount + " rows affected.");
         tracker.recordTimepoint("select ways");
@@ -920,15 +1105,14 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         jdbcTemplate.update("ANALYZE bbox_ways");
 
         LOG.finer("Selecting all nodes for selected ways.");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
+        createWayNodesTable();
         jdbcTemplate.queryForList("SELECT unnest_bbox_way_nodes()");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_missing_way_nodes ON COMMIT DROP AS "
-                + "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
+        fillScratchTable("bbox_missing_way_nodes",
+                "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
                 + "WHERE NOT EXISTS ("
                 + "    SELECT * FROM bbox_nodes WHERE id = buwn.id"
                 + ");");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
-                + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_missing_way_nodes");
         jdbcTemplate.update("ANALYZE bbox_missing_way_nodes");
         rowCount = jdbcTemplate.update("INSERT INTO bbox_nodes "
                 + "SELECT n.* FROM nodes n INNER JOIN bbox_missing_way_nodes bwn ON n.id = bwn.id;");
@@ -941,10 +1125,8 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Create iterators for the selected records for each of the entity
         // types.
         LOG.finer("Iterating over results.");
-        resultSets.add(new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
-                .iterate("bbox_"))));
-        resultSets.add(new UpcastIterator<EntityContainer, WayContainer>(new WayContainerIterator(wayDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxNodes());
+        resultSets.add(iterateBboxWays());
 
         tracker.recordTimepoint("iterate results");
 
@@ -952,7 +1134,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         return new MultipleSourceIterator<EntityContainer>(resultSets);
     }
 
-    public ReleasableIterator<EntityContainer> iterateRelations(List<Long> ids) {
+    public ReleasableIterator<EntityContainer> iterateRelations(long[] ids) {
         List<ReleasableIterator<EntityContainer>> resultSets = new ArrayList<ReleasableIterator<EntityContainer>>();
 
         if (!initialized) {
@@ -965,14 +1147,14 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // modifying the table statistics gathering configuration to produce
         // better plans.
         tracker.recordTimepoint("query start");
-        jdbcTemplate.update("SET enable_seqscan = false");
-        jdbcTemplate.update("SET enable_mergejoin = false");
-        jdbcTemplate.update("SET enable_hashjoin = false");
+        jdbcTemplate.update("SET LOCAL enable_seqscan = false");
+        jdbcTemplate.update("SET LOCAL enable_mergejoin = false");
+        jdbcTemplate.update("SET LOCAL enable_hashjoin = false");
+        prepareScratchTables();
 
         LOG.finer("Creating nodes table with single ID.");
-        String idsSql = buildListSql(ids);
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_relations ON COMMIT DROP AS"
-                + " SELECT * FROM relations WHERE id IN " + idsSql, ids.toArray());
+        fillScratchTable("bbox_relations", "SELECT * FROM relations WHERE id = ANY(?)",
+                new LongArrayParameter(ids));
         tracker.recordTimepoint("select relations");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
@@ -981,8 +1163,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Create iterators for the selected records for each of the entity
         // types.
         LOG.finer("Iterating over results.");
-        resultSets.add(new UpcastIterator<EntityContainer, RelationContainer>(new RelationContainerIterator(relationDao
-                .iterate("bbox_"))));
+        resultSets.add(iterateBboxRelations());
 
         tracker.recordTimepoint("iterate results");
 
@@ -991,62 +1172,14 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
     }
 
-    private StringBuilder buildBboxAndTagsQueryString(
-            String tmpTableName, String tableName,
-            List<Selector.BoundingBox> bboxSelectors, String bboxWhereStr,
-            List<Selector> tagSelectors, String tagsWhereStr) {
-        StringBuilder sql = new StringBuilder("CREATE TEMPORARY TABLE ");
-        sql.append(tmpTableName);
-        sql.append(" ON COMMIT DROP AS SELECT * FROM ");
-        sql.append(tableName);
-        sql.append(" ");
-		if(bboxSelectors.size() > 0 || tagSelectors.size() > 0) {
-			sql.append("WHERE ");
-			if(!bboxSelectors.isEmpty()) {
-				sql.append("(");
-                // TODO: better way to deal with the column name difference for the ways table.
-                if (tableName.equals("ways")) {
-                    sql.append(bboxWhereStr.replaceAll("geom", "linestring"));
-                } else {
-				    sql.append(bboxWhereStr);
-                }
-				sql.append(")");
-				if(!tagSelectors.isEmpty()) {
-					sql.append(" AND ");
-				}
-			}
-			if(!tagSelectors.isEmpty()) {
-				sql.append("(");
-				sql.append(tagsWhereStr);
-				sql.append(")");
-			}
-		}
-        return sql;
-    }
-
-    private String buildListSql(List<Long> ids) {
-        StringBuilder idsSql = new StringBuilder("(");
-        Iterator<Long> iterator = ids.iterator();
-        while (iterator.hasNext()) {
-            iterator.next();
-            idsSql.append("?");
-            if (iterator.hasNext()) {
-                idsSql.append(", ");
-            }
-        }
-        idsSql.append(")");
-        return idsSql.toString();
-    }
-
     private int populateNodeTables(String whereStr, List<Object> whereObj)
     {
         // Select all nodes inside the box into the node temp table.
         LOG.finer("Selecting all nodes inside bounding box.");
-        String sql = "CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS SELECT * FROM nodes WHERE " + whereStr;
-        int rowCount = jdbcTemplate.update(sql.toString(), whereObj.toArray());
+        int rowCount = fillScratchTable("bbox_nodes", "SELECT * FROM nodes WHERE " + whereStr, whereObj.toArray());
 
         LOG.finer("Adding a primary key to the temporary nodes table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_nodes ADD CONSTRAINT pk_bbox_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_nodes");
 
         LOG.finer("Updating query analyzer statistics on the temporary nodes table.");
         jdbcTemplate.update("ANALYZE bbox_nodes");
@@ -1061,14 +1194,14 @@ public class PostgreSqlDatasetContext implements DatasetContext {
 
         int rowCount;
         // Select all ways inside the bounding box into the way temp table.
-        if (capabilityChecker.isWayLinestringSupported()) {
+        if (capabilities.isWayLinestringSupported()) {
             LOG.finer("Selecting all ways inside bounding box using way linestring geometry.");
             // We have full way geometry available so select ways
             // overlapping the requested bounding box.
-            rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT * FROM ways WHERE " + whereStr.replace("geom", "linestring"), whereObj.toArray());
+            rowCount = fillScratchTable("bbox_ways",
+                    "SELECT * FROM ways WHERE " + whereStr.replace("geom", "linestring"), whereObj.toArray());
 
-        } else if (capabilityChecker.isWayBboxSupported()) {
+        } else if (capabilities.isWayBboxSupported()) {
             LOG.finer("Selecting all ways inside bounding box using dynamically built"
                     + " way linestring with way bbox indexing.");
 
@@ -1082,8 +1215,10 @@ public class PostgreSqlDatasetContext implements DatasetContext {
             // The outer query constrains the query to the linestrings inside
             // the bounding box. These aren't indexed but the inner query way
             // bbox constraint will minimise the unnecessary data.
-            rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT w.* FROM ("
+            // Only the way columns are selected so the rows also fit the
+            // scratch table.
+            rowCount = fillScratchTable("bbox_ways",
+                    "SELECT w.id, w.version, w.user_id, w.tstamp, w.changeset_id, w.tags, w.nodes FROM ("
                     + "  SELECT c.id AS id, First(c.version) AS version, First(c.user_id) AS user_id,"
                     + "   First(c.tstamp) AS tstamp, First(c.changeset_id) AS changeset_id, First(c.tags) AS tags,"
                     + "   First(c.nodes) AS nodes, MakeLine(c.geom) AS way_line FROM ("
@@ -1101,8 +1236,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
             LOG.finer("Selecting all way ids inside bounding box using already selected nodes.");
             // No way bbox support is available so select ways containing
             // the selected nodes.
-            rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS"
-                    + " SELECT w.* FROM ways w"
+            rowCount = fillScratchTable("bbox_ways", "SELECT w.* FROM ways w"
                     + " INNER JOIN ("
                     + " SELECT wn.way_id FROM way_nodes wn"
                     + " INNER JOIN bbox_nodes n ON wn.node_id = n.id GROUP BY wn.way_id"
@@ -1111,7 +1245,7 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         LOG.finer(rowCount + " rows affected.");
 
         LOG.finer("Adding a primary key to the temporary ways table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_ways ADD CONSTRAINT pk_bbox_ways PRIMARY KEY (id)");
+        addPrimaryKey("bbox_ways");
 
         LOG.finer("Updating query analyzer statistics on the temporary ways table.");
         jdbcTemplate.update("ANALYZE bbox_ways");
@@ -1123,23 +1257,39 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // Select all relations containing the nodes or ways into the relation
         // table.
         LOG.finer("Selecting all relation ids containing selected nodes or ways.");
-        int rowCount = jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_relations ON COMMIT DROP AS"
-                + " SELECT r.* FROM relations r"
-                + " INNER JOIN ("
-                + "    SELECT relation_id FROM ("
-                + "        SELECT rm.relation_id AS relation_id FROM relation_members rm"
-                + "        INNER JOIN bbox_nodes n ON rm.member_id = n.id WHERE rm.member_type = 'N' "
-                + "        UNION "
-                + "        SELECT rm.relation_id AS relation_id FROM relation_members rm"
-                + "        INNER JOIN bbox_ways w ON rm.member_id = w.id WHERE rm.member_type = 'W'"
-                + "     ) rids GROUP BY relation_id"
-                + ") rids ON r.id = rids.relation_id "
-                + "UNION "
-                + "SELECT * FROM relations WHERE " + whereStr, whereObj.toArray());
+        int rowCount;
+        RelationGraph relationGraph = RelationGraph.getCurrent();
+        if (relationGraph != null) {
+            // Look the parents up in memory rather than in relation_members.
+            LongHashSet relationIds = new LongHashSet();
+            fetchRows("SELECT id FROM bbox_nodes", relationGraph.parentCollector('N', relationIds));
+            fetchRows("SELECT id FROM bbox_ways", relationGraph.parentCollector('W', relationIds));
+
+            List<Object> args = new ArrayList<Object>();
+            args.add(new LongArrayParameter(relationIds.toArray()));
+            args.addAll(whereObj);
+            rowCount = fillScratchTable("bbox_relations", "SELECT * FROM relations WHERE id = ANY(?) "
+                    + "UNION "
+                    + "SELECT * FROM relations WHERE " + whereStr, args.toArray());
+
+        } else {
+            rowCount = fillScratchTable("bbox_relations", "SELECT r.* FROM relations r"
+                    + " INNER JOIN ("
+                    + "    SELECT relation_id FROM ("
+                    + "        SELECT rm.relation_id AS relation_id FROM relation_members rm"
+                    + "        INNER JOIN bbox_nodes n ON rm.member_id = n.id WHERE rm.member_type = 'N' "
+                    + "        UNION "
+                    + "        SELECT rm.relation_id AS relation_id FROM relation_members rm"
+                    + "        INNER JOIN bbox_ways w ON rm.member_id = w.id WHERE rm.member_type = 'W'"
+                    + "     ) rids GROUP BY relation_id"
+                    + ") rids ON r.id = rids.relation_id "
+                    + "UNION "
+                    + "SELECT * FROM relations WHERE " + whereStr, whereObj.toArray());
+        }
         LOG.finer(rowCount + " rows affected.");
 
         LOG.finer("Adding a primary key to the temporary relations table.");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_relations ADD CONSTRAINT pk_bbox_relations PRIMARY KEY (id)");
+        addPrimaryKey("bbox_relations");
 
         LOG.finer("Updating query analyzer statistics on the temporary relations table.");
         jdbcTemplate.update("ANALYZE bbox_relations");
@@ -1151,15 +1301,14 @@ public class PostgreSqlDatasetContext implements DatasetContext {
         // If complete ways is set, select all nodes contained by the ways into
         // the node temp table.
         LOG.finer("Selecting all nodes for selected ways.");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
+        createWayNodesTable();
         jdbcTemplate.queryForList("SELECT unnest_bbox_way_nodes()");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_missing_way_nodes ON COMMIT DROP AS "
-                + "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
+        fillScratchTable("bbox_missing_way_nodes",
+                "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
                 + "WHERE NOT EXISTS ("
                 + "    SELECT * FROM bbox_nodes WHERE id = buwn.id"
                 + ");");
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
-                + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
+        addPrimaryKey("bbox_missing_way_nodes");
         jdbcTemplate.update("ANALYZE bbox_missing_way_nodes");
         int rowCount = jdbcTemplate.update("INSERT INTO bbox_nodes "
                 + "SELECT n.* FROM nodes n INNER JOIN bbox_missing_way_nodes bwn ON n.id = bwn.id;");
@@ -1170,67 +1319,283 @@ public class PostgreSqlDatasetContext implements DatasetContext {
     }
 
     private void backfillRelationsTables() {
-        int rowCount;
-        // Include all relations containing the current relations into the
-        // relation table and repeat until no more inclusions occur.
-        do {
-            LOG.finer("Selecting parent relations of selected relations.");
-            rowCount = jdbcTemplate.update("INSERT INTO bbox_relations "
-                    + "SELECT r.* FROM relations r INNER JOIN ("
-                    + "    SELECT rm.relation_id FROM relation_members rm"
-                    + "    INNER JOIN bbox_relations br ON rm.member_id = br.id"
-                    + "    WHERE rm.member_type = 'R' AND NOT EXISTS ("
-                    + "        SELECT * FROM bbox_relations br2 WHERE rm.relation_id = br2.id"
-                    + "    ) GROUP BY rm.relation_id"
-                    + ") rids ON r.id = rids.relation_id");
-            LOG.finer(rowCount + " rows affected.");
-        } while (rowCount > 0);
+        RelationGraph relationGraph = RelationGraph.getCurrent();
+        if (relationGraph != null) {
+            backfillRelationsTables(relationGraph);
+            return;
+        }
+
+        // Include all relations containing the current relations, and the
+        // relations containing those, in a single statement. Each row carries
+        // the path of relations it was reached through and a relation already
+        // on the path isn't followed again, so membership cycles terminate.
+        LOG.finer("Selecting parent relations of selected relations.");
+        Map<String, Object> result = jdbcTemplate.queryForMap("WITH RECURSIVE parents(id, depth, path) AS ("
+                + "    SELECT id, 0, ARRAY[id] FROM bbox_relations"
+                + "    UNION ALL"
+                + "    SELECT rm.relation_id, p.depth + 1, p.path || rm.relation_id"
+                + "    FROM relation_members rm INNER JOIN parents p ON rm.member_id = p.id"
+                + "    WHERE rm.member_type = 'R' AND NOT rm.relation_id = ANY(p.path)"
+                + "), inserted AS ("
+                + "    INSERT INTO bbox_relations"
+                + "    SELECT r.* FROM relations r"
+                + "    WHERE r.id IN (SELECT id FROM parents WHERE depth > 0)"
+                + "    AND NOT EXISTS (SELECT * FROM bbox_relations br WHERE br.id = r.id)"
+                + "    RETURNING id"
+                + ")"
+                + " SELECT (SELECT count(*) FROM inserted) AS row_count,"
+                + " (SELECT COALESCE(max(depth), 0) FROM parents) AS depth");
+        int depth = ((Number) result.get("depth")).intValue();
+        LOG.finer(result.get("row_count") + " rows affected, depth " + depth + ".");
+        tracker.recordTimepoint("backfill parent relations to depth " + depth);
 
         LOG.finer("Updating query analyzer statistics on the temporary relations table.");
         jdbcTemplate.update("ANALYZE bbox_relations");
     }
 
+    /**
+     * Includes the parents of the selected relations by walking the in-memory
+     * relation graph and then fetching everything it found in one statement.
+     */
+    private void backfillRelationsTables(RelationGraph relationGraph) {
+        LOG.finer("Walking the relation graph from the selected relations.");
+        final LongHashSet relationIds = new LongHashSet();
+        fetchRows("SELECT id FROM bbox_relations", new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                relationIds.add(rs.getLong(1));
+            }
+        });
+        LongHashSet ancestors = new LongHashSet();
+        int depth = relationGraph.addAncestors(relationIds.toArray(), ancestors);
+
+        if (!ancestors.isEmpty()) {
+            int rowCount = jdbcTemplate.update("INSERT INTO bbox_relations"
+                    + " SELECT r.* FROM relations r WHERE r.id = ANY(?)"
+                    + " AND NOT EXISTS (SELECT * FROM bbox_relations br WHERE br.id = r.id)",
+                    new LongArrayParameter(ancestors.toArray()));
+            LOG.finer(rowCount + " rows affected, depth " + depth + ".");
+        }
+        tracker.recordTimepoint("backfill parent relations to depth " + depth);
+
+        LOG.finer("Updating query analyzer statistics on the temporary relations table.");
+        jdbcTemplate.update("ANALYZE bbox_relations");
+    }
+
+    /**
+     * Iterates over the bbox_nodes table, through a cursor if a fetch size has
+     * been set and through the Osmosis DAO otherwise.
+     */
+    private ReleasableIterator<EntityContainer> iterateBboxNodes() {
+        if (fetchSize > 0) {
+            return new CursorEntityIterator(jdbcTemplate, "SELECT " + EntityRowReader.NODE_COLUMNS
+                    + " FROM bbox_nodes e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", fetchSize);
+        }
+        return new UpcastIterator<EntityContainer, NodeContainer>(new NodeContainerIterator(nodeDao
+                .iterate("bbox_")));
+    }
+
+    /**
+     * Iterates over the bbox_ways table, through a cursor if a fetch size has
+     * been set and through the Osmosis DAO otherwise.
+     */
+    private ReleasableIterator<EntityContainer> iterateBboxWays() {
+        if (fetchSize > 0) {
+            return new CursorEntityIterator(jdbcTemplate, "SELECT " + EntityRowReader.WAY_COLUMNS
+                    + " FROM bbox_ways e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", fetchSize);
+        }
+        return new UpcastIterator<EntityContainer, WayContainer>(new WayContainerIterator(wayDao
+                .iterate("bbox_")));
+    }
+
+    /**
+     * Iterates over the bbox_relations table, through a cursor if a fetch size
+     * has been set and through the Osmosis DAO otherwise.
+     */
+    private ReleasableIterator<EntityContainer> iterateBboxRelations() {
+        if (fetchSize > 0) {
+            return new CursorEntityIterator(jdbcTemplate, "SELECT " + EntityRowReader.RELATION_COLUMNS
+                    + " FROM bbox_relations e LEFT OUTER JOIN users u ON e.user_id = u.id ORDER BY e.id", fetchSize);
+        }
+        return new UpcastIterator<EntityContainer, RelationContainer>(new RelationContainerIterator(relationDao
+                .iterate("bbox_")));
+    }
+
+    /**
+     * Makes sure the scratch tables of this connection exist. They are
+     * created the first time a pooled connection serves a query with
+     * <tt>ON COMMIT DELETE ROWS</tt>, so every transaction empties them
+     * without rewriting the system catalog and no rows are left behind in an
+     * idle connection. Does nothing unless scratch tables are enabled.
+     */
+    private void prepareScratchTables() {
+        if (!scratchTables) {
+            return;
+        }
+
+        int existing = jdbcTemplate.queryForInt("SELECT count(*) FROM pg_class"
+                + " WHERE relnamespace = pg_my_temp_schema() AND relname = 'bbox_missing_way_nodes'");
+        if (existing > 0) {
+            return;
+        }
+
+        LOG.fine("Creating the scratch tables for this connection.");
+        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_nodes (LIKE nodes INCLUDING DEFAULTS)"
+                + " ON COMMIT DELETE ROWS");
+        jdbcTemplate.update("ALTER TABLE ONLY bbox_nodes ADD CONSTRAINT pk_bbox_nodes PRIMARY KEY (id)");
+        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_ways (LIKE ways INCLUDING DEFAULTS)"
+                + " ON COMMIT DELETE ROWS");
+        jdbcTemplate.update("ALTER TABLE ONLY bbox_ways ADD CONSTRAINT pk_bbox_ways PRIMARY KEY (id)");
+        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_relations (LIKE relations INCLUDING DEFAULTS)"
+                + " ON COMMIT DELETE ROWS");
+        jdbcTemplate.update("ALTER TABLE ONLY bbox_relations ADD CONSTRAINT pk_bbox_relations PRIMARY KEY (id)");
+        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DELETE ROWS");
+        // Created last, its presence shows the whole set exists.
+        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_missing_way_nodes (id bigint) ON COMMIT DELETE ROWS");
+        jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
+                + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
+    }
+
+    /**
+     * Fills one of the bbox_ tables with the result of a query. With scratch
+     * tables the rows are inserted into the existing table, so the query must
+     * produce its columns in table order. Otherwise the table is created from
+     * the query and dropped when the transaction commits.
+     */
+    private int fillScratchTable(String tableName, String query, Object... args) {
+        if (scratchTables) {
+            return jdbcTemplate.update("INSERT INTO " + tableName + " " + query, args);
+        } else {
+            return jdbcTemplate.update("CREATE TEMPORARY TABLE " + tableName + " ON COMMIT DROP AS " + query, args);
+        }
+    }
+
+    /**
+     * Adds the primary key to a bbox_ table just filled by
+     * {@link #fillScratchTable(String, String, Object...)}. Scratch tables
+     * were created with theirs.
+     */
+    private void addPrimaryKey(String tableName) {
+        if (!scratchTables) {
+            jdbcTemplate.update("ALTER TABLE ONLY " + tableName + " ADD CONSTRAINT pk_" + tableName
+                    + " PRIMARY KEY (id)");
+        }
+    }
+
+    /**
+     * Creates the table filled by the unnest_bbox_way_nodes() function unless
+     * the scratch table already exists.
+     */
+    private void createWayNodesTable() {
+        if (!scratchTables) {
+            jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
+        }
+    }
+
 	public void includeTimer(XapiQueryStats tracker) {
 		this.tracker = tracker;
 	}
 
-    private int addMissingNodesFromBboxWays() {
-        LOG.finer("Selecting all nodes for selected ways.");
-        jdbcTemplate.update("CREATE TEMPORARY TABLE bbox_way_nodes (id bigint) ON COMMIT DROP");
-        jdbcTemplate.queryForList("SELECT unnest_bbox_way_nodes()");
-        jdbcTemplate.update(
-                "CREATE TEMPORARY TABLE bbox_missing_way_nodes ON COMMIT DROP AS "
-                + "SELECT buwn.id FROM (SELECT DISTINCT bwn.id FROM bbox_way_nodes bwn) buwn "
-                + "WHERE NOT EXISTS ("
-                + "    SELECT * FROM bbox_nodes WHERE id = buwn.id"
-                + ");"
-        );
-        jdbcTemplate.update("ALTER TABLE ONLY bbox_missing_way_nodes"
-                + " ADD CONSTRAINT pk_bbox_missing_way_nodes PRIMARY KEY (id)");
-        jdbcTemplate.update("ANALYZE bbox_missing_way_nodes");
-        return jdbcTemplate.update("INSERT INTO bbox_nodes "
-                + "SELECT n.* FROM nodes n INNER JOIN bbox_missing_way_nodes bwn ON n.id = bwn.id;");
+    /**
+     * Selects whether the bbox_ tables are kept on the connection and
+     * emptied when each transaction commits instead of being created and
+     * dropped by every query. Only worthwhile when connections come from a pool.
+     *
+     * @param scratchTables
+     *            True to reuse per-connection scratch tables.
+     */
+    public void setScratchTables(boolean scratchTables) {
+        this.scratchTables = scratchTables;
     }
 
-    private void addMissingWaysNodesAndRelationsFromBboxRelations() {
-        LOG.finer("Selecting all ways and nodes for selected relations.");
-        jdbcTemplate.update(
-                "CREATE TEMPORARY TABLE bbox_nodes ON COMMIT DROP AS " +
-                "SELECT n.* FROM nodes n JOIN relation_members rm ON n.id=rm.member_id " +
-                "WHERE rm.member_type='N' " +
-                "AND rm.relation_id IN (SELECT id from bbox_relations)");
-        jdbcTemplate.update(
-                "CREATE TEMPORARY TABLE bbox_ways ON COMMIT DROP AS " +
-                "SELECT w.* FROM ways w JOIN relation_members rm ON w.id=rm.member_id " +
-                "WHERE rm.member_type='W' " +
-                "AND rm.relation_id IN (SELECT id from bbox_relations)");
-        // this one goes last - we're not getting the members of the relation members of the
-        // relations that were selected. confusing, huh?
-        jdbcTemplate.update(
-                "INSERT INTO bbox_relations " +
-                "SELECT r.* FROM relations r JOIN relation_members rm ON r.id=rm.member_id " +
-                "WHERE rm.member_type='R' " +
-                "AND rm.relation_id IN (SELECT id from bbox_relations) " +
-                "AND r.id NOT IN (SELECT id from bbox_relations)");
+    /**
+     * Sets the number of rows fetched per round trip when reading query
+     * results. With a fetch size the results are read through server-side
+     * cursors, so only one batch is held in memory at a time. With zero, the
+     * default, they are read through the Osmosis DAOs, which sort the whole
+     * result into a temporary file first.
+     *
+     * @param fetchSize
+     *            The number of rows to fetch at a time, or zero.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Sets how long any single statement may run before the server cancels
+     * it. Applies to the statements of this context only.
+     *
+     * @param statementTimeout
+     *            The limit in milliseconds, or zero to leave the server's
+     *            setting alone.
+     */
+    public void setStatementTimeout(int statementTimeout) {
+        this.statementTimeout = statementTimeout;
+    }
+
+    /**
+     * Cancels the statement running on this context's connection, if any. The
+     * thread waiting on it sees the statement fail. May be called from any
+     * thread, and does nothing once the connection has been released.
+     */
+    public void cancel() {
+        synchronized (cancelLock) {
+            if (connection == null) {
+                return;
+            }
+
+            LOG.info("Cancelling the statement running on this context's connection.");
+            try {
+                // The driver cancels through a separate socket using the
+                // connection's cancel key, whichever statement is running.
+                Statement statement = connection.createStatement();
+                try {
+                    statement.cancel();
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                if (backendPid == 0) {
+                    LOG.log(Level.WARNING, "Statement cancel failed.", e);
+                    return;
+                }
+                // The connection is still this context's, so the backend
+                // is still running this request.
+                LOG.log(Level.WARNING, "Statement cancel failed, asking the server to cancel backend "
+                        + backendPid + " instead.", e);
+                cancelBackend(backendPid);
+            }
+        }
+    }
+
+    private void cancelBackend(int pid) {
+        DatabaseContext cancelCtx = new DatabaseContext(loginCredentials);
+        try {
+            cancelCtx.getSimpleJdbcTemplate().queryForObject("SELECT pg_cancel_backend(?)", Boolean.class, pid);
+        } catch (DataAccessException e) {
+            LOG.log(Level.WARNING, "Unable to cancel backend " + pid + ".", e);
+        } finally {
+            cancelCtx.release();
+        }
+    }
+
+    /**
+     * Selects how {@link #iterateBoundingBox(double, double, double, double, boolean)}
+     * executes. The other queries always use temporary tables.
+     *
+     * @param queryEngine
+     *            The engine to use for bounding box queries.
+     */
+    public void setQueryEngine(QueryEngine queryEngine) {
+        this.queryEngine = queryEngine;
+    }
+
+    /**
+     * @return The optional way geometry the database has, which decides how
+     *         ways are matched to a bounding box, or null before the first
+     *         query.
+     */
+    public DatabaseCapabilities getCapabilities() {
+        return capabilities;
     }
 }
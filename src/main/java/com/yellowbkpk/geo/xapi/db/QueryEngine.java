@@ -0,0 +1,43 @@
+package com.yellowbkpk.geo.xapi.db;
+
+/**
+ * The strategies available for executing a bounding box map query. Each
+ * servlet picks one from its <tt>xapi.engine.*</tt> context parameter so the
+ * two can be compared against each other using the query timepoints.
+ */
+public enum QueryEngine {
+
+    /**
+     * Stages nodes, ways and relations in temporary tables, adding a primary
+     * key and statistics to each before reading them back.
+     */
+    TEMP_TABLE,
+
+    /**
+     * Computes the whole result in a single <tt>WITH RECURSIVE</tt> statement
+     * and streams the rows straight out of the result set.
+     */
+    CTE;
+
+    /**
+     * Parses the value of a context parameter, defaulting to the temporary
+     * table engine when it is not set.
+     *
+     * @param value
+     *            The parameter value, e.g. "cte" or "temp_table".
+     * @return The matching engine.
+     * @throws IllegalArgumentException
+     *             if the value doesn't name an engine.
+     */
+    public static QueryEngine fromParameter(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return TEMP_TABLE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown query engine \"" + value.trim()
+                    + "\", expected temp_table or cte.");
+        }
+    }
+}
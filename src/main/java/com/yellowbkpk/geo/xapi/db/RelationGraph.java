@@ -0,0 +1,289 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+import org.openstreetmap.osmosis.pgsnapshot.common.DatabaseContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * An in-memory copy of the relation_members table, indexed from member to
+ * parent relation. Relations are a small part of the data but parent lookups
+ * are made by every query that returns relations, so holding them in sorted
+ * primitive arrays lets those lookups be answered without touching the
+ * database.
+ *
+ * The graph is a snapshot of the replication sequence number it was loaded
+ * at. It is rebuilt as replication moves the database on and published
+ * through {@link #setShared(RelationGraph)}, but queries only get it from
+ * {@link #getCurrent()} while it matches the sequence number last reported by
+ * replication, so a stale graph is never used in place of the database.
+ */
+public class RelationGraph {
+
+    private static final int FETCH_SIZE = 100000;
+
+    private static final long[] NO_PARENTS = new long[0];
+
+    /**
+     * The sequence number of a graph loaded, or a database running, without
+     * replication.
+     */
+    public static final long NO_SEQUENCE_NUMBER = -1;
+
+    private static volatile RelationGraph shared;
+
+    private static volatile long currentSequenceNumber = NO_SEQUENCE_NUMBER;
+
+    private final long[][] memberIds;
+    private final long[][] parentIds;
+    private final long sequenceNumber;
+    private final Date built;
+
+    private RelationGraph(long[][] memberIds, long[][] parentIds, long sequenceNumber) {
+        this.memberIds = memberIds;
+        this.parentIds = parentIds;
+        this.sequenceNumber = sequenceNumber;
+        this.built = new Date();
+    }
+
+    /**
+     * Reads the whole relation_members table into a new graph using a
+     * connection of its own.
+     *
+     * @param loginCredentials
+     *            Contains all information required to connect to the database.
+     * @param sequenceNumber
+     *            The replication sequence number the database was at before
+     *            loading started, or {@link #NO_SEQUENCE_NUMBER}.
+     * @return The new graph.
+     */
+    public static RelationGraph load(DatabaseLoginCredentials loginCredentials, long sequenceNumber) {
+        final LongArrayBuilder[] members = new LongArrayBuilder[3];
+        final LongArrayBuilder[] parents = new LongArrayBuilder[3];
+        for (int i = 0; i < 3; i++) {
+            members[i] = new LongArrayBuilder();
+            parents[i] = new LongArrayBuilder();
+        }
+
+        DatabaseContext dbCtx = new DatabaseContext(loginCredentials);
+        try {
+            // The rows only stream with a fetch size inside a transaction,
+            // otherwise the driver reads the whole table into memory first.
+            dbCtx.beginTransaction();
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(((JdbcTemplate) dbCtx.getSimpleJdbcTemplate()
+                    .getJdbcOperations()).getDataSource());
+            jdbcTemplate.setFetchSize(FETCH_SIZE);
+            jdbcTemplate.query("SELECT DISTINCT member_type, member_id, relation_id FROM relation_members"
+                    + " ORDER BY member_type, member_id, relation_id", new RowCallbackHandler() {
+                public void processRow(ResultSet rs) throws SQLException {
+                    int type = typeIndex(rs.getString(1).charAt(0));
+                    members[type].add(rs.getLong(2));
+                    parents[type].add(rs.getLong(3));
+                }
+            });
+            dbCtx.commitTransaction();
+        } finally {
+            dbCtx.release();
+        }
+
+        long[][] memberIds = new long[3][];
+        long[][] parentIds = new long[3][];
+        for (int i = 0; i < 3; i++) {
+            memberIds[i] = members[i].toArray();
+            parentIds[i] = parents[i].toArray();
+        }
+        return new RelationGraph(memberIds, parentIds, sequenceNumber);
+    }
+
+    /**
+     * @return The last graph published, current or not, or null if none has
+     *         been loaded.
+     */
+    public static RelationGraph getShared() {
+        return shared;
+    }
+
+    /**
+     * @return The published graph if it was loaded at the current replication
+     *         sequence number, otherwise null so that the database is asked
+     *         instead.
+     */
+    public static RelationGraph getCurrent() {
+        RelationGraph graph = shared;
+        if (graph == null || graph.sequenceNumber != currentSequenceNumber) {
+            return null;
+        }
+        return graph;
+    }
+
+    /**
+     * Records how far replication has brought the database. Graphs loaded
+     * before that stop being used at once.
+     *
+     * @param sequenceNumber
+     *            The replication sequence number.
+     */
+    public static void setCurrentSequenceNumber(long sequenceNumber) {
+        currentSequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Publishes a graph for all queries to use.
+     *
+     * @param graph
+     *            The new graph, or null to stop using one.
+     */
+    public static void setShared(RelationGraph graph) {
+        shared = graph;
+    }
+
+    /**
+     * Returns the relations that directly contain a member.
+     *
+     * @param memberType
+     *            N, W or R.
+     * @param memberId
+     *            The id of the member.
+     * @return The ids of the parent relations in ascending order.
+     */
+    public long[] getParents(char memberType, long memberId) {
+        int type = typeIndex(memberType);
+        long[] members = memberIds[type];
+
+        int index = Arrays.binarySearch(members, memberId);
+        if (index < 0) {
+            return NO_PARENTS;
+        }
+
+        // The search lands on any of the member's rows, widen it to all of
+        // them.
+        int first = index;
+        while (first > 0 && members[first - 1] == memberId) {
+            first--;
+        }
+        int last = index;
+        while (last + 1 < members.length && members[last + 1] == memberId) {
+            last++;
+        }
+        return Arrays.copyOfRange(parentIds[type], first, last + 1);
+    }
+
+    /**
+     * Returns a handler which adds the relations directly containing each
+     * member it is given to a set, looking them up as the rows arrive so the
+     * member ids are never all held at once.
+     *
+     * @param memberType
+     *            N, W or R.
+     * @param parents
+     *            Receives the ids of the parent relations.
+     * @return A handler reading a member id from the first column of each
+     *         row.
+     */
+    RowCallbackHandler parentCollector(final char memberType, final LongHashSet parents) {
+        return new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                for (long parentId : getParents(memberType, rs.getLong(1))) {
+                    parents.add(parentId);
+                }
+            }
+        };
+    }
+
+    /**
+     * Walks up from the given relations to every relation containing them,
+     * directly or through other relations. Relations already seen are not
+     * walked again so membership cycles terminate.
+     *
+     * @param relationIds
+     *            The relations to start from.
+     * @param ancestors
+     *            Receives the ids of the relations found above the starting
+     *            ones, not including those.
+     * @return The number of levels walked.
+     */
+    int addAncestors(long[] relationIds, LongHashSet ancestors) {
+        LongHashSet seen = new LongHashSet();
+        for (long relationId : relationIds) {
+            seen.add(relationId);
+        }
+        long[] level = relationIds;
+        int depth = 0;
+
+        while (true) {
+            LongArrayBuilder nextLevel = new LongArrayBuilder();
+            for (long relationId : level) {
+                for (long parentId : getParents('R', relationId)) {
+                    if (seen.add(parentId)) {
+                        nextLevel.add(parentId);
+                        ancestors.add(parentId);
+                    }
+                }
+            }
+            if (nextLevel.size() == 0) {
+                return depth;
+            }
+            depth++;
+            level = nextLevel.toArray();
+        }
+    }
+
+    /**
+     * @return The number of memberships held.
+     */
+    public int size() {
+        return memberIds[0].length + memberIds[1].length + memberIds[2].length;
+    }
+
+    /**
+     * @return The replication sequence number the graph was loaded at.
+     */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public Date getBuilt() {
+        return built;
+    }
+
+    private static int typeIndex(char memberType) {
+        switch (memberType) {
+        case 'N':
+            return 0;
+        case 'W':
+            return 1;
+        case 'R':
+            return 2;
+        default:
+            throw new IllegalArgumentException("Unknown relation member type " + memberType + ".");
+        }
+    }
+
+    /**
+     * A growable array of longs, to avoid boxing every row while loading.
+     */
+    private static class LongArrayBuilder {
+        private long[] values = new long[1024];
+        private int size;
+
+        public void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -27,6 +27,22 @@ public abstract class Selector {
         return this.param;
     }
 
+    /**
+     * Describes what the selector selects in a form that is the same for any
+     * two selectors selecting the same thing, however they were written.
+     * Parameters are length prefixed so their values can't run together.
+     *
+     * @return The canonical form.
+     */
+    public String getCanonicalForm() {
+        StringBuilder b = new StringBuilder(getWhereString());
+        for (Object value : getWhereParam()) {
+            String text = String.valueOf(value);
+            b.append('|').append(text.length()).append(':').append(text);
+        }
+        return b.toString();
+    }
+
     public static class Tag extends Selector {
         public Tag(String key, String value) {
             super(" tags @> hstore(?, ?)", key, value);
@@ -1,5 +1,6 @@
 package com.yellowbkpk.geo.xapi.db;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -43,6 +44,29 @@ public class SelectorGroup extends Selector {
         return ret;
     }
 
+    /**
+     * {@inheritDoc} The alternatives are sorted, since their order doesn't
+     * change what the group selects.
+     */
+    @Override
+    public String getCanonicalForm() {
+        List<String> forms = new ArrayList<String>(selectors.size());
+        for (Selector selector : selectors) {
+            forms.add(selector.getCanonicalForm());
+        }
+        Collections.sort(forms);
+
+        StringBuilder b = new StringBuilder("(");
+        Iterator<String> iterator = forms.iterator();
+        while (iterator.hasNext()) {
+            b.append(iterator.next());
+            if (iterator.hasNext()) {
+                b.append(" OR ");
+            }
+        }
+        return b.append(")").toString();
+    }
+
     public List<Selector> getSelectors() {
         return Collections.unmodifiableList(selectors);
     }
@@ -0,0 +1,46 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An HTTP content coding a response can be sent in. Implementations are
+ * loaded by {@link ContentEncodings} and need a public no-argument
+ * constructor, which should fail if whatever the coding relies on isn't
+ * installed so that it is never offered to clients.
+ */
+public interface ContentCodec {
+
+    /**
+     * @return The name the coding has in the Accept-Encoding and
+     *         Content-Encoding headers.
+     */
+    String getName();
+
+    /**
+     * Opens a stream which encodes everything written to it.
+     *
+     * @param out
+     *            The stream to write the encoded data to.
+     * @param level
+     *            The compression level, with the meaning the coding gives it,
+     *            or -1 for the coding's default.
+     * @return The encoding stream. Closing it finishes the encoded data and
+     *         closes <tt>out</tt>.
+     * @throws IOException
+     *             if the stream can't be written to.
+     */
+    OutputStream encode(OutputStream out, int level) throws IOException;
+
+    /**
+     * Opens a stream which decodes data in this coding.
+     *
+     * @param in
+     *            The encoded data.
+     * @return The decoded data.
+     * @throws IOException
+     *             if the data can't be read.
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
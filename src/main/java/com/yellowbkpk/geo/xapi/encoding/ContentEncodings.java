@@ -0,0 +1,195 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The content codings responses may be sent in, in the order the server
+ * prefers them, and the negotiation of one with a client's Accept-Encoding
+ * header.
+ *
+ * Codings are named either by their header name, for those built in, or by
+ * the class name of a {@link ContentCodec}. Those that can't be loaded, such
+ * as zstd and br when the WAR is built without the codecs profile, are left
+ * out.
+ */
+public class ContentEncodings {
+
+    /**
+     * The codings used when none are configured, most preferred first.
+     */
+    public static final String DEFAULT_NAMES = "zstd,br,gzip";
+
+    private static final Map<String, String> BUILT_IN = new HashMap<String, String>();
+    static {
+        BUILT_IN.put("gzip", "com.yellowbkpk.geo.xapi.encoding.GzipCodec");
+        BUILT_IN.put("zstd", "com.yellowbkpk.geo.xapi.encoding.ZstdCodec");
+        BUILT_IN.put("br", "com.yellowbkpk.geo.xapi.encoding.BrotliCodec");
+    }
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private final List<ContentCodec> codecs;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param codecs
+     *            The codings to offer, most preferred first.
+     */
+    public ContentEncodings(List<ContentCodec> codecs) {
+        this.codecs = Collections.unmodifiableList(new ArrayList<ContentCodec>(codecs));
+    }
+
+    /**
+     * Loads the codings named in a configuration parameter.
+     *
+     * @param names
+     *            A comma separated list of coding or class names, most
+     *            preferred first, or null for {@link #DEFAULT_NAMES}.
+     * @return The codings which could be loaded.
+     */
+    public static ContentEncodings fromParameter(String names) {
+        List<ContentCodec> codecs = new ArrayList<ContentCodec>();
+        for (String name : (names == null ? DEFAULT_NAMES : names).split(",")) {
+            name = name.trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            ContentCodec codec = forName(name);
+            if (codec != null) {
+                codecs.add(codec);
+            }
+        }
+        return new ContentEncodings(codecs);
+    }
+
+    /**
+     * Loads a single coding.
+     *
+     * @param name
+     *            The coding's header name, if it is built in, or the class
+     *            name of its {@link ContentCodec}.
+     * @return The coding, or null if it can't be loaded.
+     */
+    public static ContentCodec forName(String name) {
+        String className = BUILT_IN.containsKey(name) ? BUILT_IN.get(name) : name;
+        try {
+            return (ContentCodec) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            log.info("The " + name + " content coding isn't available: " + e);
+        } catch (LinkageError e) {
+            log.info("The " + name + " content coding isn't available: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * @return The codings on offer, most preferred first.
+     */
+    public List<ContentCodec> getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * Looks up one of the codings on offer.
+     *
+     * @param name
+     *            The coding's header name.
+     * @return The coding, or null if it isn't on offer.
+     */
+    public ContentCodec get(String name) {
+        for (ContentCodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the coding to send a response in.
+     *
+     * @param acceptEncodingHeader
+     *            The client's Accept-Encoding header, or null if it didn't
+     *            send one.
+     * @return The coding on offer with the highest quality value, the one we
+     *         prefer winning a tie, or null to send the response as it is.
+     *         That is also the answer if the client rates identity higher
+     *         than any coding on offer.
+     */
+    public ContentCodec negotiate(String acceptEncodingHeader) {
+        return negotiate(acceptEncodingHeader, null);
+    }
+
+    /**
+     * Picks the coding to send a response in, where a stored copy of it is
+     * already in one coding and recoding it would be wasted work.
+     *
+     * @param acceptEncodingHeader
+     *            The client's Accept-Encoding header, or null if it didn't
+     *            send one.
+     * @param stored
+     *            The coding the stored copy is in, which wins any tie for the
+     *            highest quality value, or null to leave ties to our
+     *            preference.
+     * @return The coding to send the response in, or null to send it as it
+     *         is.
+     */
+    public ContentCodec negotiate(String acceptEncodingHeader, ContentCodec stored) {
+        if (acceptEncodingHeader == null) {
+            return null;
+        }
+
+        Map<String, Double> qualities = new HashMap<String, Double>();
+        for (String element : acceptEncodingHeader.split(",")) {
+            String[] params = element.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if ("x-gzip".equals(coding)) {
+                coding = "gzip";
+            }
+            if (coding.length() > 0) {
+                qualities.put(coding, quality);
+            }
+        }
+
+        ContentCodec best = null;
+        double bestQuality = 0;
+        for (ContentCodec codec : codecs) {
+            Double quality = qualities.get(codec.getName());
+            if (quality == null) {
+                quality = qualities.get("*");
+            }
+            if (quality == null) {
+                continue;
+            }
+            if (quality > bestQuality
+                    || (quality == bestQuality && quality > 0 && stored != null
+                            && stored.getName().equals(codec.getName()))) {
+                best = codec;
+                bestQuality = quality;
+            }
+        }
+
+        Double identity = qualities.get("identity");
+        if (identity != null && identity > bestQuality) {
+            return null;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,30 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The gzip coding, which every client accepts and which needs nothing beyond
+ * the JDK.
+ */
+public class GzipCodec implements ContentCodec {
+
+    public String getName() {
+        return "gzip";
+    }
+
+    public OutputStream encode(OutputStream out, final int level) throws IOException {
+        return new GZIPOutputStream(out) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    public InputStream decode(InputStream in) throws IOException {
+        return new GZIPInputStream(in);
+    }
+}
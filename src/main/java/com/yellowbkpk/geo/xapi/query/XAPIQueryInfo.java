@@ -1,5 +1,7 @@
 package com.yellowbkpk.geo.xapi.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -52,7 +54,7 @@ public class XAPIQueryInfo {
         List<Selector> selectors = new LinkedList<Selector>();
 
         RequestType type = parseRequestType(state);
-        Filetype ftype = Filetype.xml;
+        Filetype ftype = null;
         if (type == RequestType.MAP) {
             ftype = parseFiletype(state);
             state.expect("?");
@@ -86,6 +88,10 @@ public class XAPIQueryInfo {
                 return Filetype.xml;
             } else if (state.canConsume("json")) {
                 return Filetype.json;
+            } else if (state.canConsume("geojson")) {
+                return Filetype.geojson;
+            } else if (state.canConsume("pbf")) {
+                return Filetype.pbf;
             } else {
                 throw new XAPIParseException("Unknown filetype specified.");
             }
@@ -543,6 +549,42 @@ public class XAPIQueryInfo {
         return new Selector.Polygon(points.toArray(new Point[points.size()]));
     }
 
+    /**
+     * Builds a key that is equal for any two queries returning the same
+     * result, so that <tt>node[amenity=pub][bbox=...]</tt> and the same query
+     * with its predicates the other way round share one. Selectors are sorted
+     * since they are all applied together, and numbers have already been
+     * parsed so <tt>1.8e+2</tt> and <tt>180</tt> agree.
+     *
+     * @return The key.
+     */
+    public String getCanonicalKey() {
+        return getCanonicalKey(getFiletype());
+    }
+
+    /**
+     * Builds the canonical key for the query's result in a particular format,
+     * for when the format wasn't part of the query itself.
+     *
+     * @param filetype
+     *            The format the result is written in.
+     * @return The key.
+     */
+    public String getCanonicalKey(Filetype filetype) {
+        List<String> forms = new ArrayList<String>(selectors.size());
+        for (Selector selector : selectors) {
+            forms.add(selector.getCanonicalForm());
+        }
+        Collections.sort(forms);
+
+        StringBuilder b = new StringBuilder();
+        b.append(type.getT()).append('.').append(filetype);
+        for (String form : forms) {
+            b.append('[').append(form).append(']');
+        }
+        return b.toString();
+    }
+
     public RequestType getKind() {
         return type;
     }
@@ -552,7 +594,15 @@ public class XAPIQueryInfo {
     }
 
     public Filetype getFiletype() {
-        return filetype;
+        return filetype == null ? Filetype.xml : filetype;
+    }
+
+    /**
+     * @return True if the query asked for a format, rather than getting XML
+     *         by default.
+     */
+    public boolean hasFiletype() {
+        return filetype != null;
     }
 
 }
@@ -0,0 +1,212 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Limits how many queries run against the database at once. Requests beyond
+ * the limit wait in a bounded queue for a slot, and each remote address may
+ * only have a few requests running or waiting at a time. Requests that can't
+ * be admitted are turned away with a Retry-After header: 429 when the client
+ * has too many requests in already, 503 when the server is full.
+ *
+ * A servlet that is done with the database and only has the response left to
+ * send can give its slot up early with {@link #releaseSlot(ServletRequest)},
+ * so a slow client doesn't keep other queries waiting. The request still
+ * counts against its address until it finishes.
+ *
+ * Configured with these init parameters, all optional:
+ * <ul>
+ * <li><tt>maxConcurrent</tt> - requests allowed to run at once, which should
+ * be below the size of the connection pool.</li>
+ * <li><tt>maxQueued</tt> - requests allowed to wait for a slot.</li>
+ * <li><tt>queueTimeoutMillis</tt> - how long a request waits for a slot.</li>
+ * <li><tt>maxPerAddress</tt> - requests one address may have running or
+ * waiting.</li>
+ * <li><tt>retryAfterSeconds</tt> - the Retry-After sent with rejections.</li>
+ * </ul>
+ */
+public class AdmissionFilter implements Filter {
+
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The request attribute holding the slot an admitted request runs in.
+     */
+    static final String SLOT_ATTRIBUTE = AdmissionFilter.class.getName() + ".slot";
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private Semaphore slots;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, Integer> addressCounts = new HashMap<String, Integer>();
+
+    private int maxQueued;
+    private long queueTimeoutMillis;
+    private int maxPerAddress;
+    private int retryAfterSeconds;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(FilterConfig config) throws ServletException {
+        slots = new Semaphore(getIntParameter(config, "maxConcurrent", 24), true);
+        maxQueued = getIntParameter(config, "maxQueued", 64);
+        queueTimeoutMillis = getIntParameter(config, "queueTimeoutMillis", 10000);
+        maxPerAddress = getIntParameter(config, "maxPerAddress", 4);
+        retryAfterSeconds = getIntParameter(config, "retryAfterSeconds", 30);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String address = request.getRemoteAddr();
+
+        if (!enterAddress(address)) {
+            log.info("Turning away " + address + ", it already has " + maxPerAddress + " requests in.");
+            sendRetryLater(httpResponse, SC_TOO_MANY_REQUESTS, retryAfterSeconds,
+                    "Too many requests from this address at once. Wait for some to finish.");
+            return;
+        }
+        try {
+            if (!acquireSlot()) {
+                log.info("Turning away " + address + ", the server is full.");
+                sendRetryLater(httpResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfterSeconds,
+                        "The server is too busy to take this request. Try again later.");
+                return;
+            }
+            Slot slot = new Slot();
+            request.setAttribute(SLOT_ATTRIBUTE, slot);
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                request.removeAttribute(SLOT_ATTRIBUTE);
+                slot.release();
+            }
+        } finally {
+            leaveAddress(address);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void destroy() {
+    }
+
+    /**
+     * Gives up a request's slot before the request finishes, for when it has
+     * finished with the database. Does nothing if the request wasn't admitted
+     * by the filter or has already given its slot up.
+     *
+     * @param request
+     *            The request.
+     */
+    static void releaseSlot(ServletRequest request) {
+        Object slot = request.getAttribute(SLOT_ATTRIBUTE);
+        if (slot instanceof Slot) {
+            ((Slot) slot).release();
+        }
+    }
+
+    /**
+     * Rejects a request, telling the client when it may try again.
+     *
+     * @param response
+     *            The response to reject.
+     * @param status
+     *            The status to reject it with.
+     * @param retryAfterSeconds
+     *            How long the client should wait before retrying.
+     * @param message
+     *            The explanation for the client.
+     * @throws IOException
+     *             if the response can't be written.
+     */
+    static void sendRetryLater(HttpServletResponse response, int status, int retryAfterSeconds, String message)
+            throws IOException {
+        response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        response.sendError(status, message);
+    }
+
+    private boolean acquireSlot() {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private boolean enterAddress(String address) {
+        synchronized (addressCounts) {
+            Integer count = addressCounts.get(address);
+            int newCount = (count == null ? 0 : count) + 1;
+            if (newCount > maxPerAddress) {
+                return false;
+            }
+            addressCounts.put(address, newCount);
+            return true;
+        }
+    }
+
+    private void leaveAddress(String address) {
+        synchronized (addressCounts) {
+            int count = addressCounts.get(address) - 1;
+            if (count == 0) {
+                addressCounts.remove(address);
+            } else {
+                addressCounts.put(address, count);
+            }
+        }
+    }
+
+    /**
+     * An admitted request's hold on a slot, which is only given back once
+     * however often it is released.
+     */
+    private class Slot {
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        void release() {
+            if (held.compareAndSet(true, false)) {
+                slots.release();
+            }
+        }
+    }
+
+    private static int getIntParameter(FilterConfig config, String name, int defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+}
@@ -1,17 +1,12 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.URLDecoder;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -24,9 +19,6 @@ import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
 import org.openstreetmap.osmosis.core.database.DatabasePreferences;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
 import org.openstreetmap.osmosis.core.time.DateFormatter;
-import org.openstreetmap.osmosis.core.time.DateParser;
-import org.openstreetmap.osmosis.core.util.PropertiesPersister;
-import org.springframework.dao.EmptyResultDataAccessException;
 
 import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
 import com.yellowbkpk.geo.xapi.db.PostgreSqlDatasetContext;
@@ -38,21 +30,12 @@ public class ApiServlet extends HttpServlet {
 
     private static final DatabasePreferences preferences = new DatabasePreferences(false, false);
 
-    private static final String LOCAL_STATE_FILE = "state.txt";
-
     private static Logger log = Logger.getLogger("API");
 
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         log.info("starting ApiServlet doGet");
 
-        String host = getServletContext().getInitParameter("xapi.db.host");
-        String database = getServletContext().getInitParameter("xapi.db.database");
-        String user = getServletContext().getInitParameter("xapi.db.username");
-        String password = getServletContext().getInitParameter("xapi.db.password");
-        DatabaseLoginCredentials loginCredentials = new DatabaseLoginCredentials(host, database, user, password, true,
-                false, null);
-
-        String workingDirectory = getServletContext().getInitParameter("xapi.workingDirectory");
+        DatabaseLoginCredentials loginCredentials = XapiContextListener.getLoginCredentials(getServletContext());
 
         String corsHeaderValue = getServletContext().getInitParameter("xapi.corsHeader");
 
@@ -60,7 +43,7 @@ public class ApiServlet extends HttpServlet {
         try {
             // Parse URL
             String primitiveType;
-            ArrayList<Long> ids = new ArrayList<Long>();
+            long[] ids;
             Filetype filetype = Filetype.xml;
             try {
                 StringBuffer urlBuffer = request.getRequestURL();
@@ -94,9 +77,9 @@ public class ApiServlet extends HttpServlet {
                 log.info("primitiveIdStr: " + primitiveIdStr);
 
                 String[] primitiveIds = primitiveIdStr.split(",");
-                ids.ensureCapacity(primitiveIds.length);
-                for (String string : primitiveIds) {
-                    ids.add(Long.parseLong(string));
+                ids = new long[primitiveIds.length];
+                for (int i = 0; i < primitiveIds.length; i++) {
+                    ids[i] = Long.parseLong(primitiveIds[i]);
                 }
 
                 log.info(primitiveType + " " + primitiveIdStr + " started.");
@@ -106,37 +89,22 @@ public class ApiServlet extends HttpServlet {
                 return;
             }
 
-            if (Filetype.geojson == filetype) {
-                PostgreSqlDatasetContext dCtx = null;
-                try {
-                    dCtx = new PostgreSqlDatasetContext(loginCredentials, preferences);
-
-                    String geoJSON;
-                    try {
-                        geoJSON = dCtx.primitivesAsGeoJSON(primitiveType, ids);
-                    } catch (IllegalArgumentException e) {
-                        response.sendError(500, "Could not write geojson: " + e.getMessage());
-                        return;
-                    } catch (EmptyResultDataAccessException e) {
-                        response.sendError(404, "Could not find that primitive.");
-                        return;
-                    }
+            Date planetDate = null;
+            try {
+                planetDate = XapiContextListener.getReplicationState(getServletContext()).getTimestamp();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
+            }
 
-                    log.info(geoJSON);
-                    response.addHeader("Content-Type", "application/json");
-                    OutputStream outputStream = response.getOutputStream();
-                    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream));
-                    out.write(geoJSON);
-                    out.flush();
-                    out.close();
-                    return;
-                } finally {
-                    if (dCtx != null) {
-                        // Don't need .complete() because no transaction is used.
-                        dCtx.release();
-                    }
-                }
+            // The elements can't have changed since the planet timestamp, so
+            // that much can be answered without the database.
+            if (request.getHeader("If-None-Match") == null
+                    && ConditionalGet.isNotModified(request, null, planetDate)) {
+                ConditionalGet.sendNotModified(response, null, planetDate);
+                tracker.complete();
+                return;
             }
+            String fingerprint = primitiveType + "/" + Arrays.toString(ids) + "." + filetype;
 
             if (!filetype.isSinkInstalled()) {
                 response.sendError(500, "I don't know how to serialize that.");
@@ -153,6 +121,21 @@ public class ApiServlet extends HttpServlet {
                 long start = System.currentTimeMillis();
                 datasetReader = new PostgreSqlDatasetContext(loginCredentials, preferences);
                 datasetReader.includeTimer(tracker);
+                datasetReader.setScratchTables(Boolean.parseBoolean(getServletContext().getInitParameter(
+                        "xapi.db.scratchTables")));
+                String fetchSize = getServletContext().getInitParameter("xapi.fetchSize.api");
+                if (fetchSize != null) {
+                    datasetReader.setFetchSize(Integer.parseInt(fetchSize));
+                }
+                String statementTimeout = getServletContext().getInitParameter("xapi.statementTimeout.api");
+                if (statementTimeout != null) {
+                    datasetReader.setStatementTimeout(Integer.parseInt(statementTimeout));
+                }
+
+                if (checkNotModified(datasetReader, request, response, fingerprint, primitiveType, ids, planetDate)) {
+                    tracker.complete();
+                    return;
+                }
 
                 if ("node".equals(primitiveType)) {
                     bboxData = datasetReader.iterateNodes(ids);
@@ -167,33 +150,25 @@ public class ApiServlet extends HttpServlet {
                 }
                 tracker.startSerialization();
                 middle = System.currentTimeMillis();
-                log.info(primitiveType + " " + ids + " complete: " + (middle - start) + "ms");
+                log.info(primitiveType + " " + Arrays.toString(ids) + " complete: " + (middle - start) + "ms");
 
                 // Build up a writer connected to the response output stream
                 response.setContentType(filetype.getContentTypeString());
 
                 OutputStream outputStream = response.getOutputStream();
-                String acceptEncodingHeader = request.getHeader("Accept-Encoding");
-                if (acceptEncodingHeader != null && acceptEncodingHeader.contains("gzip")) {
-                    outputStream = new GZIPOutputStream(outputStream);
-                    response.setHeader("Content-Encoding", "gzip");
-                }
+                ResponseCompression compression = XapiContextListener.getCompression(getServletContext(), "api");
+                outputStream = compression.open(response, outputStream, compression.negotiate(request));
 
                 if (corsHeaderValue != null) {
                     response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
                 }
 
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream));
-
                 // Serialize to the client
-                XapiSink sink = filetype.getSink(out);
+                XapiSink sink = filetype.getSink(outputStream);
 
-                try {
-                    Date planetDate = getDatabaseLastModifiedDate(workingDirectory);
+                if (planetDate != null) {
                     sink.setExtra("xapi:planetDate", new DateFormatter().format(planetDate));
                     sink.setExtra("xmlns:xapi", "http://jxapi.openstreetmap.org/");
-                } catch (Exception e) {
-                    log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
                 }
 
                 while (bboxData.hasNext()) {
@@ -203,12 +178,22 @@ public class ApiServlet extends HttpServlet {
 
                 sink.complete();
 
-                out.flush();
-                out.close();
+                outputStream.close();
                 tracker.elementsSerialized(elements);
             } catch (Exception e) {
                 tracker.error(e);
-                log.log(Level.WARNING, "Error serializing: ", e);
+                if (RequestFailures.isClientDisconnect(e)) {
+                    // Rows are only fetched as they are written, so nothing is
+                    // left running in the database once writing stops.
+                    log.info("Client disconnected after " + elements + " elements.");
+                } else if (RequestFailures.isQueryCancelled(e)) {
+                    log.warning("Query cancelled: " + e.getMessage());
+                    if (!response.isCommitted()) {
+                        response.sendError(503, "The query ran too long and was cancelled.");
+                    }
+                } else {
+                    log.log(Level.WARNING, "Error serializing: ", e);
+                }
                 return;
             } finally {
                 if (bboxData != null) {
@@ -221,7 +206,7 @@ public class ApiServlet extends HttpServlet {
             }
 
             long end = System.currentTimeMillis();
-            log.info(primitiveType + " " + ids + "Serialization complete: " + (end - middle) + "ms");
+            log.info(primitiveType + " " + Arrays.toString(ids) + "Serialization complete: " + (end - middle) + "ms");
             tracker.complete();
         } catch (OsmosisRuntimeException e) {
             tracker.error(e);
@@ -246,9 +231,27 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
-    private Date getDatabaseLastModifiedDate(String workingDirectory) {
-        PropertiesPersister localStatePersistor = new PropertiesPersister(new File(workingDirectory, LOCAL_STATE_FILE));
-        Properties properties = localStatePersistor.load();
-        return new DateParser().parse(properties.getProperty("timestamp"));
+    /**
+     * Checks the client's copy against the current versions of the elements
+     * asked for, so it stays valid across replication updates that don't
+     * touch them. Answers 304 if it is current, and otherwise sets the
+     * validators on the response about to be written.
+     *
+     * @return True if the request has been answered.
+     */
+    private boolean checkNotModified(PostgreSqlDatasetContext datasetReader, HttpServletRequest request,
+            HttpServletResponse response, String fingerprint, String primitiveType, long[] ids, Date planetDate) {
+        if (!"node".equals(primitiveType) && !"way".equals(primitiveType) && !"relation".equals(primitiveType)) {
+            return false;
+        }
+
+        String etag = ConditionalGet.etag(fingerprint,
+                ConditionalGet.hash(datasetReader.primitiveVersions(primitiveType, ids)));
+        if (ConditionalGet.isNotModified(request, etag, planetDate)) {
+            ConditionalGet.sendNotModified(response, etag, planetDate);
+            return true;
+        }
+        ConditionalGet.setValidators(response, etag, planetDate);
+        return false;
     }
 }
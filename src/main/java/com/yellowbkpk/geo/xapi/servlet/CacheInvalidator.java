@@ -0,0 +1,143 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+
+import com.yellowbkpk.geo.xapi.db.ChangeLocator;
+import com.yellowbkpk.geo.xapi.db.ChangedArea;
+
+/**
+ * Keeps the response and tile caches in step with replication. Whenever the
+ * replication state moves on, the osmChange files since the last one are read
+ * from the replication working directory and only the cached results they
+ * touch are dropped. Each file is named <tt>&lt;sequenceNumber&gt;.osc.gz</tt>
+ * after the sequence number it brought the database up to. The files are only
+ * read, cleaning them up is left to whoever writes them.
+ *
+ * A change file is usually moved into place just after state.txt is written,
+ * so one that isn't there yet is looked for again at the next few polls, with
+ * the caches standing aside until then. Without change files, or if one
+ * doesn't turn up, there's no telling what changed and the caches are emptied
+ * instead.
+ */
+public class CacheInvalidator implements ReplicationStateListener {
+
+    private static final String CHANGE_SUFFIX = ".osc.gz";
+
+    /**
+     * How many polls to look for a change file that hasn't appeared yet.
+     */
+    private static final int MISSING_FILE_POLLS = 3;
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private final DatabaseLoginCredentials loginCredentials;
+    private final File changeDirectory;
+    private final ResponseCache responseCache;
+    private final TileCache tileCache;
+    private long appliedSequenceNumber = -1;
+    private long missingSequenceNumber = -1;
+    private int missingPolls;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param loginCredentials
+     *            Contains all information required to connect to the database.
+     * @param changeDirectory
+     *            The directory the applied osmChange files are left in,
+     *            normally the replication working directory, or null to empty
+     *            the caches on every update.
+     * @param responseCache
+     *            The response cache, or null if there isn't one.
+     * @param tileCache
+     *            The tile cache, or null if there isn't one.
+     */
+    public CacheInvalidator(DatabaseLoginCredentials loginCredentials, File changeDirectory,
+            ResponseCache responseCache, TileCache tileCache) {
+        this.loginCredentials = loginCredentials;
+        this.changeDirectory = changeDirectory;
+        this.responseCache = responseCache;
+        this.tileCache = tileCache;
+    }
+
+    @Override
+    public boolean replicationStateChanged(ReplicationState state) {
+        long sequenceNumber = state.getSequenceNumber();
+        long planetTime = state.getTimestamp().getTime();
+        try {
+            long start = System.currentTimeMillis();
+            if (appliedSequenceNumber < 0 || changeDirectory == null || sequenceNumber <= appliedSequenceNumber) {
+                reset(planetTime);
+                log.info("Caches started at sequence " + sequenceNumber + ".");
+            } else if (!changeFile(sequenceNumber).exists()) {
+                if (sequenceNumber != missingSequenceNumber) {
+                    missingSequenceNumber = sequenceNumber;
+                    missingPolls = 0;
+                }
+                if (++missingPolls <= MISSING_FILE_POLLS) {
+                    // The caches are still at the old planet timestamp, so
+                    // they are bypassed until this is dealt with.
+                    log.fine("No change file " + changeFile(sequenceNumber)
+                            + " yet, looking again at the next poll.");
+                    return false;
+                }
+                log.warning("No change file " + changeFile(sequenceNumber) + ", emptying the caches.");
+                reset(planetTime);
+            } else {
+                ChangedArea area = locateChanges(sequenceNumber);
+                if (responseCache != null) {
+                    responseCache.advance(area, planetTime);
+                }
+                if (tileCache != null) {
+                    tileCache.advance(area, planetTime);
+                }
+                log.info("Caches moved on from sequence " + appliedSequenceNumber + " to " + sequenceNumber + " in "
+                        + (System.currentTimeMillis() - start) + "ms.");
+            }
+        } catch (RuntimeException e) {
+            // Nothing is known about what changed, so the caches start again.
+            log.log(Level.SEVERE, "Could not apply replication changes to the caches, emptying them.", e);
+            reset(planetTime);
+        }
+        appliedSequenceNumber = sequenceNumber;
+        missingSequenceNumber = -1;
+        return true;
+    }
+
+    private void reset(long planetTime) {
+        if (responseCache != null) {
+            responseCache.reset(planetTime);
+        }
+        if (tileCache != null) {
+            tileCache.reset(planetTime);
+        }
+    }
+
+    private File changeFile(long sequenceNumber) {
+        return new File(changeDirectory, sequenceNumber + CHANGE_SUFFIX);
+    }
+
+    /**
+     * Reads the change files since the last applied sequence number. One
+     * Osmosis run can cover several sequence numbers in a single file, so the
+     * numbers in between needn't have a file of their own.
+     */
+    private ChangedArea locateChanges(long sequenceNumber) {
+        ChangeLocator locator = new ChangeLocator();
+        for (long i = appliedSequenceNumber + 1; i <= sequenceNumber; i++) {
+            File file = changeFile(i);
+            if (file.exists()) {
+                XmlChangeReader reader = new XmlChangeReader(file, false, CompressionMethod.GZip);
+                reader.setChangeSink(locator);
+                reader.run();
+            }
+        }
+        return locator.locate(loginCredentials);
+    }
+}
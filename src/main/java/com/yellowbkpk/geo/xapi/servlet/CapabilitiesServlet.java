@@ -1,10 +1,8 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
-import java.util.Properties;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -12,18 +10,14 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.openstreetmap.osmosis.core.time.DateFormatter;
-import org.openstreetmap.osmosis.core.time.DateParser;
-import org.openstreetmap.osmosis.core.util.PropertiesPersister;
 
 public class CapabilitiesServlet extends HttpServlet {
-    private static final String LOCAL_STATE_FILE = "state.txt";
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         float maxBboxArea = Float.parseFloat(getServletContext().getInitParameter("xapi.max_bbox_area"));
 
-        String workingDirectory = getServletContext().getInitParameter("xapi.workingDirectory");
-        Date planetDate = getDatabaseLastModifiedDate(workingDirectory);
+        Date planetDate = XapiContextListener.getReplicationState(getServletContext()).getTimestamp();
         
         resp.setContentType("text/xml");
         PrintWriter writer = resp.getWriter();
@@ -44,10 +38,4 @@ public class CapabilitiesServlet extends HttpServlet {
         writer.close();
     }
 
-    private Date getDatabaseLastModifiedDate(String workingDirectory) {
-        PropertiesPersister localStatePersistor = new PropertiesPersister(new File(workingDirectory, LOCAL_STATE_FILE));
-        Properties properties = localStatePersistor.load();
-        return new DateParser().parse(properties.getProperty("timestamp"));
-    }
-
 }
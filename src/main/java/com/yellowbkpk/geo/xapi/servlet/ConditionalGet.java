@@ -0,0 +1,138 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Validators for conditional GETs, so clients polling for the same data get a
+ * 304 rather than the whole response again while it hasn't changed.
+ *
+ * The entity tags are weak because the same response may be sent gzipped or
+ * not, which makes the bytes differ while the data is the same.
+ */
+final class ConditionalGet {
+
+    private ConditionalGet() {
+    }
+
+    /**
+     * Builds an entity tag.
+     *
+     * @param fingerprint
+     *            Identifies what was asked for, including the format.
+     * @param version
+     *            Changes whenever the data in the response may have.
+     * @return The entity tag, quoted.
+     */
+    public static String etag(String fingerprint, String version) {
+        return "W/\"" + hash(fingerprint) + "-" + version + "\"";
+    }
+
+    /**
+     * Checks the request's preconditions. If-None-Match is used if it is
+     * present, otherwise If-Modified-Since.
+     *
+     * @param request
+     *            The request.
+     * @param etag
+     *            The response's current entity tag, or null if it hasn't one.
+     * @param lastModified
+     *            When the response's data last changed, or null if unknown.
+     * @return True if the client's copy is still current.
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, Date lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || weaken(candidate).equals(weaken(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (lastModified != null) {
+            long ifModifiedSince;
+            try {
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            // HTTP dates only go down to the second.
+            return ifModifiedSince >= 0 && lastModified.getTime() / 1000 <= ifModifiedSince / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the validators on a response, along with telling caches to check
+     * them before reusing it.
+     *
+     * @param response
+     *            The response.
+     * @param etag
+     *            The entity tag, or null if there isn't one.
+     * @param lastModified
+     *            When the data last changed, or null if unknown.
+     */
+    public static void setValidators(HttpServletResponse response, String etag, Date lastModified) {
+        if (etag != null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified != null) {
+            response.setDateHeader("Last-Modified", lastModified.getTime());
+        }
+        response.setHeader("Cache-Control", "no-cache");
+    }
+
+    /**
+     * Answers that the client's copy is still current.
+     *
+     * @param response
+     *            The response.
+     * @param etag
+     *            The entity tag, or null if there isn't one.
+     * @param lastModified
+     *            When the data last changed, or null if unknown.
+     */
+    public static void sendNotModified(HttpServletResponse response, String etag, Date lastModified) {
+        setValidators(response, etag, lastModified);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    private static String weaken(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Hashes a value down to something short enough for an entity tag.
+     *
+     * @param value
+     *            The value.
+     * @return The first 64 bits of its MD5, in hex.
+     */
+    public static String hash(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                byte b = hash[i];
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always available.", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always available.", e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+import com.yellowbkpk.geo.xapi.db.ChangedArea;
+
+/**
+ * The ids of the elements in a cached result, so that it can be dropped when
+ * one of them changes wherever the change was. Ids are held as arrays of
+ * longs to avoid boxing every one.
+ */
+class ElementIds {
+
+    private long[] nodeIds = new long[64];
+    private long[] wayIds = new long[64];
+    private long[] relationIds = new long[64];
+    private int nodeCount;
+    private int wayCount;
+    private int relationCount;
+
+    /**
+     * Records an element.
+     *
+     * @param entity
+     *            The element.
+     */
+    public void add(Entity entity) {
+        add(entity.getType(), entity.getId());
+    }
+
+    /**
+     * Records an element by its type and id. Anything but nodes, ways and
+     * relations is ignored.
+     *
+     * @param type
+     *            The element type.
+     * @param id
+     *            The element id.
+     */
+    public void add(EntityType type, long id) {
+        switch (type) {
+        case Node:
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+            }
+            nodeIds[nodeCount++] = id;
+            break;
+        case Way:
+            if (wayCount == wayIds.length) {
+                wayIds = Arrays.copyOf(wayIds, wayCount * 2);
+            }
+            wayIds[wayCount++] = id;
+            break;
+        case Relation:
+            if (relationCount == relationIds.length) {
+                relationIds = Arrays.copyOf(relationIds, relationCount * 2);
+            }
+            relationIds[relationCount++] = id;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Trims the arrays to size and sorts them, once everything has been added.
+     *
+     * @return This instance.
+     */
+    public ElementIds compact() {
+        nodeIds = Arrays.copyOf(nodeIds, nodeCount);
+        wayIds = Arrays.copyOf(wayIds, wayCount);
+        relationIds = Arrays.copyOf(relationIds, relationCount);
+        Arrays.sort(nodeIds);
+        Arrays.sort(wayIds);
+        Arrays.sort(relationIds);
+        return this;
+    }
+
+    /**
+     * @return The number of ids held.
+     */
+    public int size() {
+        return nodeCount + wayCount + relationCount;
+    }
+
+    /**
+     * Checks whether any of the elements changed.
+     *
+     * @param area
+     *            The changes.
+     * @return True if one of the elements is among them.
+     */
+    public boolean isChangedIn(ChangedArea area) {
+        return area.containsAny(nodeIds, wayIds, relationIds);
+    }
+
+    /**
+     * Writes the ids out, after {@link #compact()}.
+     *
+     * @param out
+     *            Where to write them.
+     * @throws IOException
+     *             if they can't be written.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        write(out, nodeIds);
+        write(out, wayIds);
+        write(out, relationIds);
+    }
+
+    /**
+     * Reads ids written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in
+     *            Where to read them from.
+     * @return The ids.
+     * @throws IOException
+     *             if they can't be read.
+     */
+    public static ElementIds readFrom(DataInput in) throws IOException {
+        ElementIds ids = new ElementIds();
+        ids.nodeIds = read(in);
+        ids.nodeCount = ids.nodeIds.length;
+        ids.wayIds = read(in);
+        ids.wayCount = ids.wayIds.length;
+        ids.relationIds = read(in);
+        ids.relationCount = ids.relationIds.length;
+        return ids;
+    }
+
+    private static void write(DataOutput out, long[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    private static long[] read(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt element id count " + count + ".");
+        }
+        long[] ids = new long[count];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readLong();
+        }
+        return ids;
+    }
+}
@@ -1,15 +1,26 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
 
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+import com.yellowbkpk.geo.xapi.writer.XapiRowSink;
 import com.yellowbkpk.geo.xapi.writer.XapiSink;
 
 public enum Filetype {
-    xml("text/xml; charset=utf-8", "com.yellowbkpk.geo.xapi.writer.XapiXmlWriter"),
+    xml("text/xml; charset=utf-8", "com.yellowbkpk.geo.xapi.writer.XapiDirectXmlWriter"),
     json("application/json", "com.yellowbkpk.geo.xapi.writer.XapiJsonWriter"),
-    geojson("application/geojson", null);
+    geojson("application/geo+json", "com.yellowbkpk.geo.xapi.writer.XapiGeoJsonWriter"),
+    pbf("application/x-protobuf", "com.yellowbkpk.geo.xapi.writer.XapiPbfWriter");
 
     private final String contentTypeStr;
     private final String filetypeSinkClassName;
@@ -24,14 +35,33 @@ public enum Filetype {
         return contentTypeStr;
     }
 
-    public XapiSink getSink(BufferedWriter writer) {
+    /**
+     * Creates a sink writing this format to a stream. Binary formats are
+     * written to it directly, text formats as UTF-8. The stream is flushed but
+     * not closed when the sink completes. Sinks that can write elements
+     * straight from database rows are returned as {@link XapiRowSink}s.
+     *
+     * @param output
+     *            The stream to write to.
+     * @return The sink, or null if its writer isn't installed.
+     */
+    public XapiSink getSink(OutputStream output) {
         try {
             if (isSinkInstalled()) {
+                if (OutputStream.class.equals(constructor.getParameterTypes()[0])) {
+                    return constructor.newInstance(output);
+                }
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
                 XapiSink sink = constructor.newInstance(writer);
-                return sink;
+                if (sink instanceof XapiRowSink) {
+                    return new TextRowSink((XapiRowSink) sink, writer);
+                }
+                return new TextSink(sink, writer);
             } else {
                 return null;
             }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Could not instantiate serialization sink.", e);
         } catch (SecurityException e) {
             throw new RuntimeException("Could not instantiate serialization sink.", e);
         } catch (InstantiationException e) {
@@ -48,10 +78,145 @@ public enum Filetype {
     public boolean isSinkInstalled() {
         try {
             Class<XapiSink> clazz = (Class<XapiSink>) Class.forName(filetypeSinkClassName);
-            constructor = clazz.getConstructor(new Class[] { BufferedWriter.class });
+            try {
+                constructor = clazz.getConstructor(new Class[] { OutputStream.class });
+            } catch (NoSuchMethodException e) {
+                constructor = clazz.getConstructor(new Class[] { BufferedWriter.class });
+            }
             return true;
         } catch (Exception e) {
             return false;
         }
     }
+
+    /**
+     * @return True if this format's writer is installed and can write
+     *         elements straight from database rows.
+     */
+    public boolean writesRows() {
+        return isSinkInstalled() && XapiRowSink.class.isAssignableFrom(constructor.getDeclaringClass());
+    }
+
+    /**
+     * Picks the format a client prefers from its Accept header, out of those
+     * whose writers are installed.
+     *
+     * @param acceptHeader
+     *            The Accept header, or null if there wasn't one.
+     * @param defaultType
+     *            The format to use if the client doesn't name any of ours.
+     * @return The format with the highest quality value, the earliest listed
+     *         winning a tie.
+     */
+    public static Filetype fromAcceptHeader(String acceptHeader, Filetype defaultType) {
+        if (acceptHeader == null) {
+            return defaultType;
+        }
+        Filetype best = defaultType;
+        double bestQuality = 0;
+        for (String range : acceptHeader.split(",")) {
+            String[] params = range.split(";");
+            String mediaType = params[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality <= bestQuality) {
+                continue;
+            }
+            if ("*/*".equals(mediaType)) {
+                best = defaultType;
+                bestQuality = quality;
+                continue;
+            }
+            for (Filetype filetype : values()) {
+                if (filetype.getMediaType().equals(mediaType) && filetype.isSinkInstalled()) {
+                    best = filetype;
+                    bestQuality = quality;
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private String getMediaType() {
+        int semicolon = contentTypeStr.indexOf(';');
+        return semicolon < 0 ? contentTypeStr : contentTypeStr.substring(0, semicolon);
+    }
+
+    /**
+     * Runs a text writer over its own writer, flushing that into the stream
+     * when the writer is done.
+     */
+    private static class TextSink implements XapiSink {
+        private final XapiSink sink;
+        private final BufferedWriter writer;
+
+        TextSink(XapiSink sink, BufferedWriter writer) {
+            this.sink = sink;
+            this.writer = writer;
+        }
+
+        public void setExtra(String key, String value) {
+            sink.setExtra(key, value);
+        }
+
+        public void initialize(Map<String, Object> metaData) {
+            sink.initialize(metaData);
+        }
+
+        public void process(EntityContainer entityContainer) {
+            sink.process(entityContainer);
+        }
+
+        public void complete() {
+            sink.complete();
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new OsmosisRuntimeException("Unable to flush the serialized data.", e);
+            }
+        }
+
+        public void release() {
+            sink.release();
+        }
+    }
+
+    /**
+     * A {@link TextSink} over a writer that also takes rows.
+     */
+    private static class TextRowSink extends TextSink implements XapiRowSink {
+        private final XapiRowSink sink;
+
+        TextRowSink(XapiRowSink sink, BufferedWriter writer) {
+            super(sink, writer);
+            this.sink = sink;
+        }
+
+        public void processNode(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, double latitude, double longitude) {
+            sink.processNode(id, version, timestamp, userId, userName, changesetId, tags, latitude, longitude);
+        }
+
+        public void processWay(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, long[] nodeIds, int nodeCount) {
+            sink.processWay(id, version, timestamp, userId, userName, changesetId, tags, nodeIds, nodeCount);
+        }
+
+        public void processRelation(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, long[] memberIds, EntityType[] memberTypes,
+                String[] memberRoles, int memberCount) {
+            sink.processRelation(id, version, timestamp, userId, userName, changesetId, tags, memberIds,
+                    memberTypes, memberRoles, memberCount);
+        }
+    }
 }
@@ -0,0 +1,464 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisConstants;
+import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.time.DateFormatter;
+
+import com.yellowbkpk.geo.xapi.db.DatabaseCapabilities;
+import com.yellowbkpk.geo.xapi.writer.XapiSink;
+
+/**
+ * A block of up to 8x8 tiles fetched with one bounding box query and then
+ * split into its tiles in memory, so neighbouring tiles don't each fetch and
+ * backfill the ways crossing between them.
+ *
+ * Each tile gets what its own bounding box query would have returned: the
+ * nodes inside it, the ways that query selects with all of their nodes, and
+ * the relations with a node or way in it along with their parent relations.
+ * Which ways a query selects depends on the way geometry the database has.
+ * Which tiles an element falls in is kept as a bit mask, one bit per tile.
+ */
+class Metatile {
+
+    /**
+     * The largest metatile, so that a tile's bit fits in a long.
+     */
+    public static final int MAX_SIZE = 8;
+
+    /**
+     * How far outside a tile, in tile widths, a node still counts as on its
+     * edge. The database's own test works on slightly different numbers, so
+     * a node right on an edge goes in both tiles rather than perhaps neither.
+     */
+    private static final double EDGE = 1e-9;
+
+    private final int zoom;
+    private final int minX;
+    private final int minY;
+    private final int columns;
+    private final int rows;
+    private final double[] lons;
+    private final double[] lats;
+
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final List<Way> ways = new ArrayList<Way>();
+    private final List<Relation> relations = new ArrayList<Relation>();
+
+    /**
+     * Creates the metatile containing a tile.
+     *
+     * @param zoom
+     *            The tile's zoom level.
+     * @param x
+     *            The tile's column.
+     * @param y
+     *            The tile's row.
+     * @param size
+     *            The number of tiles along each side, clipped to the edges of
+     *            the map.
+     */
+    public Metatile(int zoom, int x, int y, int size) {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Metatiles are 1 to " + MAX_SIZE + " tiles across.");
+        }
+        int tiles = 1 << zoom;
+        this.zoom = zoom;
+        this.minX = x - x % size;
+        this.minY = y - y % size;
+        this.columns = Math.min(size, tiles - minX);
+        this.rows = Math.min(size, tiles - minY);
+
+        lons = new double[columns + 1];
+        for (int i = 0; i <= columns; i++) {
+            lons[i] = TiledApiServlet.tile2lon(minX + i, zoom);
+        }
+        lats = new double[rows + 1];
+        for (int j = 0; j <= rows; j++) {
+            lats[j] = TiledApiServlet.tile2lat(minY + j, zoom);
+        }
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public double getLeft() {
+        return lons[0];
+    }
+
+    public double getRight() {
+        return lons[columns];
+    }
+
+    public double getTop() {
+        return lats[0];
+    }
+
+    public double getBottom() {
+        return lats[rows];
+    }
+
+    /**
+     * Takes an element from the metatile's bounding box query.
+     *
+     * @param container
+     *            The element. Bounds are ignored, each tile gets its own.
+     */
+    public void add(EntityContainer container) {
+        Entity entity = container.getEntity();
+        if (entity instanceof Node) {
+            nodes.add((Node) entity);
+        } else if (entity instanceof Way) {
+            ways.add((Way) entity);
+        } else if (entity instanceof Relation) {
+            relations.add((Relation) entity);
+        }
+    }
+
+    /**
+     * Splits the elements into tiles and writes each one gzipped to a
+     * rendering from the tile cache.
+     *
+     * @param tileCache
+     *            The cache the files are created in.
+     * @param compression
+     *            The compression to gzip the tiles with.
+     * @param filetype
+     *            The format to write the tiles in.
+     * @param planetDate
+     *            The planet timestamp to stamp into the tiles.
+     * @param capabilities
+     *            The way geometry of the database the elements came from.
+     * @return The renderings, keyed on the tile's column and row as
+     *         <tt>x/y</tt>. They are for the caller to add to the cache.
+     * @throws IOException
+     *             if a tile can't be written.
+     */
+    public Map<String, TileCache.Rendering> writeTiles(TileCache tileCache, ResponseCompression compression,
+            Filetype filetype, Date planetDate, DatabaseCapabilities capabilities) throws IOException {
+        Map<String, List<Entity>> tiles = split(capabilities);
+
+        Map<String, TileCache.Rendering> renderings = new HashMap<String, TileCache.Rendering>();
+        boolean written = false;
+        try {
+            for (int i = 0; i < columns; i++) {
+                for (int j = 0; j < rows; j++) {
+                    String key = (minX + i) + "/" + (minY + j);
+                    TileCache.Rendering rendering = tileCache.startRendering();
+                    renderings.put(key, rendering);
+
+                    OutputStream out = compression.open(new FileOutputStream(rendering.getFile()));
+                    try {
+                        XapiSink sink = filetype.getSink(out);
+                        if (planetDate != null) {
+                            sink.setExtra("xapi:planetDate", new DateFormatter().format(planetDate));
+                            sink.setExtra("xmlns:xapi", "http://jxapi.openstreetmap.org/");
+                        }
+                        sink.process(new BoundContainer(new Bound(lons[i + 1], lons[i], lats[j], lats[j + 1],
+                                "Osmosis " + OsmosisConstants.VERSION)));
+                        for (Entity entity : tiles.get(key)) {
+                            rendering.addEntity(entity);
+                            if (entity instanceof Node) {
+                                sink.process(new NodeContainer((Node) entity));
+                            } else if (entity instanceof Way) {
+                                sink.process(new WayContainer((Way) entity));
+                            } else {
+                                sink.process(new RelationContainer((Relation) entity));
+                            }
+                        }
+                        sink.complete();
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                for (TileCache.Rendering rendering : renderings.values()) {
+                    rendering.getFile().delete();
+                }
+            }
+        }
+        return renderings;
+    }
+
+    /**
+     * Works out what goes in each tile.
+     *
+     * @param capabilities
+     *            The way geometry of the database the elements came from,
+     *            which decides the ways a tile's own query would select.
+     * @return Each tile's nodes, ways and relations in that order, keyed on
+     *         the tile's column and row as <tt>x/y</tt>.
+     */
+    Map<String, List<Entity>> split(DatabaseCapabilities capabilities) {
+        Map<Long, Node> nodesById = new HashMap<Long, Node>();
+        Map<Long, Long> nodeMasks = new HashMap<Long, Long>();
+        for (Node node : nodes) {
+            nodesById.put(node.getId(), node);
+            nodeMasks.put(node.getId(), pointMask(node.getLongitude(), node.getLatitude()));
+        }
+
+        // A way is in the tiles whose own query would select it, and brings
+        // its nodes with it.
+        Map<Long, Long> wayMasks = new HashMap<Long, Long>();
+        Map<Long, Long> nodeOutputMasks = new HashMap<Long, Long>(nodeMasks);
+        for (Way way : ways) {
+            long mask = wayMask(way, nodesById, nodeMasks, capabilities);
+            wayMasks.put(way.getId(), mask);
+            for (WayNode wayNode : way.getWayNodes()) {
+                Long nodeMask = nodeOutputMasks.get(wayNode.getNodeId());
+                nodeOutputMasks.put(wayNode.getNodeId(), (nodeMask == null ? 0 : nodeMask) | mask);
+            }
+        }
+
+        // A relation is in the tiles of its nodes and ways, and its parents
+        // in those of their child relations, however deep that goes.
+        Map<Long, Long> relationMasks = new HashMap<Long, Long>();
+        for (Relation relation : relations) {
+            long mask = 0;
+            for (RelationMember member : relation.getMembers()) {
+                Long memberMask = null;
+                switch (member.getMemberType()) {
+                case Node:
+                    memberMask = nodeMasks.get(member.getMemberId());
+                    break;
+                case Way:
+                    memberMask = wayMasks.get(member.getMemberId());
+                    break;
+                default:
+                    break;
+                }
+                if (memberMask != null) {
+                    mask |= memberMask;
+                }
+            }
+            relationMasks.put(relation.getId(), mask);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Relation relation : relations) {
+                long mask = relationMasks.get(relation.getId());
+                for (RelationMember member : relation.getMembers()) {
+                    if (member.getMemberType() == EntityType.Relation) {
+                        Long childMask = relationMasks.get(member.getMemberId());
+                        if (childMask != null && (mask | childMask) != mask) {
+                            mask |= childMask;
+                            changed = true;
+                        }
+                    }
+                }
+                relationMasks.put(relation.getId(), mask);
+            }
+        }
+
+        Map<String, List<Entity>> tiles = new HashMap<String, List<Entity>>();
+        for (int i = 0; i < columns; i++) {
+            for (int j = 0; j < rows; j++) {
+                long bit = bit(i, j);
+                List<Entity> tile = new ArrayList<Entity>();
+                for (Node node : nodes) {
+                    if ((nodeOutputMasks.get(node.getId()) & bit) != 0) {
+                        tile.add(node);
+                    }
+                }
+                for (Way way : ways) {
+                    if ((wayMasks.get(way.getId()) & bit) != 0) {
+                        tile.add(way);
+                    }
+                }
+                for (Relation relation : relations) {
+                    if ((relationMasks.get(relation.getId()) & bit) != 0) {
+                        tile.add(relation);
+                    }
+                }
+                tiles.put((minX + i) + "/" + (minY + j), tile);
+            }
+        }
+        return tiles;
+    }
+
+    private long bit(int column, int row) {
+        return 1L << (row * MAX_SIZE + column);
+    }
+
+    /**
+     * Finds the tiles a point is in, counting a point on an edge as in the
+     * tiles either side.
+     */
+    private long pointMask(double lon, double lat) {
+        int tiles = 1 << zoom;
+        double fx = (lon + 180.0) / 360.0 * tiles - minX;
+        double latRad = Math.toRadians(Math.max(-85.0511, Math.min(85.0511, lat)));
+        double fy = (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * tiles - minY;
+
+        int fromColumn = Math.max(0, (int) Math.floor(fx - EDGE));
+        int toColumn = Math.min(columns - 1, (int) Math.floor(fx + EDGE));
+        int fromRow = Math.max(0, (int) Math.floor(fy - EDGE));
+        int toRow = Math.min(rows - 1, (int) Math.floor(fy + EDGE));
+
+        long mask = 0;
+        for (int i = fromColumn; i <= toColumn; i++) {
+            for (int j = fromRow; j <= toRow; j++) {
+                mask |= bit(i, j);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Finds the tiles a way is in, matching them the way the database's
+     * bounding box query does. With way linestrings, those are the tiles the
+     * way crosses: those its nodes are in, and those its segments pass
+     * through without a node in them. With way bboxes, they are the tiles
+     * its envelope overlaps, and otherwise the tiles its nodes are in.
+     */
+    private long wayMask(Way way, Map<Long, Node> nodesById, Map<Long, Long> nodeMasks,
+            DatabaseCapabilities capabilities) {
+        if (!capabilities.isWayLinestringSupported() && capabilities.isWayBboxSupported()) {
+            return envelopeMask(way, nodesById);
+        }
+        boolean segments = capabilities.isWayLinestringSupported();
+        long mask = 0;
+        Node previous = null;
+        for (WayNode wayNode : way.getWayNodes()) {
+            Long nodeMask = nodeMasks.get(wayNode.getNodeId());
+            if (nodeMask != null) {
+                mask |= nodeMask;
+            }
+            Node node = nodesById.get(wayNode.getNodeId());
+            if (segments && node != null && previous != null) {
+                mask |= segmentMask(previous.getLongitude(), previous.getLatitude(), node.getLongitude(),
+                        node.getLatitude());
+            }
+            previous = node;
+        }
+        return mask;
+    }
+
+    /**
+     * Finds the tiles a way's envelope overlaps. PostGIS compares boxes in
+     * single precision, each rounded outwards, so the envelope and the tile
+     * edges are rounded the same way here.
+     */
+    private long envelopeMask(Way way, Map<Long, Node> nodesById) {
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (WayNode wayNode : way.getWayNodes()) {
+            Node node = nodesById.get(wayNode.getNodeId());
+            if (node != null) {
+                minLon = Math.min(minLon, node.getLongitude());
+                maxLon = Math.max(maxLon, node.getLongitude());
+                minLat = Math.min(minLat, node.getLatitude());
+                maxLat = Math.max(maxLat, node.getLatitude());
+            }
+        }
+        if (minLon > maxLon) {
+            return 0;
+        }
+        minLon = floatDown(minLon);
+        maxLon = floatUp(maxLon);
+        minLat = floatDown(minLat);
+        maxLat = floatUp(maxLat);
+
+        long mask = 0;
+        for (int i = 0; i < columns; i++) {
+            if (floatUp(lons[i + 1]) < minLon || floatDown(lons[i]) > maxLon) {
+                continue;
+            }
+            for (int j = 0; j < rows; j++) {
+                if (floatUp(lats[j]) < minLat || floatDown(lats[j + 1]) > maxLat) {
+                    continue;
+                }
+                mask |= bit(i, j);
+            }
+        }
+        return mask;
+    }
+
+    private static double floatDown(double value) {
+        float rounded = (float) value;
+        return rounded <= value ? rounded : Math.nextAfter(rounded, Double.NEGATIVE_INFINITY);
+    }
+
+    private static double floatUp(double value) {
+        float rounded = (float) value;
+        return rounded >= value ? rounded : Math.nextUp(rounded);
+    }
+
+    private long segmentMask(double lon1, double lat1, double lon2, double lat2) {
+        long mask = 0;
+        for (int i = 0; i < columns; i++) {
+            if (Math.max(lon1, lon2) < lons[i] || Math.min(lon1, lon2) > lons[i + 1]) {
+                continue;
+            }
+            for (int j = 0; j < rows; j++) {
+                if (Math.max(lat1, lat2) < lats[j + 1] || Math.min(lat1, lat2) > lats[j]) {
+                    continue;
+                }
+                if (segmentCrosses(lon1, lat1, lon2, lat2, lons[i], lons[i + 1], lats[j + 1], lats[j])) {
+                    mask |= bit(i, j);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Clips a segment to a box, Liang-Barsky style, to tell whether any of it
+     * is inside.
+     */
+    private static boolean segmentCrosses(double x1, double y1, double x2, double y2, double left, double right,
+            double bottom, double top) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x1 - left, right - x1, y1 - bottom, top - y1 };
+        double enter = 0;
+        double exit = 1;
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[k] / p[k];
+                if (p[k] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    exit = Math.min(exit, t);
+                }
+            }
+        }
+        return enter <= exit;
+    }
+}
@@ -0,0 +1,343 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip data, compressing it on a pool of threads in the way pigz
+ * does. What is written is split into blocks which are deflated
+ * independently, each primed with the end of the block before it, and ended
+ * with a sync flush so the compressed blocks can simply be written one after
+ * another. The result is a single ordinary gzip member.
+ *
+ * Nothing is compressed until a response reaches the size it is worth
+ * splitting at. A response closed before then is compressed in one go on the
+ * writing thread instead. So is every response if the runtime's
+ * {@link Deflater} can't sync flush, which needs Java 7.
+ */
+class ParallelGzipOutputStream extends FilterOutputStream {
+
+    /**
+     * The amount of input deflated as one block.
+     */
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * The most a deflate stream can refer back, so the most of the previous
+     * block worth priming the next one with.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+
+    /**
+     * Each pool thread keeps a deflater for every level it has been asked
+     * for, indexed by level + 1 so the default level of -1 fits.
+     */
+    private static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+    };
+
+    private final int level;
+    private final Executor pool;
+    private final int maxPending;
+    private final int minParallelBytes;
+
+    private final CRC32 crc = new CRC32();
+    private long inputLength;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+
+    private final List<byte[]> held = new ArrayList<byte[]>();
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private byte[] previous;
+    private boolean parallel;
+    private Deflater deflater;
+    private byte[] deflated;
+    private boolean closed;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param out
+     *            The stream to write the gzip data to.
+     * @param level
+     *            The deflate compression level, 0-9 or -1 for the default.
+     * @param pool
+     *            The threads to compress blocks on, or null to compress
+     *            everything on the writing thread.
+     * @param threads
+     *            The number of threads in the pool. Up to twice as many blocks
+     *            are compressed or waiting to be written at once.
+     * @param minParallelBytes
+     *            The size a response must reach before it is compressed on
+     *            the pool. Up to this much is held before anything is written.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level, Executor pool, int threads, int minParallelBytes) {
+        super(out);
+        this.level = level;
+        this.pool = SYNC_FLUSH_SUPPORTED ? pool : null;
+        this.maxPending = Math.max(2, threads * 2);
+        this.minParallelBytes = minParallelBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            endBlock();
+        }
+        block[blockLength++] = (byte) b;
+        crc.update(b);
+        inputLength++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        inputLength += len;
+        while (len > 0) {
+            if (blockLength == block.length) {
+                endBlock();
+            }
+            int count = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes out the blocks that have been compressed so far, in order, and
+     * flushes the underlying stream. Blocks still being compressed are left
+     * for later.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (parallel) {
+            writeCompleted(false);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (parallel) {
+                submit(block, blockLength, true);
+                writeCompleted(true);
+            } else {
+                for (byte[] heldBlock : held) {
+                    deflate(heldBlock, heldBlock.length, false);
+                }
+                held.clear();
+                deflate(block, blockLength, true);
+            }
+            writeTrailer();
+            out.close();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Hands a full block on, holding it while the response is too small to
+     * be worth compressing in parallel.
+     */
+    private void endBlock() throws IOException {
+        if (pool == null) {
+            // The block has been used up, so it can be filled again.
+            deflate(block, blockLength, false);
+            blockLength = 0;
+            return;
+        }
+
+        if (parallel) {
+            submit(block, blockLength, false);
+        } else {
+            held.add(block);
+            if (inputLength >= minParallelBytes) {
+                parallel = true;
+                out.write(HEADER);
+                for (byte[] heldBlock : held) {
+                    submit(heldBlock, heldBlock.length, false);
+                }
+                held.clear();
+            }
+        }
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    /**
+     * Queues a block to be compressed, first writing out whatever has been
+     * compressed already and waiting for the oldest block if too many are
+     * outstanding.
+     */
+    private void submit(byte[] data, int length, boolean last) throws IOException {
+        writeCompleted(false);
+        while (pending.size() >= maxPending) {
+            out.write(await(pending.removeFirst()));
+        }
+
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new DeflateTask(level, previous, data, length, last));
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The pool has been shut down, so carry on without it.
+            task.run();
+        }
+        pending.add(task);
+        previous = data;
+    }
+
+    /**
+     * Writes out compressed blocks from the front of the queue.
+     *
+     * @param wait
+     *            Whether to wait for all of them, or to stop at the first
+     *            which isn't done yet.
+     */
+    private void writeCompleted(boolean wait) throws IOException {
+        while (!pending.isEmpty() && (wait || pending.getFirst().isDone())) {
+            out.write(await(pending.removeFirst()));
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block to be compressed.");
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Unable to compress a block.");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Compresses a block as part of one deflate stream on this thread.
+     */
+    private void deflate(byte[] data, int length, boolean last) throws IOException {
+        if (deflater == null) {
+            out.write(HEADER);
+            deflater = new Deflater(level, true);
+            deflated = new byte[8192];
+        }
+        deflater.setInput(data, 0, length);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(deflated, 0, deflater.deflate(deflated));
+            }
+        } else {
+            while (!deflater.needsInput()) {
+                out.write(deflated, 0, deflater.deflate(deflated));
+            }
+        }
+    }
+
+    private void writeTrailer() throws IOException {
+        writeIntLE(crc.getValue());
+        writeIntLE(inputLength);
+    }
+
+    private void writeIntLE(long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >> 8) & 0xff);
+        out.write((int) (value >> 16) & 0xff);
+        out.write((int) (value >> 24) & 0xff);
+    }
+
+    private static boolean isSyncFlushSupported() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deflates one block into a run of raw deflate data that ends on a byte
+     * boundary, or ends the stream if it is the last block.
+     */
+    private static class DeflateTask implements Callable<byte[]> {
+        private final int level;
+        private final byte[] dictionary;
+        private final byte[] data;
+        private final int length;
+        private final boolean last;
+
+        DeflateTask(int level, byte[] dictionary, byte[] data, int length, boolean last) {
+            this.level = level;
+            this.dictionary = dictionary;
+            this.data = data;
+            this.length = length;
+            this.last = last;
+        }
+
+        public byte[] call() {
+            Deflater[] threadDeflaters = deflaters.get();
+            Deflater deflater = threadDeflaters[level + 1];
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+                threadDeflaters[level + 1] = deflater;
+            } else {
+                deflater.reset();
+            }
+
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16384];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        }
+    }
+}
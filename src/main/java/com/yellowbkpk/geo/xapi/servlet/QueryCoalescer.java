@@ -0,0 +1,80 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lets identical queries arriving at the same time share one database query.
+ * The first request for a key becomes the leader and runs the query, writing
+ * the result into a {@link ResultSpool}. Requests for the same key arriving
+ * before it finishes follow it, streaming the same spool to their clients.
+ */
+class QueryCoalescer {
+
+    private final Map<String, ResultSpool> inFlight = new HashMap<String, ResultSpool>();
+
+    /**
+     * A request's part in a shared query.
+     */
+    public static class Flight {
+        private final String key;
+        private final ResultSpool spool;
+        private final boolean leader;
+
+        Flight(String key, ResultSpool spool, boolean leader) {
+            this.key = key;
+            this.spool = spool;
+            this.leader = leader;
+        }
+
+        /**
+         * @return True if this request must run the query and write the spool.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        public ResultSpool getSpool() {
+            return spool;
+        }
+    }
+
+    /**
+     * Joins the query running for a key, or starts one.
+     *
+     * @param key
+     *            Identifies the result, equal for requests that return the
+     *            same result.
+     * @return The request's flight, which must be passed to
+     *         {@link #leave(Flight)} when the request is done.
+     */
+    public synchronized Flight join(String key) {
+        ResultSpool spool = inFlight.get(key);
+        if (spool != null && spool.retain()) {
+            return new Flight(key, spool, false);
+        }
+
+        spool = new ResultSpool();
+        inFlight.put(key, spool);
+        return new Flight(key, spool, true);
+    }
+
+    /**
+     * Leaves a flight. When the leader leaves no more requests can join, and
+     * if it leaves without having completed the result the followers fail.
+     *
+     * @param flight
+     *            The flight returned by {@link #join(String)}.
+     */
+    public void leave(Flight flight) {
+        if (flight.leader) {
+            flight.spool.abandon();
+            synchronized (this) {
+                if (inFlight.get(flight.key) == flight.spool) {
+                    inFlight.remove(flight.key);
+                }
+            }
+        }
+        flight.spool.release();
+    }
+}
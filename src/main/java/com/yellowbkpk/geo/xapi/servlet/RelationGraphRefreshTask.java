@@ -0,0 +1,68 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+
+import com.yellowbkpk.geo.xapi.db.RelationGraph;
+
+/**
+ * Loads the relation graph and reloads it whenever replication has moved the
+ * database on since the last load, going by the replication sequence number.
+ * As a listener it passes each new sequence number on to
+ * {@link RelationGraph#setCurrentSequenceNumber(long)} straight away, so
+ * queries go back to the database from then until the next reload.
+ */
+public class RelationGraphRefreshTask extends TimerTask implements ReplicationStateListener {
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private final DatabaseLoginCredentials loginCredentials;
+    private final ReplicationStateService replicationState;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param loginCredentials
+     *            Contains all information required to connect to the database.
+     * @param replicationState
+     *            Tells how far replication has got.
+     */
+    public RelationGraphRefreshTask(DatabaseLoginCredentials loginCredentials,
+            ReplicationStateService replicationState) {
+        this.loginCredentials = loginCredentials;
+        this.replicationState = replicationState;
+    }
+
+    @Override
+    public boolean replicationStateChanged(ReplicationState state) {
+        RelationGraph.setCurrentSequenceNumber(state.getSequenceNumber());
+        return true;
+    }
+
+    @Override
+    public void run() {
+        // An exception escaping from here would stop the timer for good.
+        try {
+            // The state is read before loading, so if replication moves on
+            // during the load the graph is tagged as older than it may be
+            // and simply isn't used.
+            ReplicationState state = replicationState.getState();
+            long sequenceNumber = state == null ? RelationGraph.NO_SEQUENCE_NUMBER : state.getSequenceNumber();
+            RelationGraph shared = RelationGraph.getShared();
+            if (shared != null && shared.getSequenceNumber() == sequenceNumber) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            RelationGraph graph = RelationGraph.load(loginCredentials, sequenceNumber);
+            RelationGraph.setShared(graph);
+            log.info("Loaded " + graph.size() + " relation memberships at sequence " + sequenceNumber + " in "
+                    + (System.currentTimeMillis() - start) + "ms.");
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Could not load the relation graph.", e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Properties;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.time.DateParser;
+import org.openstreetmap.osmosis.core.util.PropertiesPersister;
+
+/**
+ * The point replication has brought the database up to, as recorded in the
+ * state.txt Osmosis keeps in its working directory.
+ */
+public final class ReplicationState {
+
+    private static final String LOCAL_STATE_FILE = "state.txt";
+
+    private final long sequenceNumber;
+    private final Date timestamp;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sequenceNumber
+     *            The sequence number of the last change applied.
+     * @param timestamp
+     *            The planet timestamp the changes bring the data up to.
+     */
+    public ReplicationState(long sequenceNumber, Date timestamp) {
+        this.sequenceNumber = sequenceNumber;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Reads the state file from a working directory.
+     *
+     * @param workingDirectory
+     *            The directory holding state.txt.
+     * @return The replication state.
+     * @throws OsmosisRuntimeException
+     *             if the file can't be read or is incomplete.
+     */
+    public static ReplicationState read(String workingDirectory) {
+        Properties properties = new PropertiesPersister(new File(workingDirectory, LOCAL_STATE_FILE)).load();
+        String sequenceNumber = properties.getProperty("sequenceNumber");
+        String timestamp = properties.getProperty("timestamp");
+        if (sequenceNumber == null || timestamp == null) {
+            throw new OsmosisRuntimeException("The state file in " + workingDirectory + " is incomplete.");
+        }
+        return new ReplicationState(Long.parseLong(sequenceNumber.trim()), new DateParser().parse(timestamp.trim()));
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+}
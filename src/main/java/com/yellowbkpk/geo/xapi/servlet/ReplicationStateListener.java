@@ -0,0 +1,19 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+/**
+ * Told by {@link ReplicationStateService} whenever replication moves the
+ * database on.
+ */
+public interface ReplicationStateListener {
+
+    /**
+     * Called with the first state read and then with every new one, always
+     * from the service's polling thread.
+     *
+     * @param state
+     *            The new replication state.
+     * @return True once the state has been dealt with, false to be told about
+     *         it again at the next poll unless a newer one has come by then.
+     */
+    boolean replicationStateChanged(ReplicationState state);
+}
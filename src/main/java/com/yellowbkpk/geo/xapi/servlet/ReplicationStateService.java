@@ -0,0 +1,155 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the replication state in memory so requests don't each read and parse
+ * state.txt. The file is polled for changes in the background, and only read
+ * again when its modification time or size has changed, at which point the
+ * listeners are told.
+ *
+ * A state file that can't be read, or is caught half written, is logged and
+ * tried again at the next poll; the last good state stays current until then.
+ * A listener that isn't ready for a state is told it again at each poll until
+ * it is, or until a newer state replaces it.
+ */
+public class ReplicationStateService {
+
+    private static final String LOCAL_STATE_FILE = "state.txt";
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private final String workingDirectory;
+    private final File stateFile;
+    private final List<ReplicationStateListener> listeners = new CopyOnWriteArrayList<ReplicationStateListener>();
+    /**
+     * Only used by the refreshes, which run one after another.
+     */
+    private final List<ReplicationStateListener> retrying = new ArrayList<ReplicationStateListener>();
+    private volatile ReplicationState state;
+    private long readLastModified = -1;
+    private long readLength = -1;
+    private Timer timer;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param workingDirectory
+     *            The directory holding the replication state.txt.
+     */
+    public ReplicationStateService(String workingDirectory) {
+        this.workingDirectory = workingDirectory;
+        this.stateFile = new File(workingDirectory, LOCAL_STATE_FILE);
+    }
+
+    /**
+     * Adds a listener. Listeners added before {@link #start(long)} are told
+     * about the first state read.
+     *
+     * @param listener
+     *            The listener.
+     */
+    public void addListener(ReplicationStateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reads the state and starts polling it.
+     *
+     * @param pollMillis
+     *            How often to check the file for changes.
+     */
+    public synchronized void start(long pollMillis) {
+        refresh();
+        timer = new Timer("replication-state", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, pollMillis, pollMillis);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * @return The replication state as of the last poll, or null if it has
+     *         never been read.
+     */
+    public ReplicationState getState() {
+        return state;
+    }
+
+    /**
+     * Checks the state file and reads it again if it has changed.
+     */
+    void refresh() {
+        ReplicationState newState = readIfChanged();
+        List<ReplicationStateListener> toTell;
+        if (newState != null) {
+            toTell = listeners;
+        } else if (!retrying.isEmpty()) {
+            newState = state;
+            toTell = new ArrayList<ReplicationStateListener>(retrying);
+        } else {
+            return;
+        }
+        retrying.clear();
+
+        // Refreshes run one after another, first from start() and then from
+        // the timer, so listeners are told of each state in order.
+        for (ReplicationStateListener listener : toTell) {
+            try {
+                if (!listener.replicationStateChanged(newState)) {
+                    retrying.add(listener);
+                }
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Replication state listener " + listener + " failed.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The new state, or null if it hasn't changed or can't be read.
+     */
+    private synchronized ReplicationState readIfChanged() {
+        long lastModified = stateFile.lastModified();
+        long length = stateFile.length();
+        if (lastModified == 0 || (lastModified == readLastModified && length == readLength)) {
+            return null;
+        }
+
+        ReplicationState newState;
+        try {
+            newState = ReplicationState.read(workingDirectory);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Could not read " + stateFile + ", will try again.", e);
+            return null;
+        }
+        readLastModified = lastModified;
+        readLength = length;
+
+        ReplicationState oldState = state;
+        if (oldState != null && oldState.getSequenceNumber() == newState.getSequenceNumber()
+                && oldState.getTimestamp().equals(newState.getTimestamp())) {
+            return null;
+        }
+        state = newState;
+        return newState;
+    }
+}
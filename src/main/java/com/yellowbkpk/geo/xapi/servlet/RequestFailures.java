@@ -0,0 +1,59 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Tells apart the ways a request can fail which aren't errors in the server,
+ * by looking through the chain of causes of the exception it failed with.
+ */
+final class RequestFailures {
+
+    /**
+     * The SQL state PostgreSQL reports when a statement is cancelled, either
+     * by statement_timeout or on request.
+     */
+    private static final String QUERY_CANCELED = "57014";
+
+    private RequestFailures() {
+    }
+
+    /**
+     * Checks whether a request failed because writing to the client did,
+     * which is what happens when the client has gone away.
+     *
+     * @param e
+     *            The exception the request failed with.
+     * @return True if the client disconnected.
+     */
+    public static boolean isClientDisconnect(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            // The driver wraps failures talking to the database in an
+            // SQLException, those aren't the client's doing.
+            if (cause instanceof SQLException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a request failed because its statement was cancelled,
+     * either for running past the statement timeout or by being killed.
+     *
+     * @param e
+     *            The exception the request failed with.
+     * @return True if the database cancelled the statement.
+     */
+    public static boolean isQueryCancelled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && QUERY_CANCELED.equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
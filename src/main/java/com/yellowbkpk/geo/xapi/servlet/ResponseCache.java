@@ -0,0 +1,367 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+import com.yellowbkpk.geo.xapi.db.ChangedArea;
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
+
+/**
+ * Keeps the compressed responses of recent queries in memory so repeated
+ * queries are answered without touching the database or serializing
+ * anything. Every response is held in one content coding, and is recoded
+ * for clients that want another. Entries are keyed on the canonical query, and the least recently
+ * used ones are evicted to keep the total size under a limit.
+ *
+ * The cache is valid for one planet timestamp at a time. When replication
+ * moves the database on, {@link #advance(ChangedArea, long)} drops the entries
+ * the changes touch and the rest carry on. Until that has happened the cache
+ * neither answers nor accepts responses for the new timestamp.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final ContentCodec encoding;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long planetTime = -1;
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes
+     *            The most compressed bytes to hold in total.
+     * @param maxEntryBytes
+     *            The largest response worth holding. Bigger ones are served
+     *            but not kept.
+     * @param encoding
+     *            The coding to hold responses in.
+     */
+    public ResponseCache(long maxBytes, int maxEntryBytes, ContentCodec encoding) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return The coding responses are held in.
+     */
+    public ContentCodec getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Looks up a response.
+     *
+     * @param key
+     *            The canonical query.
+     * @param currentPlanetTime
+     *            The planet timestamp the database is at.
+     * @return The response in the cache's coding, or null if it isn't held.
+     */
+    public synchronized byte[] get(String key, long currentPlanetTime) {
+        Entry entry = null;
+        if (currentPlanetTime == planetTime) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data;
+    }
+
+    /**
+     * Adds a response, evicting the least recently used ones to make room.
+     *
+     * @param key
+     *            The canonical query.
+     * @param capture
+     *            The capture holding the compressed response and what it
+     *            contains.
+     * @param bounds
+     *            The box the query was limited to as left, right, top and
+     *            bottom, or null if it covers the whole planet.
+     * @param renderedPlanetTime
+     *            The planet timestamp the response was produced against.
+     */
+    public void put(String key, Capture capture, double[] bounds, long renderedPlanetTime) {
+        // Copying, possibly recoding, and sorting the ids is done before
+        // taking the lock every lookup needs.
+        Entry entry = capture.toEntry(bounds);
+        if (entry == null || entry.size() > maxEntryBytes) {
+            return;
+        }
+
+        synchronized (this) {
+            if (renderedPlanetTime != planetTime) {
+                // Replication has moved on while the query ran.
+                return;
+            }
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.size();
+            }
+            size += entry.size();
+
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                size -= iterator.next().getValue().size();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Moves the cache on to a new planet timestamp, dropping the responses
+     * that changes since the last one may have affected. Responses to queries
+     * limited to a box are dropped if a change falls in the box or they hold a
+     * changed element, others if anything changed at all.
+     *
+     * @param area
+     *            Where the changes were.
+     * @param newPlanetTime
+     *            The planet timestamp after the changes.
+     */
+    public synchronized void advance(ChangedArea area, long newPlanetTime) {
+        if (!area.isEmpty()) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.isAffectedBy(area)) {
+                    size -= entry.size();
+                    iterator.remove();
+                }
+            }
+        }
+        planetTime = newPlanetTime;
+    }
+
+    /**
+     * Empties the cache and starts it again at a planet timestamp, for when
+     * there's no telling what changed.
+     *
+     * @param newPlanetTime
+     *            The planet timestamp the database is at.
+     */
+    public synchronized void reset(long newPlanetTime) {
+        entries.clear();
+        size = 0;
+        planetTime = newPlanetTime;
+    }
+
+    /**
+     * Opens a stream that passes everything written to it on and keeps a copy
+     * for the cache, giving up on the copy once it outgrows the largest entry.
+     *
+     * @param out
+     *            The stream to pass writes on to.
+     * @return The capturing stream.
+     */
+    public Capture capture(OutputStream out) {
+        return new Capture(out, maxEntryBytes, encoding);
+    }
+
+    /**
+     * Decodes data from one coding and encodes it in another.
+     *
+     * @param data
+     *            The encoded data.
+     * @param from
+     *            The coding the data is in, or null if it isn't encoded.
+     * @param to
+     *            The coding to encode it in.
+     * @return The data in the new coding.
+     */
+    static byte[] recode(byte[] data, ContentCodec from, ContentCodec to) {
+        try {
+            InputStream in = new ByteArrayInputStream(data);
+            if (from != null) {
+                in = from.decode(in);
+            }
+            ByteArrayOutputStream recoded = new ByteArrayOutputStream(data.length / 2);
+            OutputStream out = to.encode(recoded, -1);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            in.close();
+            return recoded.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to recode in memory.", e);
+        }
+    }
+
+    /**
+     * @return The number of compressed bytes held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * A cached response along with what it covers.
+     */
+    private static class Entry {
+        private final byte[] data;
+        private final double[] bounds;
+        private final ElementIds elements;
+
+        Entry(byte[] data, double[] bounds, ElementIds elements) {
+            this.data = data;
+            this.bounds = bounds;
+            this.elements = elements;
+        }
+
+        boolean isAffectedBy(ChangedArea area) {
+            if (bounds == null) {
+                return true;
+            }
+            return area.intersects(bounds[0], bounds[1], bounds[2], bounds[3])
+                    || elements.isChangedIn(area);
+        }
+
+        long size() {
+            return data.length + 8L * elements.size();
+        }
+    }
+
+    /**
+     * Copies what is written through it, up to a limit, and records which
+     * elements it holds.
+     */
+    public static class Capture extends FilterOutputStream {
+        private final int limit;
+        private final ContentCodec storage;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private ContentCodec encoding;
+        private final ElementIds elements = new ElementIds();
+
+        Capture(OutputStream out, int limit, ContentCodec storage) {
+            super(out);
+            this.limit = limit;
+            this.storage = storage;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                // The copy would be missing whatever didn't get through.
+                copy = null;
+                throw e;
+            }
+            if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                copy = null;
+                throw e;
+            }
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                copy = null;
+                throw e;
+            }
+        }
+
+        /**
+         * Notes the coding what is written is already in.
+         *
+         * @param encoding
+         *            The coding, or null if the writes aren't encoded.
+         */
+        public void setEncoding(ContentCodec encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * Records an element written to the response.
+         *
+         * @param entity
+         *            The element.
+         */
+        public void addEntity(Entity entity) {
+            if (copy != null) {
+                elements.add(entity);
+            }
+        }
+
+        /**
+         * Records an element written to the response by its type and id.
+         *
+         * @param type
+         *            The element type.
+         * @param id
+         *            The element id.
+         */
+        public void addElement(EntityType type, long id) {
+            if (copy != null) {
+                elements.add(type, id);
+            }
+        }
+
+        private Entry toEntry(double[] bounds) {
+            if (copy == null) {
+                return null;
+            }
+            byte[] data = copy.toByteArray();
+            if (encoding == null || !encoding.getName().equals(storage.getName())) {
+                data = recode(data, encoding, storage);
+            }
+            return new Entry(data, bounds, elements.compact());
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
+import com.yellowbkpk.geo.xapi.encoding.ContentEncodings;
+
+/**
+ * Picks the content coding for each response and opens the streams responses
+ * and cached tiles are written through. Large gzipped responses are
+ * compressed by a {@link ParallelGzipOutputStream} on a pool of threads
+ * shared by every request, small ones and other codings on the request's own
+ * thread. Each endpoint has its own compression level for each coding, set
+ * by the <tt>xapi.gzipLevel.*</tt>, <tt>xapi.zstdLevel.*</tt> and
+ * <tt>xapi.brLevel.*</tt> context parameters, but shares the pool.
+ */
+public class ResponseCompression {
+
+    private static final String GZIP = "gzip";
+
+    private final ExecutorService pool;
+    private final int threads;
+    private final int minParallelBytes;
+    private final ContentEncodings encodings;
+    private final Map<String, Integer> levels;
+
+    /**
+     * Creates a new instance with its own pool of threads.
+     *
+     * @param threads
+     *            The number of threads to gzip on. One or fewer compresses
+     *            every response on the thread writing it.
+     * @param minParallelBytes
+     *            The size a response must reach before it is gzipped on the
+     *            pool.
+     * @param encodings
+     *            The content codings to offer clients.
+     */
+    public ResponseCompression(int threads, int minParallelBytes, ContentEncodings encodings) {
+        this(threads > 1 ? Executors.newFixedThreadPool(threads, new CompressorThreadFactory()) : null, threads,
+                minParallelBytes, encodings, new HashMap<String, Integer>());
+    }
+
+    private ResponseCompression(ExecutorService pool, int threads, int minParallelBytes,
+            ContentEncodings encodings, Map<String, Integer> levels) {
+        this.pool = pool;
+        this.threads = threads;
+        this.minParallelBytes = minParallelBytes;
+        this.encodings = encodings;
+        this.levels = levels;
+    }
+
+    /**
+     * Returns compression at another level for one coding which shares this
+     * pool.
+     *
+     * @param coding
+     *            The name of the coding.
+     * @param level
+     *            The compression level, with the meaning the coding gives
+     *            it, or -1 for its default.
+     * @return The compression at that level.
+     */
+    public ResponseCompression withLevel(String coding, int level) {
+        if (GZIP.equals(coding) && (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid gzip level " + level + ".");
+        }
+        Map<String, Integer> newLevels = new HashMap<String, Integer>(levels);
+        newLevels.put(coding, level);
+        return new ResponseCompression(pool, threads, minParallelBytes, encodings, newLevels);
+    }
+
+    /**
+     * @return The content codings on offer.
+     */
+    public ContentEncodings getEncodings() {
+        return encodings;
+    }
+
+    /**
+     * Picks the coding to send a response in from the request's
+     * Accept-Encoding header.
+     *
+     * @param request
+     *            The request.
+     * @return The coding, or null to send the response as it is.
+     */
+    public ContentCodec negotiate(HttpServletRequest request) {
+        return encodings.negotiate(request.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Picks the coding to send a stored response in, favouring the coding it
+     * is stored in when the client rates it as highly as any other.
+     *
+     * @param request
+     *            The request.
+     * @param stored
+     *            The coding the response is stored in.
+     * @return The coding, or null to send the response as it is.
+     */
+    public ContentCodec negotiate(HttpServletRequest request, ContentCodec stored) {
+        return encodings.negotiate(request.getHeader("Accept-Encoding"), stored);
+    }
+
+    /**
+     * Opens the stream a response body is written to in a coding, setting
+     * the headers that go with it.
+     *
+     * @param response
+     *            The response.
+     * @param out
+     *            The stream to write the encoded body to.
+     * @param codec
+     *            The coding, or null to write the body as it is.
+     * @return The stream to write the body to.
+     * @throws IOException
+     *             if the stream can't be written to.
+     */
+    public OutputStream open(HttpServletResponse response, OutputStream out, ContentCodec codec) throws IOException {
+        response.addHeader("Vary", "Accept-Encoding");
+        if (codec == null) {
+            return out;
+        }
+        response.setHeader("Content-Encoding", codec.getName());
+        return open(out, codec);
+    }
+
+    /**
+     * Opens a stream which encodes everything written to it.
+     *
+     * @param out
+     *            The stream to write the encoded data to.
+     * @param codec
+     *            The coding.
+     * @return The encoding stream. Closing it finishes the encoded data and
+     *         closes <tt>out</tt>.
+     * @throws IOException
+     *             if the stream can't be written to.
+     */
+    public OutputStream open(OutputStream out, ContentCodec codec) throws IOException {
+        if (GZIP.equals(codec.getName())) {
+            return open(out);
+        }
+        return codec.encode(out, getLevel(codec.getName()));
+    }
+
+    /**
+     * Opens a stream which gzips everything written to it, as the tile cache
+     * stores tiles.
+     *
+     * @param out
+     *            The stream to write the compressed data to.
+     * @return The compressing stream. Closing it finishes the gzip data and
+     *         closes <tt>out</tt>.
+     * @throws IOException
+     *             if the stream can't be written to.
+     */
+    public OutputStream open(OutputStream out) throws IOException {
+        return new ParallelGzipOutputStream(out, getLevel(GZIP), pool, threads, minParallelBytes);
+    }
+
+    /**
+     * Decodes data into a stream, such as one opened in another coding.
+     *
+     * @param in
+     *            The encoded data. It is closed once it has been read.
+     * @param from
+     *            The coding the data is in, or null if it isn't encoded.
+     * @param out
+     *            The stream to write the decoded data to. It is closed once
+     *            all of it has been written.
+     * @throws IOException
+     *             if the data can't be read or written.
+     */
+    public static void copyDecoded(InputStream in, ContentCodec from, OutputStream out) throws IOException {
+        if (from != null) {
+            in = from.decode(in);
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stops the pool once the blocks already queued are compressed. Streams
+     * opened afterwards, or still being written, carry on without it.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private int getLevel(String coding) {
+        Integer level = levels.get(coding);
+        return level == null ? -1 : level;
+    }
+
+    private static class CompressorThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "gzip-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
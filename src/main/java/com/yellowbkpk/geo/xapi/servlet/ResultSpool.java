@@ -0,0 +1,394 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Holds the serialized result of one query so that it can be streamed to
+ * several clients. The request running the query writes the result through
+ * {@link #openOutputStream(OutputStream, int)}, which also passes it on to that
+ * request's own client, and other requests read it with
+ * {@link #copyTo(OutputStream)} while it is still being written.
+ *
+ * The result is held in memory up to a limit. Only if another request has
+ * joined by the time it outgrows that is it moved to a temporary file, so a
+ * query nobody shares never touches the disk; one that nobody has joined by
+ * then stops being shareable instead.
+ *
+ * The spool is reference counted, the file is deleted when the last request
+ * using it calls {@link #release()}.
+ */
+class ResultSpool {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private byte[] memory = new byte[BUFFER_SIZE];
+    private File file;
+    private OutputStream fileOut;
+    private long length;
+    private boolean finished;
+    private boolean failed;
+    private boolean shared = true;
+    private int references = 1;
+
+    /**
+     * Thrown to readers when the query writing the spool fails, so they can
+     * tell it apart from failing to write to their own client.
+     */
+    public static class FailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FailedException() {
+            super("The query being shared failed.");
+        }
+    }
+
+    /**
+     * Opens the stream the result is written to. Writes go to the spool and
+     * then to the writer's own client. If that client goes away the writing
+     * carries on for the readers, unless there are none.
+     *
+     * @param client
+     *            The writer's own client.
+     * @param memoryBytes
+     *            How much of the result to hold in memory before moving it to
+     *            a file, or giving up sharing it if nobody has joined.
+     * @return The stream to write the result to. Closing it marks the result
+     *         complete.
+     */
+    public OutputStream openOutputStream(OutputStream client, int memoryBytes) {
+        return new SpoolOutputStream(client, memoryBytes);
+    }
+
+    /**
+     * Streams the result to a client as it is written, returning once all of
+     * it has been copied.
+     *
+     * @param out
+     *            The stream to copy the result to.
+     * @throws FailedException
+     *             if the query writing the result fails.
+     * @throws IOException
+     *             if the result can't be read or written to the client.
+     */
+    public void copyTo(OutputStream out) throws IOException {
+        RandomAccessFile in = null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            long available;
+            while ((available = awaitData(position)) > 0) {
+                while (available > 0) {
+                    int count = (int) Math.min(buffer.length, available);
+                    // Once the result has moved to the file it is read from
+                    // there, carrying on from the same place.
+                    if (in == null && !readMemory(position, buffer, count)) {
+                        in = new RandomAccessFile(getFile(), "r");
+                        in.seek(position);
+                    }
+                    if (in != null) {
+                        in.readFully(buffer, 0, count);
+                    }
+                    out.write(buffer, 0, count);
+                    position += count;
+                    available -= count;
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a reader to the spool.
+     *
+     * @return False if the spool has already been released by everyone, or
+     *         has stopped being shared, and can't be read.
+     */
+    public synchronized boolean retain() {
+        if (references == 0 || !shared) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Removes a reader or the writer from the spool, deleting the file once
+     * nobody is using it.
+     */
+    public synchronized void release() {
+        references--;
+        if (references == 0) {
+            memory = null;
+            closeFile();
+            if (file != null && !file.delete()) {
+                log.warning("Unable to delete spool file " + file + ".");
+            }
+        }
+    }
+
+    /**
+     * Marks the result as failed unless it was completed, waking any readers,
+     * and closes the file if one was being written.
+     */
+    public synchronized void abandon() {
+        if (!finished) {
+            failed = true;
+            notifyAll();
+        }
+        closeFile();
+    }
+
+    private synchronized boolean hasReaders() {
+        return references > 1;
+    }
+
+    /**
+     * Adds written bytes to memory if they fit.
+     *
+     * @return True if they were added. Otherwise they must go to the file,
+     *         unless the spool is no longer shared.
+     */
+    private synchronized boolean appendToMemory(byte[] b, int off, int len, int memoryBytes) {
+        if (file != null || !shared) {
+            return false;
+        }
+        if (length + len > memoryBytes) {
+            if (references == 1) {
+                // Nobody is reading, so the rest needn't be kept at all.
+                log.fine("Query result outgrew memory before being shared, no longer sharing it.");
+                shared = false;
+                memory = null;
+            }
+            return false;
+        }
+        if (length + len > memory.length) {
+            memory = Arrays.copyOf(memory, (int) Math.min(memoryBytes, Math.max(length + len,
+                    memory.length * 2L)));
+        }
+        System.arraycopy(b, off, memory, (int) length, len);
+        published(len);
+        return true;
+    }
+
+    /**
+     * Moves what has been written so far to a new spool file, which is
+     * written from then on.
+     *
+     * @return The stream writing the file.
+     */
+    private OutputStream moveToFile() throws IOException {
+        File spoolFile = File.createTempFile("xapi-spool", ".tmp");
+        OutputStream out = new FileOutputStream(spoolFile);
+        try {
+            // Only the writer changes the memory, so it can be read without
+            // holding the lock.
+            out.write(memory, 0, (int) length);
+        } catch (IOException e) {
+            out.close();
+            spoolFile.delete();
+            throw e;
+        }
+        synchronized (this) {
+            file = spoolFile;
+            fileOut = out;
+            memory = null;
+        }
+        return out;
+    }
+
+    private synchronized boolean isShared() {
+        return shared;
+    }
+
+    private synchronized void published(int count) {
+        length += count;
+        notifyAll();
+    }
+
+    private synchronized void finish() throws IOException {
+        finished = true;
+        notifyAll();
+        if (fileOut != null) {
+            OutputStream out = fileOut;
+            fileOut = null;
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the file being written, after a failure or once nobody needs it.
+     */
+    private synchronized void closeFile() {
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                log.warning("Unable to close spool file " + file + ".");
+            }
+            fileOut = null;
+        }
+    }
+
+    private synchronized boolean readMemory(long position, byte[] buffer, int count) {
+        if (memory == null) {
+            return false;
+        }
+        System.arraycopy(memory, (int) position, buffer, 0, count);
+        return true;
+    }
+
+    private synchronized File getFile() {
+        return file;
+    }
+
+    private synchronized OutputStream getFileOut() throws IOException {
+        if (file != null && fileOut == null) {
+            throw new IOException("The spool file has already been closed.");
+        }
+        return fileOut;
+    }
+
+    /**
+     * Waits until there is more to read than has been read so far.
+     *
+     * @return The number of bytes that can be read, or zero at the end of the
+     *         result.
+     */
+    private synchronized long awaitData(long position) throws IOException {
+        while (length == position && !finished && !failed) {
+            waitForWriter();
+        }
+        if (failed) {
+            throw new FailedException();
+        }
+        return length - position;
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the shared query.");
+        }
+    }
+
+    /**
+     * Buffers writes so readers are woken once per buffer rather than once per
+     * element.
+     */
+    private class SpoolOutputStream extends OutputStream {
+        private OutputStream client;
+        private final int memoryBytes;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean teeing = true;
+
+        SpoolOutputStream(OutputStream client, int memoryBytes) {
+            this.client = client;
+            this.memoryBytes = memoryBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.length) {
+                flushBuffer();
+                writeThrough(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            if (client != null) {
+                try {
+                    client.flush();
+                } catch (IOException e) {
+                    clientFailed(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+            finish();
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    clientFailed(e);
+                }
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                writeThrough(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void writeThrough(byte[] b, int off, int len) throws IOException {
+            if (teeing) {
+                tee(b, off, len);
+            }
+            if (client != null) {
+                try {
+                    client.write(b, off, len);
+                } catch (IOException e) {
+                    clientFailed(e);
+                }
+            }
+        }
+
+        private void tee(byte[] b, int off, int len) throws IOException {
+            if (appendToMemory(b, off, len, memoryBytes)) {
+                return;
+            }
+            if (!isShared()) {
+                teeing = false;
+                return;
+            }
+            OutputStream out = getFileOut();
+            if (out == null) {
+                out = moveToFile();
+            }
+            out.write(b, off, len);
+            published(len);
+        }
+
+        private void clientFailed(IOException e) throws IOException {
+            if (!hasReaders()) {
+                throw e;
+            }
+            log.info("Client of a shared query disconnected, carrying on for the other clients.");
+            client = null;
+        }
+    }
+}
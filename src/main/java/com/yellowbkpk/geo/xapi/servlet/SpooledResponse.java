@@ -0,0 +1,170 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
+import com.yellowbkpk.geo.xapi.encoding.GzipCodec;
+
+/**
+ * Holds a whole response body so that it can be written as fast as the
+ * database produces it and sent to the client afterwards, once the database
+ * connection has been given back. Bodies up to a threshold are kept in
+ * memory, bigger ones overflow to a temporary file.
+ *
+ * A body that isn't already in a content coding is gzipped on its way into
+ * the file, at the fastest level, and decoded again as it is sent.
+ */
+class SpooledResponse extends OutputStream {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final ContentCodec FILE_ENCODING = new GzipCodec();
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private final int memoryThreshold;
+    private final boolean encoded;
+    private byte[] memory;
+    private long length;
+    private File file;
+    private OutputStream fileOut;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param memoryThreshold
+     *            The most that is held in memory before the body overflows to
+     *            a file.
+     * @param encoded
+     *            Whether the body is already in a content coding, and so not
+     *            worth compressing again.
+     */
+    public SpooledResponse(int memoryThreshold, boolean encoded) {
+        this.memoryThreshold = memoryThreshold;
+        this.encoded = encoded;
+        memory = new byte[Math.min(memoryThreshold, 8192)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (fileOut == null && length < memory.length) {
+            memory[(int) length++] = (byte) b;
+        } else {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileOut == null) {
+            if (length + len <= memoryThreshold) {
+                if (length + len > memory.length) {
+                    byte[] grown = new byte[(int) Math.min(memoryThreshold, Math.max(length + len,
+                            2L * memory.length))];
+                    System.arraycopy(memory, 0, grown, 0, (int) length);
+                    memory = grown;
+                }
+                System.arraycopy(b, off, memory, (int) length, len);
+                length += len;
+                return;
+            }
+            overflow();
+        }
+        fileOut.write(b, off, len);
+        length += len;
+    }
+
+    /**
+     * Finishes the file, if the body overflowed to one. Nothing is sent to
+     * the client until {@link #writeTo(OutputStream)}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * @return The length of the body as it is sent.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return True if the body overflowed to a file.
+     */
+    public boolean isOnDisk() {
+        return file != null;
+    }
+
+    /**
+     * Sends the body.
+     *
+     * @param out
+     *            The stream to send the body to. It is left open.
+     * @throws IOException
+     *             if the file can't be read or the body can't be sent.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            out.write(memory, 0, (int) length);
+            return;
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            if (!encoded) {
+                in = FILE_ENCODING.decode(in);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the file, if there is one. The body can't be sent afterwards.
+     */
+    public void discard() {
+        memory = null;
+        if (file != null) {
+            try {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            } catch (IOException e) {
+                // The file is being deleted anyway.
+            }
+            if (!file.delete()) {
+                log.warning("Unable to delete spooled response " + file + ".");
+            }
+        }
+    }
+
+    /**
+     * Moves what has been held in memory to a new file, which takes the rest
+     * of the body.
+     */
+    private void overflow() throws IOException {
+        file = File.createTempFile("xapi-response", ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        fileOut = encoded ? out : FILE_ENCODING.encode(out, Deflater.BEST_SPEED);
+        fileOut.write(memory, 0, (int) length);
+        memory = null;
+    }
+}
@@ -0,0 +1,492 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+
+import com.yellowbkpk.geo.xapi.db.ChangedArea;
+
+/**
+ * Keeps rendered tiles on disk, gzip-compressed, as
+ * <tt>directory/z/x/y.osm.gz</tt>, with the planet timestamp a tile was
+ * rendered against as the file's modification time.
+ *
+ * The cache is valid for one planet timestamp at a time. When replication
+ * moves the database on, {@link #advance(ChangedArea, long)} deletes the tiles
+ * the changes touch and the rest carry on. Until that has happened the cache
+ * neither serves nor accepts tiles for the new timestamp. Tiles left from
+ * before a restart are only kept if they match the planet timestamp then.
+ *
+ * A change is only located where the element is after it, so each tile's
+ * element ids are kept too, in memory and beside the tile as
+ * <tt>directory/z/x/y.ids</tt>, and a tile holding a changed element is
+ * deleted wherever the change was. That covers deletions and elements moved
+ * out of the tile.
+ *
+ * The least recently used tiles are deleted to keep the total size, counting
+ * eight bytes for each element id, under a limit. The usage order is kept in
+ * memory and starts out from the files' order on disk when the cache is
+ * opened.
+ *
+ * Tiles are handed out already open, so that one deleted or replaced while
+ * it is being sent carries on being readable until it is closed. Tile files
+ * are only ever deleted or renamed over, never rewritten in place.
+ *
+ * Lookups only hold the lock on the index in memory. Changes to the files
+ * are made one at a time under a second lock, taken before the index lock,
+ * so that they never hold up lookups and a tile's files are never deleted
+ * after a newer rendering of it has been put.
+ */
+public class TileCache {
+
+    private static final String SUFFIX = ".osm.gz";
+
+    private static final String IDS_SUFFIX = ".ids";
+
+    private static Logger log = Logger.getLogger("API");
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Tile> tiles = new LinkedHashMap<String, Tile>(1024, 0.75f, true);
+    private final Object files = new Object();
+    private long planetTime = -1;
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Opens the cache, indexing the tiles already in the directory.
+     *
+     * @param directory
+     *            The directory to keep the tiles in, created if needed.
+     * @param maxBytes
+     *            The most bytes of tiles to keep.
+     */
+    public TileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create tile cache directory " + directory + ".");
+        }
+        scan();
+        for (String key : evict()) {
+            delete(key);
+        }
+        log.info("Tile cache " + directory + " holds " + tiles.size() + " tiles, " + size / 1024 + " KB.");
+    }
+
+    /**
+     * Looks up a tile.
+     *
+     * @param zoom
+     *            The tile's zoom level.
+     * @param x
+     *            The tile's column.
+     * @param y
+     *            The tile's row.
+     * @param planetDate
+     *            The current planet timestamp.
+     * @return The compressed tile, open for the caller to read and close, or
+     *         null if there isn't one valid at that timestamp.
+     */
+    public FileInputStream get(int zoom, int x, int y, Date planetDate) {
+        String key = key(zoom, x, y);
+        synchronized (this) {
+            if (planetDate.getTime() != planetTime || tiles.get(key) == null) {
+                misses++;
+                return null;
+            }
+            try {
+                FileInputStream tile = new FileInputStream(new File(directory, key + SUFFIX));
+                hits++;
+                return tile;
+            } catch (FileNotFoundException e) {
+                // Deleted from under the cache.
+                size -= tiles.remove(key).size();
+                misses++;
+            }
+        }
+        deleteFiles(Collections.singletonList(key));
+        return null;
+    }
+
+    /**
+     * Starts a tile to be added with
+     * {@link #put(int, int, int, Date, Rendering)}. Its file is in the cache
+     * directory so adding it is a rename.
+     *
+     * @return The new rendering, with an empty file.
+     * @throws IOException
+     *             if the file can't be created.
+     */
+    public Rendering startRendering() throws IOException {
+        return new Rendering(File.createTempFile("tile", ".tmp", directory));
+    }
+
+    /**
+     * Adds a rendered tile, replacing any older rendering of it.
+     *
+     * @param zoom
+     *            The tile's zoom level.
+     * @param x
+     *            The tile's column.
+     * @param y
+     *            The tile's row.
+     * @param planetDate
+     *            The planet timestamp the tile was rendered against.
+     * @param rendered
+     *            The compressed tile and its elements, from
+     *            {@link #startRendering()}.
+     * @return The tile's file in the cache, or null if the cache has moved on
+     *         from that timestamp, in which case the rendering is left as it
+     *         is. The file may be evicted as soon as this returns, so a tile
+     *         that is going to be served should be opened before it is put.
+     * @throws IOException
+     *             if the tile can't be moved into place.
+     */
+    public File put(int zoom, int x, int y, Date planetDate, Rendering rendered) throws IOException {
+        String key = key(zoom, x, y);
+        File file = new File(directory, key + SUFFIX);
+        ElementIds elements = rendered.elements.compact();
+
+        // The planet timestamp only moves on under the file lock, so it
+        // can't change while the tile is moved into place.
+        synchronized (files) {
+            synchronized (this) {
+                if (planetDate.getTime() != planetTime) {
+                    return null;
+                }
+            }
+
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create tile directory " + parent + ".");
+            }
+
+            // The ids go first, so a tile is never on disk without them.
+            writeElements(key, elements);
+
+            File renderedFile = rendered.getFile();
+            if (!renderedFile.setLastModified(planetDate.getTime())) {
+                throw new IOException("Unable to stamp tile " + renderedFile + " with the planet date.");
+            }
+            // Renaming over an existing file isn't allowed everywhere.
+            file.delete();
+            if (!renderedFile.renameTo(file)) {
+                remove(zoom, x, y);
+                throw new IOException("Unable to move " + renderedFile + " to " + file + ".");
+            }
+
+            Tile tile = new Tile(file.length(), elements);
+            List<String> evicted;
+            synchronized (this) {
+                Tile previous = tiles.put(key, tile);
+                if (previous != null) {
+                    size -= previous.size();
+                }
+                size += tile.size();
+                evicted = evict();
+            }
+            deleteFiles(evicted);
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a tile.
+     *
+     * @param zoom
+     *            The tile's zoom level.
+     * @param x
+     *            The tile's column.
+     * @param y
+     *            The tile's row.
+     */
+    public void remove(int zoom, int x, int y) {
+        String key = key(zoom, x, y);
+        synchronized (this) {
+            Tile tile = tiles.remove(key);
+            if (tile == null) {
+                return;
+            }
+            size -= tile.size();
+        }
+        deleteFiles(Collections.singletonList(key));
+    }
+
+    /**
+     * Moves the cache on to a new planet timestamp, deleting the tiles that
+     * changes since the last one fall in or that hold a changed element.
+     *
+     * @param area
+     *            Where the changes were.
+     * @param newPlanetTime
+     *            The planet timestamp after the changes.
+     */
+    public void advance(ChangedArea area, long newPlanetTime) {
+        synchronized (files) {
+            List<String> removed = new ArrayList<String>();
+            int kept;
+            synchronized (this) {
+                if (!area.isEmpty()) {
+                    Iterator<Map.Entry<String, Tile>> iterator = tiles.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        Map.Entry<String, Tile> tile = iterator.next();
+                        String[] zxy = tile.getKey().split("/");
+                        if (area.intersectsTile(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]),
+                                Integer.parseInt(zxy[2])) || tile.getValue().elements.isChangedIn(area)) {
+                            size -= tile.getValue().size();
+                            iterator.remove();
+                            removed.add(tile.getKey());
+                        }
+                    }
+                }
+                kept = tiles.size();
+                planetTime = newPlanetTime;
+            }
+            deleteFiles(removed);
+            if (!area.isEmpty()) {
+                log.info("Tile cache dropped " + removed.size() + " changed tiles, keeping " + kept + ".");
+            }
+        }
+    }
+
+    /**
+     * Starts the cache again at a planet timestamp, for when there's no telling
+     * what changed, deleting the tiles that weren't rendered against it.
+     *
+     * @param newPlanetTime
+     *            The planet timestamp the database is at.
+     */
+    public void reset(long newPlanetTime) {
+        synchronized (files) {
+            // Nothing can be put while the files are checked, only looked up.
+            List<String> keys;
+            synchronized (this) {
+                keys = new ArrayList<String>(tiles.keySet());
+            }
+            List<String> stale = new ArrayList<String>();
+            for (String key : keys) {
+                if (new File(directory, key + SUFFIX).lastModified() != newPlanetTime) {
+                    stale.add(key);
+                }
+            }
+            synchronized (this) {
+                for (String key : stale) {
+                    Tile tile = tiles.remove(key);
+                    if (tile != null) {
+                        size -= tile.size();
+                    }
+                }
+                planetTime = newPlanetTime;
+            }
+            deleteFiles(stale);
+        }
+    }
+
+    /**
+     * @return The number of bytes of tiles held, along with their element ids.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drops the least recently used tiles from the index until the rest fit,
+     * leaving their files for the caller to delete once the index is
+     * unlocked.
+     *
+     * @return The keys of the tiles dropped.
+     */
+    private List<String> evict() {
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Tile>> iterator = tiles.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Tile> tile = iterator.next();
+            size -= tile.getValue().size();
+            iterator.remove();
+            evicted.add(tile.getKey());
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes the files of tiles already dropped from the index, skipping any
+     * that have been put again since.
+     */
+    private void deleteFiles(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        synchronized (files) {
+            for (String key : keys) {
+                synchronized (this) {
+                    if (tiles.containsKey(key)) {
+                        continue;
+                    }
+                }
+                delete(key);
+            }
+        }
+    }
+
+    private void delete(String key) {
+        new File(directory, key + SUFFIX).delete();
+        new File(directory, key + IDS_SUFFIX).delete();
+    }
+
+    private void writeElements(String key, ElementIds elements) throws IOException {
+        File file = new File(directory, key + IDS_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            elements.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private ElementIds readElements(String key) {
+        File file = new File(directory, key + IDS_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return ElementIds.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warning("Unable to read tile elements " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void scan() {
+        File[] zooms = directory.listFiles();
+        if (zooms == null) {
+            return;
+        }
+        for (File zoom : zooms) {
+            if (zoom.getName().endsWith(".tmp")) {
+                // Left behind by a render that didn't finish.
+                zoom.delete();
+                continue;
+            }
+            File[] columns = zoom.listFiles();
+            if (columns == null) {
+                continue;
+            }
+            for (File column : columns) {
+                File[] rows = column.listFiles();
+                if (rows == null) {
+                    continue;
+                }
+                for (File row : rows) {
+                    String name = row.getName();
+                    if (!zoom.getName().matches("\\d+") || !column.getName().matches("\\d+")) {
+                        continue;
+                    }
+                    if (name.endsWith(SUFFIX)) {
+                        String key = zoom.getName() + "/" + column.getName() + "/"
+                                + name.substring(0, name.length() - SUFFIX.length());
+                        ElementIds elements = readElements(key);
+                        if (elements == null) {
+                            // Without its ids the tile can't be kept up to date.
+                            delete(key);
+                            continue;
+                        }
+                        Tile tile = new Tile(row.length(), elements);
+                        tiles.put(key, tile);
+                        size += tile.size();
+                    } else if (name.endsWith(IDS_SUFFIX)) {
+                        File tile = new File(column, name.substring(0, name.length() - IDS_SUFFIX.length()) + SUFFIX);
+                        if (!tile.exists()) {
+                            row.delete();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String key(int zoom, int x, int y) {
+        return zoom + "/" + x + "/" + y;
+    }
+
+    /**
+     * A tile being rendered, along with the elements written to it.
+     */
+    public static class Rendering {
+        private final File file;
+        private final ElementIds elements = new ElementIds();
+
+        Rendering(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return The file to write the compressed tile to.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Records an element written to the tile.
+         *
+         * @param entity
+         *            The element.
+         */
+        public void addEntity(Entity entity) {
+            elements.add(entity);
+        }
+    }
+
+    /**
+     * What is kept in memory for a cached tile.
+     */
+    private static class Tile {
+        private final long length;
+        private final ElementIds elements;
+
+        Tile(long length, ElementIds elements) {
+            this.length = length;
+            this.elements = elements;
+        }
+
+        long size() {
+            return length + 8L * elements.size();
+        }
+    }
+}
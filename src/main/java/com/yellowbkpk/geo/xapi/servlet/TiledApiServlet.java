@@ -1,18 +1,23 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
-import java.util.Properties;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -25,11 +30,12 @@ import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
 import org.openstreetmap.osmosis.core.database.DatabasePreferences;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
 import org.openstreetmap.osmosis.core.time.DateFormatter;
-import org.openstreetmap.osmosis.core.time.DateParser;
-import org.openstreetmap.osmosis.core.util.PropertiesPersister;
 
 import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
+import com.yellowbkpk.geo.xapi.db.DatabaseCapabilities;
 import com.yellowbkpk.geo.xapi.db.PostgreSqlDatasetContext;
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
+import com.yellowbkpk.geo.xapi.encoding.GzipCodec;
 import com.yellowbkpk.geo.xapi.writer.XapiSink;
 
 public class TiledApiServlet extends HttpServlet {
@@ -38,21 +44,20 @@ public class TiledApiServlet extends HttpServlet {
 
     private static final DatabasePreferences preferences = new DatabasePreferences(false, false);
 
-    private static final String LOCAL_STATE_FILE = "state.txt";
+    /**
+     * How long a request waits for another to render the metatile holding
+     * its tile before rendering the tile itself.
+     */
+    private static final int METATILE_WAIT_SECONDS = 120;
 
     private static Logger log = Logger.getLogger("API");
 
+    private final Map<String, CountDownLatch> renderingMetatiles = new HashMap<String, CountDownLatch>();
+
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         log.info("starting TiledApiServlet doGet");
 
-        String host = getServletContext().getInitParameter("xapi.db.host");
-        String database = getServletContext().getInitParameter("xapi.db.database");
-        String user = getServletContext().getInitParameter("xapi.db.username");
-        String password = getServletContext().getInitParameter("xapi.db.password");
-        DatabaseLoginCredentials loginCredentials = new DatabaseLoginCredentials(host, database, user, password, true,
-                false, null);
-
-        String workingDirectory = getServletContext().getInitParameter("xapi.workingDirectory");
+        DatabaseLoginCredentials loginCredentials = XapiContextListener.getLoginCredentials(getServletContext());
 
         String corsHeaderValue = getServletContext().getInitParameter("xapi.corsHeader");
 
@@ -74,7 +79,7 @@ public class TiledApiServlet extends HttpServlet {
 
                 log.info("reqUrl: " + reqUrl);
 
-                Pattern pattern = Pattern.compile("\\/api\\/0\\.6\\/tiled\\/(\\d{0,2})\\/(\\d*)\\/(\\d*)");
+                Pattern pattern = Pattern.compile("\\/api\\/0\\.6\\/tiled\\/(\\d{0,2})\\/(\\d*)\\/(\\d*)(?:\\.(\\w+))?");
                 Matcher matcher = pattern.matcher(reqUrl);
                 if (!matcher.find()) {
                 	tracker.error();
@@ -85,7 +90,10 @@ public class TiledApiServlet extends HttpServlet {
                 zoom = Integer.parseInt(matcher.group(1));
             	x = Integer.parseInt(matcher.group(2));
             	y = Integer.parseInt(matcher.group(3));
-            } catch (NumberFormatException e) {
+                if (matcher.group(4) != null) {
+                    filetype = Filetype.valueOf(matcher.group(4));
+                }
+            } catch (IllegalArgumentException e) {
                 tracker.error(e);
                 response.sendError(500, "Could not parse query: " + e.getMessage());
                 return;
@@ -107,16 +115,72 @@ public class TiledApiServlet extends HttpServlet {
             double top = tile2lat(y, zoom);
             double bottom = tile2lat(y+1, zoom);
 
+            ReplicationState state = null;
+            Date planetDate = null;
+            try {
+                state = XapiContextListener.getReplicationState(getServletContext());
+                planetDate = state.getTimestamp();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
+            }
+
+            // A client's copy is current until replication moves on.
+            if (state != null) {
+                String etag = ConditionalGet.etag("tile/" + zoom + "/" + x + "/" + y + "." + filetype,
+                        Long.toString(state.getSequenceNumber()));
+                if (ConditionalGet.isNotModified(request, etag, planetDate)) {
+                    ConditionalGet.sendNotModified(response, etag, planetDate);
+                    tracker.complete();
+                    return;
+                }
+                ConditionalGet.setValidators(response, etag, planetDate);
+            }
+
+            // A tile can only be cached against a known planet timestamp, and
+            // the cache only holds them as XML.
+            TileCache tileCache = null;
+            if (planetDate != null && filetype == Filetype.xml) {
+                tileCache = XapiContextListener.getTileCache(getServletContext());
+            }
+            if (tileCache != null) {
+                FileInputStream tile = tileCache.get(zoom, x, y, planetDate);
+                if (tile != null) {
+                    log.info("Tile " + zoom + "/" + x + "/" + y + " served from the tile cache.");
+                    tracker.recordTimepoint("tile cache hit");
+                    try {
+                        serveTile(tile, request, response, corsHeaderValue);
+                    } finally {
+                        tile.close();
+                    }
+                    tracker.complete();
+                    return;
+                }
+
+                String metatileSize = getServletContext().getInitParameter("xapi.tileCache.metatileSize");
+                if (metatileSize != null && Integer.parseInt(metatileSize) > 1) {
+                    // Metatiles are kept no bigger than a zoom 12 tile, the
+                    // largest area a single tile may cover.
+                    int size = Math.min(Math.min(Integer.parseInt(metatileSize), Metatile.MAX_SIZE),
+                            1 << (zoom - 12));
+                    if (size > 1
+                            && serveFromMetatile(new Metatile(zoom, x, y, size), zoom, x, y, tileCache, planetDate,
+                                    filetype, loginCredentials, request, response, corsHeaderValue, tracker)) {
+                        return;
+                    }
+                }
+            }
+
             // Query DB
             ReleasableIterator<EntityContainer> bboxData = null;
             PostgreSqlDatasetContext datasetReader = null;
             long middle;
             long elements = 0;
+            TileCache.Rendering rendering = null;
+            FileInputStream tile = null;
             try {
                 tracker.startDbQuery();
                 long start = System.currentTimeMillis();
-                datasetReader = new PostgreSqlDatasetContext(loginCredentials, preferences);
-                datasetReader.includeTimer(tracker);
+                datasetReader = openDatasetReader(loginCredentials, tracker);
 
                 bboxData = datasetReader.iterateBoundingBox(left, right, top, bottom, true);
 
@@ -124,46 +188,76 @@ public class TiledApiServlet extends HttpServlet {
                 middle = System.currentTimeMillis();
                 log.info("Tile " + zoom + "/" + x + "/" + y + " complete: " + (middle - start) + "ms");
 
-                // Build up a writer connected to the response output stream
-                response.setContentType(filetype.getContentTypeString());
-
-                OutputStream outputStream = response.getOutputStream();
-                String acceptEncodingHeader = request.getHeader("Accept-Encoding");
-                if (acceptEncodingHeader != null && acceptEncodingHeader.contains("gzip")) {
-                    outputStream = new GZIPOutputStream(outputStream);
-                    response.setHeader("Content-Encoding", "gzip");
+                // Build up a writer connected to the response output stream,
+                // or to the tile cache, in which case the tile is served from
+                // there once it is complete.
+                ResponseCompression compression = XapiContextListener.getCompression(getServletContext(), "tiled");
+                OutputStream outputStream;
+                if (tileCache != null) {
+                    rendering = tileCache.startRendering();
+                    outputStream = compression.open(new FileOutputStream(rendering.getFile()));
+                } else {
+                    response.setContentType(filetype.getContentTypeString());
+
+                    outputStream = compression.open(response, response.getOutputStream(),
+                            compression.negotiate(request));
+
+                    if (corsHeaderValue != null) {
+                        response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
+                    }
                 }
 
-                if (corsHeaderValue != null) {
-                    response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
-                }
-
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream));
-
                 // Serialize to the client
-                XapiSink sink = filetype.getSink(out);
+                XapiSink sink = filetype.getSink(outputStream);
 
-                try {
-                    Date planetDate = getDatabaseLastModifiedDate(workingDirectory);
+                if (planetDate != null) {
                     sink.setExtra("xapi:planetDate", new DateFormatter().format(planetDate));
                     sink.setExtra("xmlns:xapi", "http://jxapi.openstreetmap.org/");
-                } catch (Exception e) {
-                    log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
                 }
 
                 while (bboxData.hasNext()) {
                     elements++;
-                    sink.process(bboxData.next());
+                    EntityContainer container = bboxData.next();
+                    if (rendering != null) {
+                        rendering.addEntity(container.getEntity());
+                    }
+                    sink.process(container);
                 }
 
                 sink.complete();
 
-                out.flush();
-                out.close();
+                outputStream.close();
                 tracker.elementsSerialized(elements);
+
+                if (rendering != null) {
+                    // Opened first, so the tile can't be evicted before it is
+                    // served.
+                    tile = new FileInputStream(rendering.getFile());
+                    if (tileCache.put(zoom, x, y, planetDate, rendering) != null) {
+                        rendering = null;
+                    }
+                    // Otherwise replication moved on while it was rendering,
+                    // so the tile is served but not kept.
+                }
             } catch (Exception e) {
                 tracker.error(e);
-                log.log(Level.WARNING, "Error serializing: ", e);
+                if (tile != null) {
+                    // The tile couldn't be put in the cache.
+                    tile.close();
+                    tile = null;
+                }
+                if (RequestFailures.isClientDisconnect(e)) {
+                    // Rows are only fetched as they are written, so nothing is
+                    // left running in the database once writing stops.
+                    log.info("Client disconnected after " + elements + " elements.");
+                } else if (RequestFailures.isQueryCancelled(e)) {
+                    log.warning("Query cancelled: " + e.getMessage());
+                    if (!response.isCommitted()) {
+                        response.sendError(503, "The query ran too long and was cancelled.");
+                    }
+                } else {
+                    log.log(Level.WARNING, "Error serializing: ", e);
+                }
                 return;
             } finally {
                 if (bboxData != null) {
@@ -173,6 +267,22 @@ public class TiledApiServlet extends HttpServlet {
                     datasetReader.complete();
                     datasetReader.release();
                 }
+                if (rendering != null && tile == null) {
+                    rendering.getFile().delete();
+                }
+            }
+
+            // The connection has gone back to the pool by now, so a slow
+            // client doesn't hold on to it.
+            if (tile != null) {
+                try {
+                    serveTile(tile, request, response, corsHeaderValue);
+                } finally {
+                    tile.close();
+                    if (rendering != null) {
+                        rendering.getFile().delete();
+                    }
+                }
             }
 
             long end = System.currentTimeMillis();
@@ -190,12 +300,212 @@ public class TiledApiServlet extends HttpServlet {
         }
     }
 
-    private double tile2lat(int y, int zoom) {
+    private PostgreSqlDatasetContext openDatasetReader(DatabaseLoginCredentials loginCredentials,
+            XapiQueryStats tracker) {
+        PostgreSqlDatasetContext datasetReader = new PostgreSqlDatasetContext(loginCredentials, preferences);
+        datasetReader.includeTimer(tracker);
+        datasetReader.setScratchTables(Boolean.parseBoolean(getServletContext().getInitParameter(
+                "xapi.db.scratchTables")));
+        String fetchSize = getServletContext().getInitParameter("xapi.fetchSize.tiled");
+        if (fetchSize != null) {
+            datasetReader.setFetchSize(Integer.parseInt(fetchSize));
+        }
+        String statementTimeout = getServletContext().getInitParameter("xapi.statementTimeout.tiled");
+        if (statementTimeout != null) {
+            datasetReader.setStatementTimeout(Integer.parseInt(statementTimeout));
+        }
+        datasetReader.setQueryEngine(XapiContextListener.getQueryEngine(getServletContext(), "tiled"));
+        return datasetReader;
+    }
+
+    /**
+     * Answers a tile by rendering the whole metatile around it into the tile
+     * cache. A request for a tile whose metatile another request is already
+     * rendering waits for that instead.
+     *
+     * @return True if the request has been answered, false if the tile should
+     *         be rendered on its own after all.
+     */
+    private boolean serveFromMetatile(Metatile metatile, int zoom, int x, int y, TileCache tileCache,
+            Date planetDate, Filetype filetype, DatabaseLoginCredentials loginCredentials,
+            HttpServletRequest request, HttpServletResponse response, String corsHeaderValue,
+            XapiQueryStats tracker) throws IOException {
+        String metatileKey = zoom + "/" + metatile.getMinX() + "/" + metatile.getMinY();
+        CountDownLatch done;
+        boolean leader;
+        synchronized (renderingMetatiles) {
+            done = renderingMetatiles.get(metatileKey);
+            leader = done == null;
+            if (leader) {
+                done = new CountDownLatch(1);
+                renderingMetatiles.put(metatileKey, done);
+            }
+        }
+
+        if (!leader) {
+            tracker.recordTimepoint("waiting for metatile");
+            try {
+                done.await(METATILE_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            FileInputStream tile = tileCache.get(zoom, x, y, planetDate);
+            if (tile == null) {
+                return false;
+            }
+            log.info("Tile " + zoom + "/" + x + "/" + y + " served from a shared metatile.");
+            try {
+                serveTile(tile, request, response, corsHeaderValue);
+            } finally {
+                tile.close();
+            }
+            tracker.complete();
+            return true;
+        }
+
+        FileInputStream tile = null;
+        File uncached = null;
+        try {
+            DatabaseCapabilities capabilities;
+            ReleasableIterator<EntityContainer> bboxData = null;
+            PostgreSqlDatasetContext datasetReader = null;
+            try {
+                tracker.startDbQuery();
+                long start = System.currentTimeMillis();
+                datasetReader = openDatasetReader(loginCredentials, tracker);
+                bboxData = datasetReader.iterateBoundingBox(metatile.getLeft(), metatile.getRight(),
+                        metatile.getTop(), metatile.getBottom(), true);
+                long elements = 0;
+                while (bboxData.hasNext()) {
+                    elements++;
+                    metatile.add(bboxData.next());
+                }
+                capabilities = datasetReader.getCapabilities();
+                tracker.elementsSerialized(elements);
+                log.info("Metatile " + metatileKey + " for tile " + zoom + "/" + x + "/" + y + " fetched "
+                        + elements + " elements: " + (System.currentTimeMillis() - start) + "ms");
+            } finally {
+                if (bboxData != null) {
+                    bboxData.release();
+                }
+                if (datasetReader != null) {
+                    datasetReader.complete();
+                    datasetReader.release();
+                }
+            }
+
+            // The connection is back in the pool while the tiles are split
+            // out and written.
+            tracker.startSerialization();
+            Map<String, TileCache.Rendering> renderings = metatile.writeTiles(tileCache,
+                    XapiContextListener.getCompression(getServletContext(), "tiled"), filetype, planetDate,
+                    capabilities);
+            for (Map.Entry<String, TileCache.Rendering> rendering : renderings.entrySet()) {
+                String[] xy = rendering.getKey().split("/");
+                int tileX = Integer.parseInt(xy[0]);
+                int tileY = Integer.parseInt(xy[1]);
+                boolean requested = tileX == x && tileY == y;
+                if (requested) {
+                    // Opened first, so the tile can't be evicted before it is
+                    // served.
+                    tile = new FileInputStream(rendering.getValue().getFile());
+                }
+                if (tileCache.put(zoom, tileX, tileY, planetDate, rendering.getValue()) == null) {
+                    if (requested) {
+                        // Replication moved on while it was rendering, so the
+                        // tile is served but not kept.
+                        uncached = rendering.getValue().getFile();
+                    } else {
+                        rendering.getValue().getFile().delete();
+                    }
+                }
+            }
+            tracker.recordTimepoint("metatile written");
+        } catch (Exception e) {
+            tracker.error(e);
+            if (tile != null) {
+                tile.close();
+            }
+            if (uncached != null) {
+                uncached.delete();
+            }
+            if (RequestFailures.isQueryCancelled(e)) {
+                log.warning("Metatile query cancelled: " + e.getMessage());
+                response.sendError(503, "The query ran too long and was cancelled.");
+                return true;
+            }
+            log.log(Level.WARNING, "Error rendering metatile " + metatileKey + ", rendering the tile alone: ", e);
+            return false;
+        } finally {
+            synchronized (renderingMetatiles) {
+                renderingMetatiles.remove(metatileKey);
+            }
+            done.countDown();
+        }
+
+        try {
+            serveTile(tile, request, response, corsHeaderValue);
+        } finally {
+            tile.close();
+            if (uncached != null) {
+                uncached.delete();
+            }
+        }
+        tracker.complete();
+        return true;
+    }
+
+    /**
+     * Sends a tile from the tile cache. Tiles are cached gzipped, whichever
+     * codings are on offer, and are recoded for clients that negotiate
+     * another coding or none. Clients negotiating gzip get the file as it is,
+     * copied with {@link FileChannel#transferTo}, and gzip wins any tie so
+     * that recoding is only done for clients that rate another coding higher.
+     *
+     * The tile is sent from a stream opened while the cache held it, rather
+     * than by name, so Tomcat's sendfile support isn't used: the file may be
+     * evicted or replaced before sendfile got round to opening it.
+     *
+     * Sending doesn't need the database, so the request's admission slot is
+     * given up first.
+     */
+    private void serveTile(FileInputStream tile, HttpServletRequest request, HttpServletResponse response,
+            String corsHeaderValue) throws IOException {
+        AdmissionFilter.releaseSlot(request);
+        response.setContentType(Filetype.xml.getContentTypeString());
+        if (corsHeaderValue != null) {
+            response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
+        }
+
+        ResponseCompression compression = XapiContextListener.getCompression(getServletContext(), "tiled");
+        ContentCodec stored = new GzipCodec();
+        ContentCodec encoding = compression.negotiate(request, stored);
+        if (encoding == null || !stored.getName().equals(encoding.getName())) {
+            OutputStream out = compression.open(response, response.getOutputStream(), encoding);
+            ResponseCompression.copyDecoded(tile, stored, out);
+            return;
+        }
+
+        FileChannel channel = tile.getChannel();
+        long length = channel.size();
+        response.addHeader("Vary", "Accept-Encoding");
+        response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength((int) length);
+
+        WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+        long position = 0;
+        while (position < length) {
+            position += channel.transferTo(position, length - position, target);
+        }
+    }
+
+    static double tile2lat(int y, int zoom) {
     	double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, zoom);
         return Math.toDegrees(Math.atan(Math.sinh(n)));
 	}
 
-	private double tile2lon(int x, int zoom) {
+	static double tile2lon(int x, int zoom) {
 		return x / Math.pow(2.0, zoom) * 360.0 - 180.0;
 	}
 
@@ -209,10 +519,4 @@ public class TiledApiServlet extends HttpServlet {
             resp.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
         }
     }
-
-    private Date getDatabaseLastModifiedDate(String workingDirectory) {
-        PropertiesPersister localStatePersistor = new PropertiesPersister(new File(workingDirectory, LOCAL_STATE_FILE));
-        Properties properties = localStatePersistor.load();
-        return new DateParser().parse(properties.getProperty("timestamp"));
-    }
 }
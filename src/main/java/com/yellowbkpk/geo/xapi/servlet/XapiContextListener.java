@@ -0,0 +1,390 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
+import org.openstreetmap.osmosis.core.database.DatabasePreferences;
+import org.springframework.dao.DataAccessException;
+
+import com.yellowbkpk.geo.xapi.db.DatabaseCapabilities;
+import com.yellowbkpk.geo.xapi.db.QueryEngine;
+import com.yellowbkpk.geo.xapi.db.RelationGraph;
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
+import com.yellowbkpk.geo.xapi.encoding.ContentEncodings;
+import com.yellowbkpk.geo.xapi.encoding.GzipCodec;
+
+/**
+ * Sets up the resources shared by all of the servlets when the web application
+ * starts and tears them down again when it stops.
+ *
+ * If the <tt>xapi.db.datasource</tt> context parameter names a JNDI data
+ * source then every request borrows its connection from that pool. Otherwise
+ * each request falls back to opening its own connection using the
+ * <tt>xapi.db.*</tt> login parameters.
+ *
+ * The schema version and capabilities are checked here once rather than at
+ * the start of every request, and the <tt>xapi.engine.*</tt> query engines
+ * are parsed once, so a misspelt engine stops the application starting
+ * rather than failing every request. If <tt>xapi.relationGraph.refreshMinutes</tt>
+ * is set, the relation graph is loaded in the background and checked for
+ * replication updates at that interval. If
+ * <tt>xapi.responseCache.maxMegabytes</tt> is set, query responses are cached
+ * in memory up to that size, and if <tt>xapi.tileCache.directory</tt> is set
+ * tiles are cached on disk there, both kept in step with replication by a
+ * {@link CacheInvalidator}.
+ *
+ * The replication state.txt in <tt>xapi.workingDirectory</tt> is read once
+ * and then polled every <tt>xapi.replicationState.pollSeconds</tt> by a shared
+ * {@link ReplicationStateService}.
+ *
+ * Responses are sent in whichever of the content codings listed in
+ * <tt>xapi.contentEncodings</tt> the client prefers. Gzipped responses larger
+ * than <tt>xapi.gzip.minParallelKilobytes</tt> are compressed on a pool of
+ * <tt>xapi.gzip.threads</tt> threads shared by every request, see
+ * {@link ResponseCompression}. The response cache holds responses in the
+ * <tt>xapi.responseCache.encoding</tt> coding.
+ */
+public class XapiContextListener implements ServletContextListener {
+
+    private static final String LOGIN_CREDENTIALS_ATTRIBUTE = "xapi.db.loginCredentials";
+
+    private static final String RESPONSE_CACHE_ATTRIBUTE = "xapi.responseCache";
+
+    private static final String TILE_CACHE_ATTRIBUTE = "xapi.tileCache";
+
+    private static final String REPLICATION_STATE_ATTRIBUTE = "xapi.replicationState";
+
+    private static final String COMPRESSION_ATTRIBUTE = "xapi.compression";
+
+    private static final String QUERY_ENGINE_ATTRIBUTE = "xapi.queryEngine.";
+
+    private static final String[] QUERY_ENGINE_ENDPOINTS = { "map", "tiled" };
+
+    private static final int DEFAULT_MIN_PARALLEL_KILOBYTES = 1024;
+
+    private static final DatabasePreferences preferences = new DatabasePreferences(false, false);
+
+    private static Logger log = Logger.getLogger("XAPI");
+
+    private Timer relationGraphTimer;
+
+    private ReplicationStateService replicationState;
+
+    private ResponseCompression compression;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+
+        DatabaseLoginCredentials loginCredentials = buildLoginCredentials(context);
+        context.setAttribute(LOGIN_CREDENTIALS_ATTRIBUTE, loginCredentials);
+
+        String jndiLocation = context.getInitParameter("xapi.db.datasource");
+        if (jndiLocation != null) {
+            warmDataSource(jndiLocation);
+        }
+
+        probeSchema(loginCredentials);
+
+        for (String endpoint : QUERY_ENGINE_ENDPOINTS) {
+            QueryEngine engine;
+            try {
+                engine = QueryEngine.fromParameter(context.getInitParameter("xapi.engine." + endpoint));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid xapi.engine." + endpoint + ": " + e.getMessage(), e);
+            }
+            context.setAttribute(QUERY_ENGINE_ATTRIBUTE + endpoint, engine);
+            log.info("Query engine for " + endpoint + " queries: " + engine);
+        }
+
+        String gzipThreads = context.getInitParameter("xapi.gzip.threads");
+        String minParallelKilobytes = context.getInitParameter("xapi.gzip.minParallelKilobytes");
+        ContentEncodings encodings = ContentEncodings.fromParameter(context.getInitParameter("xapi.contentEncodings"));
+        compression = new ResponseCompression(gzipThreads == null ? Runtime.getRuntime().availableProcessors()
+                : Integer.parseInt(gzipThreads), (minParallelKilobytes == null ? DEFAULT_MIN_PARALLEL_KILOBYTES
+                : Integer.parseInt(minParallelKilobytes)) * 1024, encodings);
+        context.setAttribute(COMPRESSION_ATTRIBUTE, compression);
+        log.info("Content codings on offer: " + describe(encodings));
+
+        String cacheMegabytes = context.getInitParameter("xapi.responseCache.maxMegabytes");
+        if (cacheMegabytes != null && Integer.parseInt(cacheMegabytes) > 0) {
+            String entryKilobytes = context.getInitParameter("xapi.responseCache.maxEntryKilobytes");
+            int maxEntryBytes = entryKilobytes == null ? 1024 * 1024 : Integer.parseInt(entryKilobytes) * 1024;
+            String cacheEncoding = context.getInitParameter("xapi.responseCache.encoding");
+            ContentCodec storage = ContentEncodings.forName(cacheEncoding == null ? "gzip" : cacheEncoding.trim());
+            if (storage == null) {
+                log.warning("Caching responses gzipped, as " + cacheEncoding + " isn't available.");
+                storage = new GzipCodec();
+            }
+            context.setAttribute(RESPONSE_CACHE_ATTRIBUTE, new ResponseCache(Integer.parseInt(cacheMegabytes)
+                    * 1024L * 1024L, maxEntryBytes, storage));
+        }
+
+        String tileDirectory = context.getInitParameter("xapi.tileCache.directory");
+        if (tileDirectory != null && tileDirectory.trim().length() > 0) {
+            try {
+                context.setAttribute(TILE_CACHE_ATTRIBUTE, new TileCache(new File(tileDirectory.trim()), Integer
+                        .parseInt(context.getInitParameter("xapi.tileCache.maxMegabytes")) * 1024L * 1024L));
+            } catch (IllegalArgumentException e) {
+                log.log(Level.SEVERE, "Could not open the tile cache, tiles won't be cached.", e);
+            }
+        }
+
+        replicationState = new ReplicationStateService(context.getInitParameter("xapi.workingDirectory"));
+        context.setAttribute(REPLICATION_STATE_ATTRIBUTE, replicationState);
+
+        ResponseCache responseCache = getResponseCache(context);
+        TileCache tileCache = getTileCache(context);
+        if (responseCache != null || tileCache != null) {
+            // The change files are read from beside state.txt.
+            boolean readChanges = Boolean.parseBoolean(context.getInitParameter("xapi.invalidation.readChanges"));
+            replicationState.addListener(new CacheInvalidator(loginCredentials, readChanges ? new File(context
+                    .getInitParameter("xapi.workingDirectory")) : null, responseCache, tileCache));
+        }
+
+        // The graph task listens from the first state read, so a graph is
+        // never taken as current before the sequence number is known.
+        String refreshMinutes = context.getInitParameter("xapi.relationGraph.refreshMinutes");
+        RelationGraphRefreshTask relationGraphTask = null;
+        if (refreshMinutes != null && Integer.parseInt(refreshMinutes) > 0) {
+            relationGraphTask = new RelationGraphRefreshTask(loginCredentials, replicationState);
+            replicationState.addListener(relationGraphTask);
+        }
+
+        String pollSeconds = context.getInitParameter("xapi.replicationState.pollSeconds");
+        replicationState.start((pollSeconds == null ? 10 : Integer.parseInt(pollSeconds)) * 1000L);
+
+        if (relationGraphTask != null) {
+            relationGraphTimer = new Timer("relation-graph", true);
+            relationGraphTimer.schedule(relationGraphTask, 0, Integer.parseInt(refreshMinutes) * 60000L);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        context.removeAttribute(LOGIN_CREDENTIALS_ATTRIBUTE);
+        context.removeAttribute(RESPONSE_CACHE_ATTRIBUTE);
+        context.removeAttribute(TILE_CACHE_ATTRIBUTE);
+        context.removeAttribute(REPLICATION_STATE_ATTRIBUTE);
+        context.removeAttribute(COMPRESSION_ATTRIBUTE);
+        for (String endpoint : QUERY_ENGINE_ENDPOINTS) {
+            context.removeAttribute(QUERY_ENGINE_ATTRIBUTE + endpoint);
+        }
+
+        if (relationGraphTimer != null) {
+            relationGraphTimer.cancel();
+            relationGraphTimer = null;
+        }
+        if (replicationState != null) {
+            replicationState.stop();
+            replicationState = null;
+        }
+        if (compression != null) {
+            compression.shutdown();
+            compression = null;
+        }
+        RelationGraph.setShared(null);
+        RelationGraph.setCurrentSequenceNumber(RelationGraph.NO_SEQUENCE_NUMBER);
+    }
+
+    /**
+     * Returns the credentials that every dataset context should be created
+     * with.
+     *
+     * @param context
+     *            The servlet context holding the database configuration.
+     * @return The shared login credentials.
+     */
+    public static DatabaseLoginCredentials getLoginCredentials(ServletContext context) {
+        DatabaseLoginCredentials loginCredentials = (DatabaseLoginCredentials) context
+                .getAttribute(LOGIN_CREDENTIALS_ATTRIBUTE);
+        if (loginCredentials == null) {
+            loginCredentials = buildLoginCredentials(context);
+        }
+        return loginCredentials;
+    }
+
+    /**
+     * Returns the cache of query responses.
+     *
+     * @param context
+     *            The servlet context holding the cache.
+     * @return The cache, or null if responses aren't cached.
+     */
+    public static ResponseCache getResponseCache(ServletContext context) {
+        return (ResponseCache) context.getAttribute(RESPONSE_CACHE_ATTRIBUTE);
+    }
+
+    /**
+     * Returns the cache of rendered tiles.
+     *
+     * @param context
+     *            The servlet context holding the cache.
+     * @return The cache, or null if tiles aren't cached.
+     */
+    public static TileCache getTileCache(ServletContext context) {
+        return (TileCache) context.getAttribute(TILE_CACHE_ATTRIBUTE);
+    }
+
+    /**
+     * Returns the engine an endpoint runs its bounding box queries with.
+     *
+     * @param context
+     *            The servlet context holding the parsed engines.
+     * @param endpoint
+     *            The endpoint, <tt>map</tt> or <tt>tiled</tt>.
+     * @return The engine its <tt>xapi.engine.*</tt> parameter names.
+     */
+    public static QueryEngine getQueryEngine(ServletContext context, String endpoint) {
+        QueryEngine engine = (QueryEngine) context.getAttribute(QUERY_ENGINE_ATTRIBUTE + endpoint);
+        if (engine == null) {
+            engine = QueryEngine.fromParameter(context.getInitParameter("xapi.engine." + endpoint));
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the compression to encode an endpoint's responses with, at the
+     * levels its <tt>xapi.gzipLevel.*</tt>, <tt>xapi.zstdLevel.*</tt> and
+     * <tt>xapi.brLevel.*</tt> parameters set.
+     *
+     * @param context
+     *            The servlet context holding the shared compression pool.
+     * @param endpoint
+     *            The endpoint, <tt>xapi</tt>, <tt>api</tt> or <tt>tiled</tt>.
+     * @return The compression for that endpoint.
+     */
+    public static ResponseCompression getCompression(ServletContext context, String endpoint) {
+        ResponseCompression compression = (ResponseCompression) context.getAttribute(COMPRESSION_ATTRIBUTE);
+        if (compression == null) {
+            compression = new ResponseCompression(1, 0, ContentEncodings.fromParameter(context
+                    .getInitParameter("xapi.contentEncodings")));
+        }
+        // Tiles are cached gzipped even when gzip isn't on offer.
+        Set<String> codings = new LinkedHashSet<String>();
+        codings.add("gzip");
+        for (ContentCodec codec : compression.getEncodings().getCodecs()) {
+            codings.add(codec.getName());
+        }
+        for (String coding : codings) {
+            String level = context.getInitParameter("xapi." + coding + "Level." + endpoint);
+            if (level != null) {
+                compression = compression.withLevel(coding, Integer.parseInt(level));
+            }
+        }
+        return compression;
+    }
+
+    /**
+     * Returns how far replication has brought the database.
+     *
+     * @param context
+     *            The servlet context holding the replication state service.
+     * @return The current replication state.
+     * @throws OsmosisRuntimeException
+     *             if the state isn't known.
+     */
+    public static ReplicationState getReplicationState(ServletContext context) {
+        ReplicationStateService service = (ReplicationStateService) context.getAttribute(REPLICATION_STATE_ATTRIBUTE);
+        if (service == null) {
+            return ReplicationState.read(context.getInitParameter("xapi.workingDirectory"));
+        }
+        ReplicationState state = service.getState();
+        if (state == null) {
+            throw new OsmosisRuntimeException("The replication state hasn't been read.");
+        }
+        return state;
+    }
+
+    private static String describe(ContentEncodings encodings) {
+        StringBuilder names = new StringBuilder();
+        for (ContentCodec codec : encodings.getCodecs()) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(codec.getName());
+        }
+        return names.length() == 0 ? "none" : names.toString();
+    }
+
+    private static DatabaseLoginCredentials buildLoginCredentials(ServletContext context) {
+        String jndiLocation = context.getInitParameter("xapi.db.datasource");
+        if (jndiLocation != null) {
+            return new DatabaseLoginCredentials(jndiLocation);
+        }
+
+        String host = context.getInitParameter("xapi.db.host");
+        String database = context.getInitParameter("xapi.db.database");
+        String user = context.getInitParameter("xapi.db.username");
+        String password = context.getInitParameter("xapi.db.password");
+        return new DatabaseLoginCredentials(host, database, user, password, true, false, null);
+    }
+
+    /**
+     * Validates the schema and probes its capabilities so that requests never
+     * have to. A failure here is only logged; the first request will probe
+     * again and report the problem to the client.
+     */
+    private void probeSchema(DatabaseLoginCredentials loginCredentials) {
+        try {
+            DatabaseCapabilities capabilities = DatabaseCapabilities.reprobe(loginCredentials, preferences);
+            log.info("Schema validated: wayLinestringSupported=" + capabilities.isWayLinestringSupported()
+                    + ", wayBboxSupported=" + capabilities.isWayBboxSupported());
+        } catch (OsmosisRuntimeException e) {
+            log.log(Level.SEVERE, "Could not validate the database schema.", e);
+        } catch (DataAccessException e) {
+            log.log(Level.SEVERE, "Could not validate the database schema.", e);
+        }
+    }
+
+    /**
+     * Looks up the pooled data source and borrows a single connection from it
+     * so the pool is filled before the first request arrives rather than
+     * during it.
+     */
+    private void warmDataSource(String jndiLocation) {
+        Connection connection = null;
+        try {
+            DataSource dataSource = (DataSource) new InitialContext().lookup(jndiLocation);
+            connection = dataSource.getConnection();
+
+            if (dataSource instanceof BasicDataSource) {
+                BasicDataSource pool = (BasicDataSource) dataSource;
+                log.info("Connection pool " + jndiLocation + " ready: minIdle=" + pool.getMinIdle() + ", maxIdle="
+                        + pool.getMaxIdle() + ", maxActive=" + pool.getMaxActive() + ", maxWait="
+                        + pool.getMaxWait() + "ms, validationQuery=" + pool.getValidationQuery());
+            } else {
+                log.info("Data source " + jndiLocation + " ready.");
+            }
+        } catch (NamingException e) {
+            log.log(Level.SEVERE, "Could not find the data source " + jndiLocation + ".", e);
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "Could not connect to the data source " + jndiLocation + ".", e);
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    log.log(Level.WARNING, "Could not return the warm-up connection to the pool.", e);
+                }
+            }
+        }
+    }
+}
@@ -1,16 +1,13 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
-import java.io.BufferedWriter;
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.URLDecoder;
 import java.util.Date;
-import java.util.Properties;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,38 +18,40 @@ import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
 import org.openstreetmap.osmosis.core.database.DatabasePreferences;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
 import org.openstreetmap.osmosis.core.time.DateFormatter;
-import org.openstreetmap.osmosis.core.time.DateParser;
-import org.openstreetmap.osmosis.core.util.PropertiesPersister;
 
 import com.yellowbkpk.geo.xapi.admin.RequestFilter;
 import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
 import com.yellowbkpk.geo.xapi.db.PostgreSqlDatasetContext;
 import com.yellowbkpk.geo.xapi.db.Selector;
+import com.yellowbkpk.geo.xapi.encoding.ContentCodec;
 import com.yellowbkpk.geo.xapi.query.XAPIParseException;
 import com.yellowbkpk.geo.xapi.query.XAPIQueryInfo;
+import com.yellowbkpk.geo.xapi.writer.XapiRowSink;
 import com.yellowbkpk.geo.xapi.writer.XapiSink;
 
 public class XapiServlet extends HttpServlet {
     private static final DatabasePreferences preferences = new DatabasePreferences(false, false);
 
-    private static final String LOCAL_STATE_FILE = "state.txt";
+    private static final int DUPLICATE_RETRY_AFTER_SECONDS = 60;
+
+    private static final int DEFAULT_SPOOL_MEMORY_BYTES = 1024 * 1024;
 
     private static Logger log = Logger.getLogger("XAPI");
 
+    private final QueryCoalescer coalescer = new QueryCoalescer();
+
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
-        String host = getServletContext().getInitParameter("xapi.db.host");
-        String database = getServletContext().getInitParameter("xapi.db.database");
-        String user = getServletContext().getInitParameter("xapi.db.username");
-        String password = getServletContext().getInitParameter("xapi.db.password");
-        DatabaseLoginCredentials loginCredentials = new DatabaseLoginCredentials(host, database, user, password, true,
-                false, null);
+        DatabaseLoginCredentials loginCredentials = XapiContextListener.getLoginCredentials(getServletContext());
 
-        String workingDirectory = getServletContext().getInitParameter("xapi.workingDirectory");
         String corsHeaderValue = getServletContext().getInitParameter("xapi.corsHeader");
         float maxBboxArea = Float.parseFloat(getServletContext().getInitParameter("xapi.max_bbox_area"));
+        boolean coalesceQueries = Boolean.parseBoolean(getServletContext().getInitParameter("xapi.coalesceQueries"));
+        boolean writeRows = Boolean.parseBoolean(getServletContext().getInitParameter("xapi.writeRows"));
+        boolean spoolResponses = Boolean.parseBoolean(getServletContext().getInitParameter("xapi.spoolResponses"));
 
         XapiQueryStats tracker = XapiQueryStats.beginTracking(Thread.currentThread());
         try {
@@ -79,7 +78,8 @@ public class XapiServlet extends HttpServlet {
                 query = URLDecoder.decode(query, "UTF-8");
 
                 if (XapiQueryStats.isQueryAlreadyRunning(query, request.getRemoteHost())) {
-                    response.sendError(500, "Ignoring a duplicate request from this address. Be patient!");
+                    AdmissionFilter.sendRetryLater(response, AdmissionFilter.SC_TOO_MANY_REQUESTS,
+                            DUPLICATE_RETRY_AFTER_SECONDS, "Ignoring a duplicate request from this address. Be patient!");
                     tracker.receivedUrl(query, request.getRemoteHost());
                     tracker.error();
                     return;
@@ -89,8 +89,12 @@ public class XapiServlet extends HttpServlet {
                 log.info(query + " starting.");
                 info = XAPIQueryInfo.fromString(query);
 
-                if (info.getFiletype() != null) {
+                // Without a format in the URL, the Accept header picks one.
+                if (info.hasFiletype()) {
                     filetype = info.getFiletype();
+                } else {
+                    filetype = Filetype.fromAcceptHeader(request.getHeader("Accept"), Filetype.xml);
+                    response.addHeader("Vary", "Accept");
                 }
 
             } catch (XAPIParseException e) {
@@ -119,9 +123,15 @@ public class XapiServlet extends HttpServlet {
             }
 
             double totalArea = 0;
+            double[] bounds = null;
             for (Selector bbox : info.getSelectors()) {
                 if (bbox instanceof Selector.Polygon) {
-                    totalArea += ((Selector.Polygon) bbox).area();
+                    Selector.Polygon polygon = (Selector.Polygon) bbox;
+                    totalArea += polygon.area();
+                    if (bounds == null) {
+                        bounds = new double[] { polygon.getLeft(), polygon.getRight(), polygon.getTop(),
+                                polygon.getBottom() };
+                    }
                 }
             }
             if (totalArea > maxBboxArea) {
@@ -130,9 +140,64 @@ public class XapiServlet extends HttpServlet {
                 return;
             }
 
+            ReplicationState state = null;
+            Date planetDate = null;
+            try {
+                state = XapiContextListener.getReplicationState(getServletContext());
+                planetDate = state.getTimestamp();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
+            }
+
+            String canonicalKey = info.getCanonicalKey(filetype);
+            String resultKey = canonicalKey + "@"
+                    + (planetDate == null ? "unknown" : Long.toString(planetDate.getTime()));
+
+            // A client's copy is current until replication moves on.
+            if (state != null) {
+                String etag = ConditionalGet.etag(canonicalKey, Long.toString(state.getSequenceNumber()));
+                if (ConditionalGet.isNotModified(request, etag, planetDate)) {
+                    log.info(query + " not modified.");
+                    ConditionalGet.sendNotModified(response, etag, planetDate);
+                    tracker.complete();
+                    return;
+                }
+                ConditionalGet.setValidators(response, etag, planetDate);
+            }
+
+            // Without a planet timestamp there's no telling when a cached
+            // response goes stale.
+            ResponseCache responseCache = null;
+            if (planetDate != null) {
+                responseCache = XapiContextListener.getResponseCache(getServletContext());
+            }
+            if (responseCache != null) {
+                byte[] cached = responseCache.get(canonicalKey, planetDate.getTime());
+                if (cached != null) {
+                    log.info(query + " answered from the response cache.");
+                    serveCachedResponse(cached, responseCache.getEncoding(), request, response, filetype,
+                            corsHeaderValue, tracker);
+                    return;
+                }
+            }
+
+            // Identical queries running at the same time share one database
+            // query, as long as they are against the same planet.
+            QueryCoalescer.Flight flight = null;
+            if (coalesceQueries) {
+                flight = coalescer.join(resultKey);
+                if (!flight.isLeader()) {
+                    log.info(query + " sharing a running query.");
+                    followQuery(flight, request, response, filetype, corsHeaderValue, tracker);
+                    return;
+                }
+            }
+
             // Query DB
             PostgreSqlDatasetContext datasetReader = null;
             ReleasableIterator<EntityContainer> bboxData = null;
+            CountingRowSink rowSink = null;
+            SpooledResponse spool = null;
             long elements = 0;
             long middle;
             try {
@@ -140,57 +205,100 @@ public class XapiServlet extends HttpServlet {
                 long start = System.currentTimeMillis();
                 datasetReader = new PostgreSqlDatasetContext(loginCredentials, preferences);
                 datasetReader.includeTimer(tracker);
-
-                bboxData = makeRequestIterator(datasetReader, info);
-                if (bboxData == null) {
-                    tracker.error();
-                    response.sendError(500, "Unsupported operation.");
-                    return;
+                datasetReader.setScratchTables(Boolean.parseBoolean(getServletContext().getInitParameter(
+                        "xapi.db.scratchTables")));
+                String fetchSize = getServletContext().getInitParameter("xapi.fetchSize.xapi");
+                if (fetchSize != null) {
+                    datasetReader.setFetchSize(Integer.parseInt(fetchSize));
+                }
+                String statementTimeout = getServletContext().getInitParameter("xapi.statementTimeout.xapi");
+                if (statementTimeout != null) {
+                    datasetReader.setStatementTimeout(Integer.parseInt(statementTimeout));
+                }
+                datasetReader.setQueryEngine(XapiContextListener.getQueryEngine(getServletContext(), "map"));
+
+                // Queries that can be written straight from their rows run
+                // as they are written, so there is nothing to run up front.
+                writeRows = writeRows && filetype.writesRows() && canWriteRows(info);
+                if (!writeRows) {
+                    bboxData = makeRequestIterator(datasetReader, info);
+                    if (bboxData == null) {
+                        tracker.error();
+                        response.sendError(500, "Unsupported operation.");
+                        return;
+                    }
                 }
                 tracker.startSerialization();
                 middle = System.currentTimeMillis();
-                log.info(query + " complete: " + (middle - start) + "ms");
-
-                // Build up a writer connected to the response output stream
-                response.setContentType(filetype.getContentTypeString());
-
-                OutputStream outputStream = response.getOutputStream();
-                String acceptEncodingHeader = request.getHeader("Accept-Encoding");
-                if (acceptEncodingHeader != null && acceptEncodingHeader.contains("gzip")) {
-                    outputStream = new GZIPOutputStream(outputStream);
-                    response.setHeader("Content-Encoding", "gzip");
+                if (!writeRows) {
+                    log.info(query + " complete: " + (middle - start) + "ms");
                 }
 
-                if (corsHeaderValue != null) {
-                    response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
+                // Build up a writer connected to the response output stream,
+                // through the spool when other requests may share the result.
+                // The copy for the cache is taken below any compression, so
+                // it is already compressed if the client accepts that. When
+                // responses are spooled the whole response is written before
+                // any of it is sent, so a slow client doesn't hold on to the
+                // database. Ties go to the coding the cache stores, so later
+                // hits can be sent as they are.
+                ContentCodec encoding = getCompression().negotiate(request,
+                        responseCache == null ? null : responseCache.getEncoding());
+                OutputStream outputStream;
+                if (spoolResponses) {
+                    spool = new SpooledResponse(getSpoolMemoryBytes(), encoding != null);
+                    outputStream = spool;
+                } else {
+                    outputStream = response.getOutputStream();
+                }
+                ResponseCache.Capture capture = null;
+                if (responseCache != null) {
+                    capture = responseCache.capture(outputStream);
+                    capture.setEncoding(encoding);
+                    outputStream = capture;
+                }
+                outputStream = openResponseStream(response, outputStream, filetype, corsHeaderValue, encoding);
+                if (flight != null) {
+                    outputStream = flight.getSpool().openOutputStream(outputStream, getSpoolMemoryBytes());
                 }
-
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(outputStream));
 
                 // Serialize to the client
-                XapiSink sink = filetype.getSink(out);
+                XapiSink sink = filetype.getSink(outputStream);
 
-                try {
-                    Date planetDate = getDatabaseLastModifiedDate(workingDirectory);
+                if (planetDate != null) {
                     sink.setExtra("xapi:planetDate", new DateFormatter().format(planetDate));
                     sink.setExtra("xmlns:xapi", "http://jxapi.openstreetmap.org/");
-                } catch (Exception e) {
-                    log.log(Level.WARNING, "Could not read state.txt so skipped setting planet date.");
                 }
 
-                while (bboxData.hasNext()) {
-                    elements++;
-                    sink.process(bboxData.next());
+                if (writeRows) {
+                    rowSink = new CountingRowSink((XapiRowSink) sink, capture);
+                    writeRequestRows(datasetReader, info, rowSink);
+                    elements = rowSink.getCount();
+                } else {
+                    while (bboxData.hasNext()) {
+                        elements++;
+                        EntityContainer container = bboxData.next();
+                        if (capture != null) {
+                            capture.addEntity(container.getEntity());
+                        }
+                        sink.process(container);
+                    }
                 }
 
                 sink.complete();
 
-                out.flush();
-                out.close();
+                outputStream.close();
                 tracker.elementsSerialized(elements);
+
+                if (capture != null) {
+                    responseCache.put(canonicalKey, capture, bounds, planetDate.getTime());
+                }
             } catch (Exception e) {
                 tracker.error(e);
-                log.log(Level.WARNING, "Error serializing: ", e);
+                if (rowSink != null) {
+                    elements = rowSink.getCount();
+                }
+                serializationFailed(e, spool, response, elements);
                 return;
             } finally {
                 if (bboxData != null) {
@@ -200,6 +308,18 @@ public class XapiServlet extends HttpServlet {
                     datasetReader.complete();
                     datasetReader.release();
                 }
+                if (flight != null) {
+                    coalescer.leave(flight);
+                }
+            }
+
+            if (spool != null) {
+                // Sending no longer needs the database, so another query can
+                // have the admission slot.
+                AdmissionFilter.releaseSlot(request);
+                if (!sendSpooledResponse(spool, query, response, tracker)) {
+                    return;
+                }
             }
 
             long end = System.currentTimeMillis();
@@ -228,10 +348,166 @@ public class XapiServlet extends HttpServlet {
         }
     }
 
-    private Date getDatabaseLastModifiedDate(String workingDirectory) {
-        PropertiesPersister localStatePersistor = new PropertiesPersister(new File(workingDirectory, LOCAL_STATE_FILE));
-        Properties properties = localStatePersistor.load();
-        return new DateParser().parse(properties.getProperty("timestamp"));
+    /**
+     * Sets the response headers and opens the stream the response body is
+     * written to, encoding it in the coding negotiated with the client.
+     */
+    private OutputStream openResponseStream(HttpServletResponse response, OutputStream outputStream,
+            Filetype filetype, String corsHeaderValue, ContentCodec encoding) throws IOException {
+        response.setContentType(filetype.getContentTypeString());
+
+        outputStream = getCompression().open(response, outputStream, encoding);
+
+        if (corsHeaderValue != null) {
+            response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
+        }
+
+        return outputStream;
+    }
+
+    /**
+     * Sends a response written to a spool, once the database has been
+     * released, and deletes the spool.
+     *
+     * @return False if the client disconnected.
+     */
+    private boolean sendSpooledResponse(SpooledResponse spool, String query, HttpServletResponse response,
+            XapiQueryStats tracker) {
+        try {
+            tracker.recordTimepoint("database released");
+            log.info(query + " spooled " + spool.getLength() + " bytes"
+                    + (spool.isOnDisk() ? " to disk." : " in memory."));
+            if (spool.getLength() <= Integer.MAX_VALUE) {
+                response.setContentLength((int) spool.getLength());
+            }
+            OutputStream outputStream = response.getOutputStream();
+            spool.writeTo(outputStream);
+            outputStream.close();
+            return true;
+        } catch (IOException e) {
+            tracker.error(e);
+            log.info("Client disconnected while being sent a spooled response.");
+            return false;
+        } finally {
+            spool.discard();
+        }
+    }
+
+    /**
+     * Cleans up after writing a response failed part way through, telling
+     * the client so when nothing has been sent yet.
+     *
+     * A spooled response has sent nothing when writing fails, but its
+     * headers, Content-Encoding among them, have been set. Returning without
+     * sending anything would give the client an empty body labelled as
+     * compressed, so the headers are cleared and an error sent instead.
+     *
+     * @param e
+     *            What went wrong.
+     * @param spool
+     *            The spool the response was being written to, or null if it
+     *            was written straight to the client.
+     * @param response
+     *            The response.
+     * @param elements
+     *            The number of elements written before it failed.
+     */
+    static void serializationFailed(Exception e, SpooledResponse spool, HttpServletResponse response, long elements)
+            throws IOException {
+        if (spool != null) {
+            spool.discard();
+        }
+        if (RequestFailures.isClientDisconnect(e)) {
+            // Rows are only fetched as they are written, so nothing is
+            // left running in the database once writing stops.
+            log.info("Client disconnected after " + elements + " elements.");
+        } else if (RequestFailures.isQueryCancelled(e)) {
+            log.warning("Query cancelled: " + e.getMessage());
+            if (!response.isCommitted()) {
+                response.reset();
+                response.sendError(503, "The query ran too long and was cancelled.");
+            }
+        } else {
+            log.log(Level.WARNING, "Error serializing: ", e);
+            if (spool != null && !response.isCommitted()) {
+                response.reset();
+                response.sendError(500, "The query failed.");
+            }
+        }
+    }
+
+    private int getSpoolMemoryBytes() {
+        String memoryKilobytes = getServletContext().getInitParameter("xapi.spool.memoryKilobytes");
+        return memoryKilobytes == null ? DEFAULT_SPOOL_MEMORY_BYTES : Integer.parseInt(memoryKilobytes) * 1024;
+    }
+
+    private ResponseCompression getCompression() {
+        return XapiContextListener.getCompression(getServletContext(), "xapi");
+    }
+
+    /**
+     * Answers a request from the response cache, sending the response as it
+     * is held to clients that accept the cache's coding and recoding it for
+     * the others.
+     */
+    private void serveCachedResponse(byte[] cached, ContentCodec cachedEncoding, HttpServletRequest request,
+            HttpServletResponse response, Filetype filetype, String corsHeaderValue, XapiQueryStats tracker)
+            throws IOException {
+        tracker.recordTimepoint("response cache hit");
+        response.setContentType(filetype.getContentTypeString());
+        if (corsHeaderValue != null) {
+            response.setHeader("Access-Control-Allow-Origin", corsHeaderValue);
+        }
+
+        try {
+            ResponseCompression compression = getCompression();
+            ContentCodec encoding = compression.negotiate(request, cachedEncoding);
+            if (encoding != null && encoding.getName().equals(cachedEncoding.getName())) {
+                response.addHeader("Vary", "Accept-Encoding");
+                response.setHeader("Content-Encoding", encoding.getName());
+                response.setContentLength(cached.length);
+                response.getOutputStream().write(cached);
+            } else {
+                ResponseCompression.copyDecoded(new ByteArrayInputStream(cached), cachedEncoding, compression.open(
+                        response, response.getOutputStream(), encoding));
+            }
+            tracker.recordTimepoint("response written");
+            tracker.complete();
+        } catch (IOException e) {
+            tracker.error(e);
+            log.info("Client disconnected while being sent a cached response.");
+        }
+    }
+
+    /**
+     * Answers a request by streaming the result of an identical query that
+     * another request is already running.
+     */
+    void followQuery(QueryCoalescer.Flight flight, HttpServletRequest request, HttpServletResponse response,
+            Filetype filetype, String corsHeaderValue, XapiQueryStats tracker) throws IOException {
+        try {
+            tracker.startDbQuery();
+            tracker.startSerialization();
+            tracker.recordTimepoint("following a shared query");
+            OutputStream outputStream = openResponseStream(response, response.getOutputStream(), filetype,
+                    corsHeaderValue, getCompression().negotiate(request));
+            flight.getSpool().copyTo(outputStream);
+            outputStream.close();
+            tracker.recordTimepoint("shared query copied");
+            tracker.complete();
+        } catch (ResultSpool.FailedException e) {
+            tracker.error(e);
+            if (!response.isCommitted()) {
+                response.reset();
+                AdmissionFilter.sendRetryLater(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        DUPLICATE_RETRY_AFTER_SECONDS, "The query this request was sharing failed.");
+            }
+        } catch (IOException e) {
+            tracker.error(e);
+            log.info("Client disconnected while sharing a query.");
+        } finally {
+            coalescer.leave(flight);
+        }
     }
 
     /**
@@ -267,4 +543,108 @@ public class XapiServlet extends HttpServlet {
 
         return bboxData;
     }
+
+    /**
+     * @param info
+     *            Object encapsulating the query information.
+     * @return True if the query can be written by
+     *         {@link #writeRequestRows(PostgreSqlDatasetContext, XAPIQueryInfo, XapiRowSink)}.
+     */
+    public static boolean canWriteRows(XAPIQueryInfo info) {
+        return XAPIQueryInfo.RequestType.MAP.equals(info.getKind()) && info.getSelectors().size() == 1;
+    }
+
+    /**
+     * Runs a query, writing the elements it selects straight from their rows
+     * to a sink. The sink gets the same elements, in the same order, as
+     * {@link #makeRequestIterator(PostgreSqlDatasetContext, XAPIQueryInfo)}
+     * returns for the query, but no entity is built for any of them.
+     *
+     * @param datasetReader
+     *            The database context to use when executing queries.
+     * @param info
+     *            Object encapsulating the query information, which must be
+     *            one that {@link #canWriteRows(XAPIQueryInfo)} accepts.
+     * @param sink
+     *            The sink to write to. It is not completed.
+     * @return The number of elements written, not counting the bound.
+     */
+    public static long writeRequestRows(PostgreSqlDatasetContext datasetReader, XAPIQueryInfo info,
+            XapiRowSink sink) {
+        Selector.Polygon boundingBox = (Selector.Polygon) info.getSelectors().get(0);
+        return datasetReader.writeBoundingBox(boundingBox.getLeft(), boundingBox.getRight(), boundingBox.getTop(),
+                boundingBox.getBottom(), true, sink);
+    }
+
+    /**
+     * Passes rows on to the response's sink, counting them and noting each
+     * element for the response cache as it goes.
+     */
+    private static class CountingRowSink implements XapiRowSink {
+        private final XapiRowSink sink;
+        private final ResponseCache.Capture capture;
+        private long count;
+
+        CountingRowSink(XapiRowSink sink, ResponseCache.Capture capture) {
+            this.sink = sink;
+            this.capture = capture;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        public void setExtra(String key, String value) {
+            sink.setExtra(key, value);
+        }
+
+        public void initialize(Map<String, Object> metaData) {
+            sink.initialize(metaData);
+        }
+
+        public void process(EntityContainer entityContainer) {
+            count++;
+            if (capture != null) {
+                capture.addEntity(entityContainer.getEntity());
+            }
+            sink.process(entityContainer);
+        }
+
+        public void processNode(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, double latitude, double longitude) {
+            count++;
+            if (capture != null) {
+                capture.addElement(EntityType.Node, id);
+            }
+            sink.processNode(id, version, timestamp, userId, userName, changesetId, tags, latitude, longitude);
+        }
+
+        public void processWay(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, long[] nodeIds, int nodeCount) {
+            count++;
+            if (capture != null) {
+                capture.addElement(EntityType.Way, id);
+            }
+            sink.processWay(id, version, timestamp, userId, userName, changesetId, tags, nodeIds, nodeCount);
+        }
+
+        public void processRelation(long id, int version, long timestamp, int userId, String userName,
+                long changesetId, Map<String, String> tags, long[] memberIds, EntityType[] memberTypes,
+                String[] memberRoles, int memberCount) {
+            count++;
+            if (capture != null) {
+                capture.addElement(EntityType.Relation, id);
+            }
+            sink.processRelation(id, version, timestamp, userId, userName, changesetId, tags, memberIds,
+                    memberTypes, memberRoles, memberCount);
+        }
+
+        public void complete() {
+            sink.complete();
+        }
+
+        public void release() {
+            sink.release();
+        }
+    }
 }
@@ -0,0 +1,642 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisConstants;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.xml.common.XmlTimestampFormat;
+
+/**
+ * Writes the same OSM XML as {@link XapiXmlWriter}, encoding it straight into
+ * a byte buffer as UTF-8. The markup is kept as ready-encoded bytes, escaping
+ * is a table lookup, and numbers and timestamps are written digit by digit,
+ * so writing an element doesn't create any strings. Elements can also be
+ * written straight from their database rows through {@link XapiRowSink}.
+ */
+public class XapiDirectXmlWriter implements XapiRowSink {
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int INDENT_SPACES_PER_LEVEL = 2;
+
+    private static final byte[] NEWLINE = ascii(System.getProperty("line.separator"));
+    private static final byte[] XML_DECLARATION = ascii("<?xml version='1.0' encoding='UTF-8'?>");
+    private static final byte[] OSM_OPEN = ascii("<osm version=\"0.6\" generator=\"Osmosis "
+            + OsmosisConstants.VERSION + "\"");
+    private static final byte[] OSM_CLOSE = ascii("</osm>");
+    private static final byte[] BOUNDS = ascii("<bounds minlon=\"");
+    private static final byte[] NODE = ascii("<node id=\"");
+    private static final byte[] NODE_CLOSE = ascii("</node>");
+    private static final byte[] WAY = ascii("<way id=\"");
+    private static final byte[] WAY_CLOSE = ascii("</way>");
+    private static final byte[] RELATION = ascii("<relation id=\"");
+    private static final byte[] RELATION_CLOSE = ascii("</relation>");
+    private static final byte[] TAG = ascii("<tag k=\"");
+    private static final byte[] VALUE = ascii("\" v=\"");
+    private static final byte[] ND = ascii("<nd ref=\"");
+    private static final byte[] MEMBER = ascii("<member type=\"");
+    private static final byte[] REF = ascii("\" ref=\"");
+    private static final byte[] ROLE = ascii("\" role=\"");
+    private static final byte[] VERSION = ascii("\" version=\"");
+    private static final byte[] TIMESTAMP = ascii("\" timestamp=\"");
+    private static final byte[] UID = ascii("\" uid=\"");
+    private static final byte[] USER = ascii("\" user=\"");
+    private static final byte[] CHANGESET = ascii("\" changeset=\"");
+    private static final byte[] LAT = ascii("\" lat=\"");
+    private static final byte[] LON = ascii("\" lon=\"");
+    private static final byte[] MINLAT = ascii("\" minlat=\"");
+    private static final byte[] MAXLON = ascii("\" maxlon=\"");
+    private static final byte[] MAXLAT = ascii("\" maxlat=\"");
+    private static final byte[] ORIGIN = ascii("\" origin=\"");
+    private static final byte[] END_EMPTY = ascii("\"/>");
+    private static final byte[] END_OPEN = ascii("\">");
+
+    /**
+     * The escaped form of each ASCII character, or null for those written as
+     * they are. Control characters XML can't hold are dropped, as Osmosis
+     * does.
+     */
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = new byte[0];
+        }
+        ESCAPES[0x7f] = new byte[0];
+        ESCAPES['<'] = ascii("&lt;");
+        ESCAPES['>'] = ascii("&gt;");
+        ESCAPES['"'] = ascii("&quot;");
+        ESCAPES['\''] = ascii("&apos;");
+        ESCAPES['&'] = ascii("&amp;");
+        ESCAPES['\n'] = ascii("&#xA;");
+        ESCAPES['\r'] = ascii("&#xD;");
+        ESCAPES['\t'] = ascii("&#x9;");
+    }
+
+    private static final byte[] NODE_TYPE = ascii("node");
+    private static final byte[] WAY_TYPE = ascii("way");
+    private static final byte[] RELATION_TYPE = ascii("relation");
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    private final Map<String, String> extras = new HashMap<String, String>();
+    private boolean begun;
+
+    private final byte[] timestamp = new byte[20];
+    private long timestampDay = Long.MIN_VALUE;
+    private XmlTimestampFormat timestampFormat;
+    private DecimalFormat coordinateFormat;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param output
+     *            The stream to send all data to.
+     */
+    public XapiDirectXmlWriter(OutputStream output) {
+        this.output = output;
+        timestamp[4] = '-';
+        timestamp[7] = '-';
+        timestamp[10] = 'T';
+        timestamp[13] = ':';
+        timestamp[16] = ':';
+        timestamp[19] = 'Z';
+    }
+
+    public void setExtra(String key, String value) {
+        extras.put(key, value);
+    }
+
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(EntityContainer entityContainer) {
+        try {
+            if (!begun) {
+                begin();
+            }
+            Entity entity = entityContainer.getEntity();
+            if (entity instanceof Node) {
+                writeNode((Node) entity);
+            } else if (entity instanceof Way) {
+                writeWay((Way) entity);
+            } else if (entity instanceof Relation) {
+                writeRelation((Relation) entity);
+            } else if (entity instanceof Bound) {
+                writeBound((Bound) entity);
+            }
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write data.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processNode(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, double latitude, double longitude) {
+        try {
+            if (!begun) {
+                begin();
+            }
+            writeStartTag(NODE, id, version, timestamp, userId, userName, changesetId);
+            writeLocation(latitude, longitude);
+            if (tags == null || tags.isEmpty()) {
+                writeEmptyTagEnd();
+            } else {
+                writeStartTagEnd();
+                writeTags(tags);
+                writeEndTag(NODE_CLOSE);
+            }
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write data.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processWay(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, long[] nodeIds, int nodeCount) {
+        try {
+            if (!begun) {
+                begin();
+            }
+            writeStartTag(WAY, id, version, timestamp, userId, userName, changesetId);
+            if (nodeCount == 0 && (tags == null || tags.isEmpty())) {
+                writeEmptyTagEnd();
+                return;
+            }
+            writeStartTagEnd();
+            for (int i = 0; i < nodeCount; i++) {
+                writeWayNode(nodeIds[i]);
+            }
+            if (tags != null) {
+                writeTags(tags);
+            }
+            writeEndTag(WAY_CLOSE);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write data.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processRelation(long id, int version, long timestamp, int userId, String userName,
+            long changesetId, Map<String, String> tags, long[] memberIds, EntityType[] memberTypes,
+            String[] memberRoles, int memberCount) {
+        try {
+            if (!begun) {
+                begin();
+            }
+            writeStartTag(RELATION, id, version, timestamp, userId, userName, changesetId);
+            if (memberCount == 0 && (tags == null || tags.isEmpty())) {
+                writeEmptyTagEnd();
+                return;
+            }
+            writeStartTagEnd();
+            for (int i = 0; i < memberCount; i++) {
+                writeMember(memberTypes[i], memberIds[i], memberRoles[i]);
+            }
+            if (tags != null) {
+                writeTags(tags);
+            }
+            writeEndTag(RELATION_CLOSE);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write data.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void complete() {
+        try {
+            if (!begun) {
+                begin();
+            }
+            write(OSM_CLOSE);
+            write(NEWLINE);
+            drain();
+            output.flush();
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write data.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+    }
+
+    private void begin() throws IOException {
+        write(XML_DECLARATION);
+        write(NEWLINE);
+        write(OSM_OPEN);
+        for (Map.Entry<String, String> extra : extras.entrySet()) {
+            writeByte(' ');
+            writeEscaped(extra.getKey());
+            writeByte('=');
+            writeByte('"');
+            writeEscaped(extra.getValue());
+            writeByte('"');
+        }
+        writeByte('>');
+        write(NEWLINE);
+        begun = true;
+    }
+
+    private void writeBound(Bound bound) throws IOException {
+        indent(1);
+        write(BOUNDS);
+        writeAscii(String.format(Locale.US, "%.5f", bound.getLeft()));
+        write(MINLAT);
+        writeAscii(String.format(Locale.US, "%.5f", bound.getBottom()));
+        write(MAXLON);
+        writeAscii(String.format(Locale.US, "%.5f", bound.getRight()));
+        write(MAXLAT);
+        writeAscii(String.format(Locale.US, "%.5f", bound.getTop()));
+        if (bound.getOrigin() != null) {
+            write(ORIGIN);
+            writeEscaped(bound.getOrigin());
+        }
+        write(END_EMPTY);
+        write(NEWLINE);
+    }
+
+    private void writeNode(Node node) throws IOException {
+        writeStartTag(NODE, node);
+        writeLocation(node.getLatitude(), node.getLongitude());
+        if (node.getTags().isEmpty()) {
+            writeEmptyTagEnd();
+        } else {
+            writeStartTagEnd();
+            writeTags(node.getTags());
+            writeEndTag(NODE_CLOSE);
+        }
+    }
+
+    private void writeWay(Way way) throws IOException {
+        writeStartTag(WAY, way);
+        if (way.getWayNodes().isEmpty() && way.getTags().isEmpty()) {
+            writeEmptyTagEnd();
+            return;
+        }
+        writeStartTagEnd();
+        for (WayNode wayNode : way.getWayNodes()) {
+            writeWayNode(wayNode.getNodeId());
+        }
+        writeTags(way.getTags());
+        writeEndTag(WAY_CLOSE);
+    }
+
+    private void writeRelation(Relation relation) throws IOException {
+        writeStartTag(RELATION, relation);
+        if (relation.getMembers().isEmpty() && relation.getTags().isEmpty()) {
+            writeEmptyTagEnd();
+            return;
+        }
+        writeStartTagEnd();
+        for (RelationMember member : relation.getMembers()) {
+            writeMember(member.getMemberType(), member.getMemberId(), member.getMemberRole());
+        }
+        writeTags(relation.getTags());
+        writeEndTag(RELATION_CLOSE);
+    }
+
+    private void writeStartTag(byte[] start, Entity entity) throws IOException {
+        OsmUser user = entity.getUser();
+        writeStartTag(start, entity.getId(), entity.getVersion(), entity.getTimestamp().getTime(), user.getId(),
+                user.getName(), entity.getChangesetId());
+    }
+
+    /**
+     * Writes the start of an element's start tag, from the indent up to the
+     * closing quote of its last common attribute.
+     */
+    private void writeStartTag(byte[] start, long id, int version, long timestamp, int userId, String userName,
+            long changesetId) throws IOException {
+        indent(1);
+        write(start);
+        writeLong(id);
+        write(VERSION);
+        writeLong(version);
+        write(TIMESTAMP);
+        writeTimestamp(timestamp);
+        if (userId != OsmUser.NONE.getId()) {
+            write(UID);
+            writeLong(userId);
+            write(USER);
+            if (userName != null) {
+                writeEscaped(userName);
+            }
+        }
+        writeChangeset(changesetId);
+    }
+
+    private void writeChangeset(long changesetId) throws IOException {
+        if (changesetId != 0) {
+            write(CHANGESET);
+            writeLong(changesetId);
+        }
+    }
+
+    private void writeLocation(double latitude, double longitude) throws IOException {
+        if (!Double.isNaN(latitude)) {
+            write(LAT);
+            writeCoordinate(latitude);
+        }
+        if (!Double.isNaN(longitude)) {
+            write(LON);
+            writeCoordinate(longitude);
+        }
+    }
+
+    private void writeStartTagEnd() throws IOException {
+        write(END_OPEN);
+        write(NEWLINE);
+    }
+
+    private void writeEmptyTagEnd() throws IOException {
+        write(END_EMPTY);
+        write(NEWLINE);
+    }
+
+    private void writeEndTag(byte[] end) throws IOException {
+        indent(1);
+        write(end);
+        write(NEWLINE);
+    }
+
+    private void writeWayNode(long nodeId) throws IOException {
+        indent(2);
+        write(ND);
+        writeLong(nodeId);
+        write(END_EMPTY);
+        write(NEWLINE);
+    }
+
+    private void writeMember(EntityType type, long memberId, String memberRole) throws IOException {
+        indent(2);
+        write(MEMBER);
+        write(type == EntityType.Node ? NODE_TYPE : type == EntityType.Way ? WAY_TYPE : RELATION_TYPE);
+        write(REF);
+        writeLong(memberId);
+        write(ROLE);
+        writeEscaped(memberRole);
+        write(END_EMPTY);
+        write(NEWLINE);
+    }
+
+    private void writeTags(Collection<Tag> tags) throws IOException {
+        for (Tag tag : tags) {
+            writeTag(tag.getKey(), tag.getValue());
+        }
+    }
+
+    private void writeTags(Map<String, String> tags) throws IOException {
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeTag(tag.getKey(), tag.getValue());
+        }
+    }
+
+    private void writeTag(String key, String value) throws IOException {
+        indent(2);
+        write(TAG);
+        writeEscaped(key);
+        write(VALUE);
+        writeEscaped(value);
+        write(END_EMPTY);
+        write(NEWLINE);
+    }
+
+    /**
+     * Writes a timestamp as yyyy-MM-ddTHH:mm:ssZ in UTC. The date part is
+     * only worked out again when the day changes.
+     */
+    private void writeTimestamp(long millis) throws IOException {
+        long seconds = millis >= 0 ? millis / 1000 : -((999 - millis) / 1000);
+        long day = seconds >= 0 ? seconds / 86400 : -((86399 - seconds) / 86400);
+        if (day != timestampDay) {
+            if (!formatDate(day)) {
+                if (timestampFormat == null) {
+                    timestampFormat = new XmlTimestampFormat();
+                }
+                writeAscii(timestampFormat.formatTimestamp(new Date(millis)));
+                return;
+            }
+            timestampDay = day;
+        }
+        int secondOfDay = (int) (seconds - day * 86400);
+        setDigits(timestamp, 11, 2, secondOfDay / 3600);
+        setDigits(timestamp, 14, 2, secondOfDay / 60 % 60);
+        setDigits(timestamp, 17, 2, secondOfDay % 60);
+        write(timestamp);
+    }
+
+    /**
+     * Fills in the date part of the timestamp from a count of days since the
+     * epoch, using the civil calendar algorithm from Howard Hinnant's
+     * <tt>chrono</tt> date algorithms.
+     *
+     * @return False if the year doesn't fit in four digits.
+     */
+    private boolean formatDate(long day) {
+        long shifted = day + 719468;
+        long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long dayOfMonth = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return false;
+        }
+        setDigits(timestamp, 0, 4, (int) year);
+        setDigits(timestamp, 5, 2, (int) month);
+        setDigits(timestamp, 8, 2, (int) dayOfMonth);
+        return true;
+    }
+
+    private static void setDigits(byte[] target, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Writes a coordinate as Osmosis does, to at most 7 decimal places. A
+     * coordinate that is exactly some number of 1e-7 degrees, which is all of
+     * them once they have been through the database, is written from that
+     * number. Anything else goes through the same format Osmosis uses.
+     */
+    private void writeCoordinate(double value) throws IOException {
+        long scaled = Math.round(value * 1e7);
+        if (scaled / 1e7 != value || (scaled == 0 && Double.doubleToRawLongBits(value) != 0)) {
+            if (coordinateFormat == null) {
+                coordinateFormat = new DecimalFormat("0.#######;-0.#######", new DecimalFormatSymbols(Locale.US));
+            }
+            writeAscii(coordinateFormat.format(value));
+            return;
+        }
+        if (scaled < 0) {
+            writeByte('-');
+            scaled = -scaled;
+        }
+        writeLong(scaled / 10000000);
+        int fraction = (int) (scaled % 10000000);
+        if (fraction != 0) {
+            int digits = 7;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            ensure(digits + 1);
+            buffer[position] = '.';
+            setDigits(buffer, position + 1, digits, fraction);
+            position += digits + 1;
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Writes a string as UTF-8 with XML escaping. A lone surrogate is written
+     * as '?', as the JDK's encoder does.
+     */
+    private void writeEscaped(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    if (position == buffer.length) {
+                        drain();
+                    }
+                    buffer[position++] = (byte) c;
+                } else {
+                    write(escape);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                ensure(3);
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                writeByte('?');
+            }
+        }
+    }
+
+    private void writeAscii(String value) throws IOException {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void indent(int level) throws IOException {
+        int spaces = level * INDENT_SPACES_PER_LEVEL;
+        ensure(spaces);
+        for (int i = 0; i < spaces; i++) {
+            buffer[position++] = ' ';
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Makes room for a number of bytes, which must be no more than the size
+     * of the buffer.
+     */
+    private void ensure(int length) throws IOException {
+        if (position + length > buffer.length) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
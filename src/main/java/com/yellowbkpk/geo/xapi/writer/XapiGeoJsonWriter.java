@@ -0,0 +1,490 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+
+/**
+ * Writes elements out as a GeoJSON FeatureCollection as they arrive, rather
+ * than building the document up in memory.
+ *
+ * Tagged nodes become Point features straight away. Ways become LineString
+ * features from the locations of the nodes written before them, which is the
+ * order every query returns elements in, so node locations are kept until the
+ * end. Untagged nodes only become features of their own if no way used them.
+ * Relations are written with their members and no geometry.
+ */
+public class XapiGeoJsonWriter implements XapiRowSink {
+
+    private final BufferedWriter writer;
+    private final Map<String, String> extras = new LinkedHashMap<String, String>();
+    private final NodeLocations locations = new NodeLocations();
+    private boolean headerWritten;
+    private boolean firstFeature = true;
+    private long[] wayNodeIds = new long[256];
+
+    /**
+     * Creates a new instance.
+     *
+     * @param writer
+     *            The writer to send all data to.
+     */
+    public XapiGeoJsonWriter(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    public void setExtra(String key, String value) {
+        // Namespace declarations only mean something in XML.
+        if (!key.startsWith("xmlns")) {
+            extras.put(key, value);
+        }
+    }
+
+    public void initialize(Map<String, Object> metaData) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(EntityContainer entityContainer) {
+        try {
+            Entity entity = entityContainer.getEntity();
+            if (entity instanceof Bound) {
+                if (!headerWritten) {
+                    writeHeader((Bound) entity);
+                }
+                return;
+            }
+            if (!headerWritten) {
+                writeHeader(null);
+            }
+
+            if (entity instanceof Node) {
+                Node node = (Node) entity;
+                boolean tagged = !node.getTags().isEmpty();
+                locations.put(node.getId(), node.getLongitude(), node.getLatitude(), tagged);
+                if (tagged) {
+                    writePoint(node.getId(), node.getLongitude(), node.getLatitude(), node.getTags());
+                }
+            } else if (entity instanceof Way) {
+                writeWay((Way) entity);
+            } else if (entity instanceof Relation) {
+                writeRelation((Relation) entity);
+            }
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write GeoJSON.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processNode(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, double latitude, double longitude) {
+        try {
+            if (!headerWritten) {
+                writeHeader(null);
+            }
+            boolean tagged = tags != null && !tags.isEmpty();
+            locations.put(id, longitude, latitude, tagged);
+            if (tagged) {
+                writePointGeometry(id, longitude, latitude);
+                writeProperties(tags);
+            }
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write GeoJSON.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processWay(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, long[] nodeIds, int nodeCount) {
+        try {
+            if (!headerWritten) {
+                writeHeader(null);
+            }
+            writeLineStringGeometry(id, nodeIds, nodeCount);
+            writeProperties(tags == null ? Collections.<String, String> emptyMap() : tags);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write GeoJSON.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void processRelation(long id, int version, long timestamp, int userId, String userName,
+            long changesetId, Map<String, String> tags, long[] memberIds, EntityType[] memberTypes,
+            String[] memberRoles, int memberCount) {
+        try {
+            if (!headerWritten) {
+                writeHeader(null);
+            }
+            beginFeature("relation", id);
+            writer.write("null,\"members\":[");
+            for (int i = 0; i < memberCount; i++) {
+                writeMember(i == 0, memberTypes[i], memberIds[i], memberRoles[i]);
+            }
+            writer.write(']');
+            writeProperties(tags == null ? Collections.<String, String> emptyMap() : tags);
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write GeoJSON.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void complete() {
+        try {
+            if (!headerWritten) {
+                writeHeader(null);
+            }
+            for (int i = 0; i < locations.capacity(); i++) {
+                if (locations.isLoneUntaggedNode(i)) {
+                    writePoint(locations.idAt(i), locations.lonAt(i), locations.latAt(i),
+                            Collections.<Tag> emptyList());
+                }
+            }
+            writer.write("]}\n");
+            writer.flush();
+        } catch (IOException e) {
+            throw new OsmosisRuntimeException("Unable to write GeoJSON.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+    }
+
+    private void writeHeader(Bound bound) throws IOException {
+        writer.write("{\"type\":\"FeatureCollection\"");
+        for (Map.Entry<String, String> extra : extras.entrySet()) {
+            writer.write(',');
+            writeString(extra.getKey());
+            writer.write(':');
+            writeString(extra.getValue());
+        }
+        if (bound != null) {
+            writer.write(",\"bbox\":[");
+            writeCoordinate(bound.getLeft());
+            writer.write(',');
+            writeCoordinate(bound.getBottom());
+            writer.write(',');
+            writeCoordinate(bound.getRight());
+            writer.write(',');
+            writeCoordinate(bound.getTop());
+            writer.write(']');
+        }
+        writer.write(",\"features\":[");
+        headerWritten = true;
+    }
+
+    private void beginFeature(String type, long id) throws IOException {
+        if (!firstFeature) {
+            writer.write(',');
+        }
+        firstFeature = false;
+        writer.write("\n{\"type\":\"Feature\",\"id\":\"");
+        writer.write(type);
+        writer.write('/');
+        writer.write(Long.toString(id));
+        writer.write("\",\"geometry\":");
+    }
+
+    private void endFeature(Collection<Tag> tags) throws IOException {
+        writer.write(",\"properties\":{");
+        boolean first = true;
+        for (Tag tag : tags) {
+            writeProperty(first, tag.getKey(), tag.getValue());
+            first = false;
+        }
+        writer.write("}}");
+    }
+
+    private void writeProperties(Map<String, String> tags) throws IOException {
+        writer.write(",\"properties\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeProperty(first, tag.getKey(), tag.getValue());
+            first = false;
+        }
+        writer.write("}}");
+    }
+
+    private void writeProperty(boolean first, String key, String value) throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        writeString(key);
+        writer.write(':');
+        writeString(value);
+    }
+
+    private void writePoint(long id, double lon, double lat, Collection<Tag> tags) throws IOException {
+        writePointGeometry(id, lon, lat);
+        endFeature(tags);
+    }
+
+    private void writePointGeometry(long id, double lon, double lat) throws IOException {
+        beginFeature("node", id);
+        writer.write("{\"type\":\"Point\",\"coordinates\":[");
+        writeCoordinate(lon);
+        writer.write(',');
+        writeCoordinate(lat);
+        writer.write("]}");
+    }
+
+    private void writeWay(Way way) throws IOException {
+        List<WayNode> wayNodes = way.getWayNodes();
+        ensureWayNodeCapacity(wayNodes.size());
+        int count = 0;
+        for (WayNode wayNode : wayNodes) {
+            wayNodeIds[count++] = wayNode.getNodeId();
+        }
+        writeLineStringGeometry(way.getId(), wayNodeIds, count);
+        endFeature(way.getTags());
+    }
+
+    private void ensureWayNodeCapacity(int count) {
+        if (wayNodeIds.length < count) {
+            wayNodeIds = new long[Math.max(count, wayNodeIds.length * 2)];
+        }
+    }
+
+    /**
+     * Begins a way's feature with the line through the first <tt>count</tt>
+     * of its nodes.
+     */
+    private void writeLineStringGeometry(long id, long[] nodeIds, int count) throws IOException {
+        beginFeature("way", id);
+
+        int located = 0;
+        for (int i = 0; i < count; i++) {
+            if (locations.indexOf(nodeIds[i]) >= 0) {
+                located++;
+            }
+        }
+        if (located < 2) {
+            writer.write("null");
+        } else {
+            writer.write("{\"type\":\"LineString\",\"coordinates\":[");
+            boolean first = true;
+            for (int i = 0; i < count; i++) {
+                int index = locations.indexOf(nodeIds[i]);
+                if (index < 0) {
+                    continue;
+                }
+                locations.markUsed(index);
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writer.write('[');
+                writeCoordinate(locations.lonAt(index));
+                writer.write(',');
+                writeCoordinate(locations.latAt(index));
+                writer.write(']');
+            }
+            writer.write("]}");
+        }
+    }
+
+    private void writeRelation(Relation relation) throws IOException {
+        beginFeature("relation", relation.getId());
+        writer.write("null,\"members\":[");
+        boolean first = true;
+        for (RelationMember member : relation.getMembers()) {
+            writeMember(first, member.getMemberType(), member.getMemberId(), member.getMemberRole());
+            first = false;
+        }
+        writer.write(']');
+        endFeature(relation.getTags());
+    }
+
+    private void writeMember(boolean first, EntityType type, long id, String role) throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        writer.write("{\"type\":\"");
+        writer.write(type.name().toLowerCase());
+        writer.write("\",\"ref\":");
+        writer.write(Long.toString(id));
+        writer.write(",\"role\":");
+        writeString(role);
+        writer.write('}');
+    }
+
+    /**
+     * Writes a coordinate to 7 decimal places, the precision OSM keeps them
+     * at, without going through a formatter.
+     */
+    private void writeCoordinate(double value) throws IOException {
+        long scaled = Math.round(value * 1e7);
+        if (scaled < 0) {
+            writer.write('-');
+            scaled = -scaled;
+        }
+        writer.write(Long.toString(scaled / 10000000));
+        long fraction = scaled % 10000000;
+        if (fraction != 0) {
+            char[] digits = new char[8];
+            digits[0] = '.';
+            int length = 8;
+            for (int i = 7; i > 0; i--) {
+                digits[i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            while (digits[length - 1] == '0') {
+                length--;
+            }
+            writer.write(digits, 0, length);
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writer.write('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String escape;
+            if (c == '"') {
+                escape = "\\\"";
+            } else if (c == '\\') {
+                escape = "\\\\";
+            } else if (c == '\n') {
+                escape = "\\n";
+            } else if (c == '\r') {
+                escape = "\\r";
+            } else if (c == '\t') {
+                escape = "\\t";
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                // The line separators are valid JSON but break JavaScript.
+                escape = String.format("\\u%04x", (int) c);
+            } else {
+                continue;
+            }
+            writer.write(value, start, i - start);
+            writer.write(escape);
+            start = i + 1;
+        }
+        writer.write(value, start, length - start);
+        writer.write('"');
+    }
+
+    /**
+     * Node locations by id in open-addressed arrays, which take a fraction of
+     * the memory of a map of boxed values.
+     */
+    private static class NodeLocations {
+        private static final byte EMPTY = 0;
+        private static final byte UNTAGGED = 1;
+        private static final byte TAGGED = 2;
+        private static final byte USED = 3;
+
+        private long[] ids = new long[1024];
+        private double[] lons = new double[1024];
+        private double[] lats = new double[1024];
+        private byte[] states = new byte[1024];
+        private int shift = 64 - Integer.numberOfTrailingZeros(1024);
+        private int size;
+
+        void put(long id, double lon, double lat, boolean tagged) {
+            if (size * 2 >= ids.length) {
+                grow();
+            }
+            int index = slot(id);
+            if (states[index] == EMPTY) {
+                size++;
+            }
+            ids[index] = id;
+            lons[index] = lon;
+            lats[index] = lat;
+            states[index] = tagged ? TAGGED : UNTAGGED;
+        }
+
+        int indexOf(long id) {
+            int index = slot(id);
+            return states[index] == EMPTY ? -1 : index;
+        }
+
+        void markUsed(int index) {
+            states[index] = USED;
+        }
+
+        boolean isLoneUntaggedNode(int index) {
+            return states[index] == UNTAGGED;
+        }
+
+        int capacity() {
+            return ids.length;
+        }
+
+        long idAt(int index) {
+            return ids[index];
+        }
+
+        double lonAt(int index) {
+            return lons[index];
+        }
+
+        double latAt(int index) {
+            return lats[index];
+        }
+
+        private int slot(long id) {
+            // Fibonacci hashing, the top bits of the product are the best
+            // mixed and there are just enough of them to index the table.
+            int mask = ids.length - 1;
+            int index = (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+            while (states[index] != EMPTY && ids[index] != id) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void grow() {
+            long[] oldIds = ids;
+            double[] oldLons = lons;
+            double[] oldLats = lats;
+            byte[] oldStates = states;
+            ids = new long[oldIds.length * 2];
+            lons = new double[ids.length];
+            lats = new double[ids.length];
+            states = new byte[ids.length];
+            shift = 64 - Integer.numberOfTrailingZeros(ids.length);
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldStates[i] != EMPTY) {
+                    int index = slot(oldIds[i]);
+                    ids[index] = oldIds[i];
+                    lons[index] = oldLons[i];
+                    lats[index] = oldLats[i];
+                    states[index] = oldStates[i];
+                }
+            }
+            Arrays.fill(oldStates, EMPTY);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.io.OutputStream;
+
+import crosby.binary.file.BlockOutputStream;
+import crosby.binary.osmosis.OsmosisSerializer;
+
+/**
+ * Writes elements out as OSM PBF. Nodes are packed into dense node groups
+ * and every block carries its own string table, so blocks are written to the
+ * stream as each one fills rather than at the end.
+ */
+public class XapiPbfWriter extends OsmosisSerializer implements XapiSink {
+
+    /**
+     * Creates a new instance.
+     *
+     * @param output
+     *            The stream to send all data to.
+     */
+    public XapiPbfWriter(OutputStream output) {
+        super(new BlockOutputStream(output));
+
+        setUseDense(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The PBF header has nowhere to put extra attributes, so they're dropped.
+     */
+    public void setExtra(String key, String value) {
+    }
+}
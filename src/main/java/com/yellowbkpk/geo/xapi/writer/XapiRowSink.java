@@ -0,0 +1,34 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+
+/**
+ * A sink which can also be given elements as the columns they are stored in,
+ * so a query can write each row out without building an Osmosis entity for
+ * it first. Elements given either way may be mixed, and the output is the
+ * same as if each had been passed to {@link #process} as an entity.
+ *
+ * The first six parameters of each method are common to every element. A
+ * <tt>userId</tt> equal to that of {@link OsmUser#NONE} means the element has
+ * no user, and a null <tt>userName</tt> is written as an empty name. Null
+ * tags are treated as empty. Only the first <tt>nodeCount</tt> or
+ * <tt>memberCount</tt> elements of the arrays are used, and the arrays may
+ * be null if that is zero. Callers may reuse the tags and arrays once a
+ * method returns, so sinks must not keep them.
+ */
+public interface XapiRowSink extends XapiSink {
+
+    void processNode(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, double latitude, double longitude);
+
+    void processWay(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, long[] nodeIds, int nodeCount);
+
+    void processRelation(long id, int version, long timestamp, int userId, String userName, long changesetId,
+            Map<String, String> tags, long[] memberIds, EntityType[] memberTypes, String[] memberRoles,
+            int memberCount);
+
+}
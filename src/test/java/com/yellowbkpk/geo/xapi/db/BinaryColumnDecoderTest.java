@@ -0,0 +1,140 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.hstore.PGHStore;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BinaryColumnDecoderTest {
+
+    @Test
+    public void testTagsMatchTextForm() throws IOException, SQLException {
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("highway", "residential");
+        tags.put("name", "Rue de l'\u00C9glise \"Haute\"");
+        tags.put("note", "back\\slash, comma => arrow");
+        tags.put("name:zh", "\u5496\u5561\u9986 \uD83C\uDF75");
+        tags.put("", "");
+        tags.put("description", "a value long enough not to be kept in the string cache at all");
+
+        PGHStore text = new PGHStore(new PGHStore(tags).getValue());
+        BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+        Assert.assertEquals(new HashMap<String, String>(decoder.readTags(hstore(tags))), new HashMap<String, String>(
+                text));
+
+        // Decoding again gives the cached strings, and the map is reused.
+        Map<String, String> first = decoder.readTags(hstore(tags));
+        Assert.assertSame(decoder.readTags(hstore(tags)), first);
+        Assert.assertEquals(first.size(), tags.size());
+    }
+
+    @Test
+    public void testEmptyAndNullTags() throws IOException {
+        BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+        Assert.assertTrue(decoder.readTags(null).isEmpty());
+        Assert.assertTrue(decoder.readTags(hstore(new HashMap<String, String>())).isEmpty());
+        Assert.assertFalse(decoder.readTags(null).entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testLongs() throws IOException {
+        BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 2 == 0 ? 1 : -1) * (long) i * 98765432101L;
+        }
+        values[1] = Long.MIN_VALUE;
+        values[2] = Long.MAX_VALUE;
+
+        Assert.assertEquals(decoder.readLongs(longArray(values)), values.length);
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(decoder.getLongs()[i], values[i]);
+        }
+        Assert.assertEquals(decoder.readLongs(longArray(new long[0])), 0);
+        Assert.assertEquals(decoder.readLongs(null), 0);
+    }
+
+    @Test
+    public void testStringsAndMemberTypes() throws IOException {
+        BinaryColumnDecoder decoder = new BinaryColumnDecoder();
+        String[] roles = { "outer", "", "inner", "stop \u00E9" };
+        Assert.assertEquals(decoder.readStrings(textArray(roles)), roles.length);
+        for (int i = 0; i < roles.length; i++) {
+            Assert.assertEquals(decoder.getStrings()[i], roles[i]);
+        }
+
+        Assert.assertEquals(decoder.readMemberTypes(textArray(new String[] { "W", "N", "R" })), 3);
+        Assert.assertEquals(decoder.getMemberTypes()[0], EntityType.Way);
+        Assert.assertEquals(decoder.getMemberTypes()[1], EntityType.Node);
+        Assert.assertEquals(decoder.getMemberTypes()[2], EntityType.Relation);
+    }
+
+    /**
+     * Encodes tags as hstore_send does.
+     */
+    static byte[] hstore(Map<String, String> tags) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeText(out, tag.getKey());
+            writeText(out, tag.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a bigint[] as array_send does.
+     */
+    static byte[] longArray(long[] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeArrayHeader(out, values.length, 20);
+        for (long value : values) {
+            out.writeInt(8);
+            out.writeLong(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a text[] as array_send does.
+     */
+    static byte[] textArray(String[] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeArrayHeader(out, values.length, 25);
+        for (String value : values) {
+            writeText(out, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeArrayHeader(DataOutputStream out, int length, int elementType) throws IOException {
+        out.writeInt(length == 0 ? 0 : 1);
+        out.writeInt(0);
+        out.writeInt(elementType);
+        if (length > 0) {
+            out.writeInt(length);
+            out.writeInt(1);
+        }
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] utf8 = value.getBytes("UTF-8");
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ChangeLocatorTest {
+
+    // deleted elements have no location in the change, so they are only
+    // tracked by id, and nothing is looked up in the database for them.
+    @Test
+    public void testDeletes() {
+        ChangeLocator locator = new ChangeLocator();
+        locator.process(new ChangeContainer(new NodeContainer(new Node(data(5), 0, 0)), ChangeAction.Delete));
+        locator.process(new ChangeContainer(new WayContainer(new Way(data(10), new ArrayList<WayNode>())),
+                ChangeAction.Delete));
+        locator.process(new ChangeContainer(new RelationContainer(new Relation(data(20),
+                new ArrayList<RelationMember>())), ChangeAction.Delete));
+        ChangedArea area = locator.locate(null);
+
+        Assert.assertFalse(area.isEmpty());
+        Assert.assertTrue(area.containsAny(new long[] { 5 }, new long[0], new long[0]));
+        Assert.assertTrue(area.containsAny(new long[0], new long[] { 10 }, new long[0]));
+        Assert.assertTrue(area.containsAny(new long[0], new long[0], new long[] { 20 }));
+        Assert.assertFalse(area.containsAny(new long[] { 10, 20 }, new long[] { 5, 20 }, new long[] { 5, 10 }));
+        Assert.assertFalse(area.intersects(-1, 1, 1, -1), "A deleted node's missing location isn't a change.");
+    }
+
+    // a moved node is located where it moved to, and results holding it
+    // where it was are found by its id.
+    @Test
+    public void testMovedNode() {
+        ChangeLocator locator = new ChangeLocator();
+        locator.process(new ChangeContainer(new NodeContainer(new Node(data(7), 51.5, -0.1)), ChangeAction.Modify));
+        ChangedArea area = locator.locate(null);
+
+        Assert.assertTrue(area.intersects(-0.11, -0.09, 51.51, 51.49));
+        Assert.assertFalse(area.intersects(2.3, 2.4, 48.9, 48.8));
+        Assert.assertTrue(area.containsAny(new long[] { 3, 7, 9 }, new long[0], new long[0]));
+    }
+
+    private static CommonEntityData data(long id) {
+        return new CommonEntityData(id, 2, new Date(0), OsmUser.NONE, 0);
+    }
+}
@@ -0,0 +1,44 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongHashSetTest {
+
+    // each value is only held once, however often it is added, and the set
+    // keeps them all as it grows.
+    @Test
+    public void testAddsEachValueOnce() {
+        LongHashSet set = new LongHashSet();
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertTrue(set.add(i * 4096));
+        }
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertFalse(set.add(i * 4096));
+        }
+
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        Assert.assertEquals(set.size(), 1000);
+        Assert.assertEquals(values.length, 1000);
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], i * 4096L);
+        }
+    }
+
+    // the value used to mark free slots can still be held.
+    @Test
+    public void testMinimumValue() {
+        LongHashSet set = new LongHashSet();
+        Assert.assertTrue(set.isEmpty());
+        Assert.assertTrue(set.add(Long.MIN_VALUE));
+        Assert.assertFalse(set.add(Long.MIN_VALUE));
+        Assert.assertTrue(set.add(0));
+
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        Assert.assertEquals(values, new long[] { Long.MIN_VALUE, 0 });
+    }
+}
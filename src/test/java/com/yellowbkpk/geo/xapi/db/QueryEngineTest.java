@@ -0,0 +1,26 @@
+package com.yellowbkpk.geo.xapi.db;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class QueryEngineTest {
+
+    @Test
+    public void testFromParameter() {
+        Assert.assertEquals(QueryEngine.fromParameter(null), QueryEngine.TEMP_TABLE);
+        Assert.assertEquals(QueryEngine.fromParameter(" "), QueryEngine.TEMP_TABLE);
+        Assert.assertEquals(QueryEngine.fromParameter("temp_table"), QueryEngine.TEMP_TABLE);
+        Assert.assertEquals(QueryEngine.fromParameter(" cte "), QueryEngine.CTE);
+        Assert.assertEquals(QueryEngine.fromParameter("CTE"), QueryEngine.CTE);
+    }
+
+    @Test
+    public void testUnknownEngine() {
+        try {
+            QueryEngine.fromParameter("ctee");
+            Assert.fail("A misspelt engine should be rejected.");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("ctee"), e.getMessage());
+        }
+    }
+}
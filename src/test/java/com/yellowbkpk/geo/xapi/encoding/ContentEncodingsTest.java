@@ -0,0 +1,130 @@
+package com.yellowbkpk.geo.xapi.encoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ContentEncodingsTest {
+
+    private final ContentEncodings encodings = new ContentEncodings(Arrays.<ContentCodec> asList(
+            new NamedCodec("zstd"), new NamedCodec("br"), new GzipCodec()));
+
+    @Test
+    public void testNoHeader() {
+        Assert.assertNull(encodings.negotiate(null));
+        Assert.assertNull(encodings.negotiate(""));
+        Assert.assertNull(encodings.negotiate("identity"));
+        Assert.assertNull(encodings.negotiate("deflate, compress"));
+    }
+
+    @Test
+    public void testServerPreferenceBreaksTies() {
+        assertNegotiated("gzip, deflate, br", "br");
+        assertNegotiated("gzip, deflate, br, zstd", "zstd");
+        assertNegotiated("gzip", "gzip");
+        assertNegotiated("x-gzip", "gzip");
+        assertNegotiated("GZIP", "gzip");
+        assertNegotiated("*", "zstd");
+    }
+
+    @Test
+    public void testStoredCodingBreaksTies() {
+        ContentCodec gzip = encodings.get("gzip");
+        assertNegotiated("gzip, deflate, br, zstd", gzip, "gzip");
+        assertNegotiated("*", gzip, "gzip");
+        assertNegotiated("gzip;q=0.5, br", gzip, "br");
+        assertNegotiated("gzip;q=0, br;q=0", gzip, null);
+        assertNegotiated("identity", gzip, null);
+        assertNegotiated("gzip, deflate, br, zstd", null, "zstd");
+    }
+
+    @Test
+    public void testQualityValues() {
+        assertNegotiated("zstd;q=0.5, gzip;q=0.8, br;q=0.1", "gzip");
+        assertNegotiated("br;q=1.0, gzip;q=0.9", "br");
+        assertNegotiated("zstd;q=0, br;q=0, gzip", "gzip");
+        assertNegotiated("gzip;q=0", null);
+        assertNegotiated("gzip;q=0.5, identity;q=0.8", null);
+        assertNegotiated("gzip;q=0.5, identity;q=0.2", "gzip");
+        assertNegotiated("gzip;q=nonsense", null);
+    }
+
+    @Test
+    public void testWildcard() {
+        assertNegotiated("*;q=0.1, br", "br");
+        assertNegotiated("zstd;q=0, *", "br");
+        assertNegotiated("*;q=0", null);
+    }
+
+    @Test
+    public void testUnavailableCodingsAreLeftOut() {
+        ContentEncodings loaded = ContentEncodings.fromParameter("gzip, no.such.Codec,");
+        Assert.assertEquals(loaded.getCodecs().size(), 1);
+        Assert.assertEquals(loaded.get("gzip").getName(), "gzip");
+        Assert.assertNull(loaded.get("zstd"));
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("<node id=\"" + i + "\"/>").charAt(i % 10);
+        }
+        ContentCodec gzip = new GzipCodec();
+        for (int level : new int[] { -1, 1, 9 }) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            OutputStream out = gzip.encode(encoded, level);
+            out.write(data);
+            out.close();
+            Assert.assertTrue(encoded.size() < data.length);
+
+            InputStream in = gzip.decode(new ByteArrayInputStream(encoded.toByteArray()));
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                decoded.write(buffer, 0, count);
+            }
+            Assert.assertEquals(decoded.toByteArray(), data);
+        }
+    }
+
+    private void assertNegotiated(String header, String expected) {
+        ContentCodec codec = encodings.negotiate(header);
+        Assert.assertEquals(codec == null ? null : codec.getName(), expected, header);
+    }
+
+    private void assertNegotiated(String header, ContentCodec stored, String expected) {
+        ContentCodec codec = encodings.negotiate(header, stored);
+        Assert.assertEquals(codec == null ? null : codec.getName(), expected, header);
+    }
+
+    /**
+     * Stands in for a coding whose library may not be on the classpath.
+     */
+    private static class NamedCodec implements ContentCodec {
+        private final String name;
+
+        NamedCodec(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public OutputStream encode(OutputStream out, int level) {
+            return out;
+        }
+
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    }
+}
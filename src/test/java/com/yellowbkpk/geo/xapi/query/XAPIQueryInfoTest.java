@@ -6,6 +6,7 @@ import org.testng.annotations.Test;
 import com.yellowbkpk.geo.xapi.db.Selector;
 import com.yellowbkpk.geo.xapi.db.SelectorGroup;
 import com.yellowbkpk.geo.xapi.query.XAPIQueryInfo.RequestType;
+import com.yellowbkpk.geo.xapi.servlet.Filetype;
 
 public class XAPIQueryInfoTest {
     @Test
@@ -347,6 +348,52 @@ public class XAPIQueryInfoTest {
         Assert.assertEquals(selector.area(), 64800.0);
     }
 
+    @Test
+    public void testFiletypes() throws XAPIParseException {
+        Assert.assertEquals(XAPIQueryInfo.fromString("node[amenity=pub]").getFiletype(), Filetype.xml);
+        Assert.assertEquals(XAPIQueryInfo.fromString("node[amenity=pub].json").getFiletype(), Filetype.json);
+        Assert.assertEquals(XAPIQueryInfo.fromString("node[amenity=pub].geojson").getFiletype(), Filetype.geojson);
+        Assert.assertEquals(XAPIQueryInfo.fromString("node[amenity=pub].pbf").getFiletype(), Filetype.pbf);
+        Assert.assertEquals(XAPIQueryInfo.fromString("map.pbf?bbox=-1,51,0,52").getFiletype(), Filetype.pbf);
+        Assert.assertFalse(XAPIQueryInfo.fromString("node[amenity=pub]").hasFiletype());
+        Assert.assertTrue(XAPIQueryInfo.fromString("node[amenity=pub].xml").hasFiletype());
+        assertDoesNotParse("node[amenity=pub].kml");
+    }
+
+    @Test
+    public void testCanonicalKeyIgnoresPredicateOrder() throws XAPIParseException {
+        assertSameKey("node[amenity=pub][bbox=-1,51,0,52]", "node[bbox=-1,51,0,52][amenity=pub]");
+        assertSameKey("*[amenity=pub|restaurant]", "*[amenity=restaurant|pub]");
+        assertSameKey("way[highway|railway=*]", "way[railway|highway=*]");
+    }
+
+    @Test
+    public void testCanonicalKeyIgnoresNumberFormat() throws XAPIParseException {
+        assertSameKey("way[bbox=-180,-90,1.8e+2,90.0]", "way[bbox=-180.0,-90,180,90]");
+        assertSameKey("node[amenity=pub]", "node[amenity=pub].xml");
+    }
+
+    @Test
+    public void testCanonicalKeyDistinguishesQueries() throws XAPIParseException {
+        assertDifferentKey("node[amenity=pub]", "way[amenity=pub]");
+        assertDifferentKey("node[amenity=pub]", "node[amenity=bar]");
+        assertDifferentKey("node[amenity=pub]", "node[amenity=pub].json");
+        assertDifferentKey("node[amenity=pub].json", "node[amenity=pub].geojson");
+        assertDifferentKey("node[bbox=-1,51,0,52]", "node[bbox=-1,51,0,52.5]");
+        assertDifferentKey("node[a=b|c]", "node[a|b=c]");
+    }
+
+    private void assertSameKey(String query, String other) throws XAPIParseException {
+        Assert.assertEquals(XAPIQueryInfo.fromString(query).getCanonicalKey(),
+                XAPIQueryInfo.fromString(other).getCanonicalKey());
+    }
+
+    private void assertDifferentKey(String query, String other) throws XAPIParseException {
+        String key = XAPIQueryInfo.fromString(query).getCanonicalKey();
+        Assert.assertFalse(key.equals(XAPIQueryInfo.fromString(other).getCanonicalKey()), "Key " + key
+                + " shouldn't be shared with " + other + ".");
+    }
+
     private void assertDoesNotParse(String query) {
         boolean gotException = false;
         try {
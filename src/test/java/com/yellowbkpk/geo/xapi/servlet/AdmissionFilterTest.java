@@ -0,0 +1,142 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AdmissionFilterTest {
+
+    // a request that gives its slot up lets another in while it is still
+    // sending, and the slot is only given back once.
+    @Test
+    public void testReleasedSlotIsGivenBackOnce() throws Exception {
+        final AdmissionFilter filter = newFilter();
+        final FakeResponse second = new FakeResponse();
+        final FakeResponse blocked = new FakeResponse();
+
+        FakeResponse first = run(filter, "10.0.0.1", new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                AdmissionFilter.releaseSlot(request);
+                AdmissionFilter.releaseSlot(request);
+                filter.doFilter(fakeRequest("10.0.0.2"), fake(HttpServletResponse.class, second), new FilterChain() {
+                    public void doFilter(ServletRequest request, ServletResponse response) {
+                        // Admitted, holding the only slot.
+                    }
+                });
+            }
+        });
+        Assert.assertEquals(first.status, HttpServletResponse.SC_OK);
+        Assert.assertEquals(second.status, HttpServletResponse.SC_OK);
+
+        FakeResponse third = run(filter, "10.0.0.3", new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                filter.doFilter(fakeRequest("10.0.0.4"), fake(HttpServletResponse.class, blocked), new FilterChain() {
+                    public void doFilter(ServletRequest request, ServletResponse response) {
+                        Assert.fail("There should only be one slot.");
+                    }
+                });
+            }
+        });
+        Assert.assertEquals(third.status, HttpServletResponse.SC_OK);
+        Assert.assertEquals(blocked.status, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertNotNull(blocked.headers.get("Retry-After"));
+    }
+
+    // releasing outside the filter, or after the request is done, does
+    // nothing.
+    @Test
+    public void testReleaseWithoutSlot() throws Exception {
+        AdmissionFilter filter = newFilter();
+        HttpServletRequest request = fakeRequest("10.0.0.1");
+        AdmissionFilter.releaseSlot(request);
+
+        filter.doFilter(request, fake(HttpServletResponse.class, new FakeResponse()), new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) {
+            }
+        });
+        Assert.assertNull(request.getAttribute(AdmissionFilter.SLOT_ATTRIBUTE));
+        AdmissionFilter.releaseSlot(request);
+    }
+
+    private static AdmissionFilter newFilter() throws Exception {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("maxConcurrent", "1");
+        parameters.put("maxQueued", "0");
+        parameters.put("queueTimeoutMillis", "0");
+        AdmissionFilter filter = new AdmissionFilter();
+        filter.init(fake(FilterConfig.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getInitParameter")) {
+                    return parameters.get(args[0]);
+                }
+                return null;
+            }
+        }));
+        return filter;
+    }
+
+    private static FakeResponse run(AdmissionFilter filter, String address, FilterChain chain) throws Exception {
+        FakeResponse response = new FakeResponse();
+        filter.doFilter(fakeRequest(address), fake(HttpServletResponse.class, response), chain);
+        return response;
+    }
+
+    /**
+     * A request from an address, holding its attributes.
+     */
+    private static HttpServletRequest fakeRequest(final String address) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return fake(HttpServletRequest.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getRemoteAddr")) {
+                    return address;
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Records the status and headers of a response.
+     */
+    private static class FakeResponse implements InvocationHandler {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("setHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+            } else if (name.equals("sendError")) {
+                status = (Integer) args[0];
+            }
+            return null;
+        }
+    }
+
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(AdmissionFilterTest.class.getClassLoader(), new Class<?>[] { type },
+                handler));
+    }
+}
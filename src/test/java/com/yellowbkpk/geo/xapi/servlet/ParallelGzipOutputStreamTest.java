@@ -0,0 +1,118 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+    private ExecutorService pool;
+
+    @BeforeClass
+    public void startPool() {
+        pool = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterClass
+    public void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSizesAroundBlocks() throws IOException {
+        int block = ParallelGzipOutputStream.BLOCK_SIZE;
+        int[] sizes = { 0, 1, block - 1, block, block + 1, 3 * block, 7 * block + 12345 };
+        for (int size : sizes) {
+            byte[] data = sample(size);
+            assertRoundTrip(data, -1, pool, 0);
+            assertRoundTrip(data, 6, null, 0);
+            assertRoundTrip(data, 1, pool, 2 * block);
+        }
+    }
+
+    @Test
+    public void testLevels() throws IOException {
+        byte[] data = sample(5 * ParallelGzipOutputStream.BLOCK_SIZE);
+        for (int level = -1; level <= 9; level++) {
+            assertRoundTrip(data, level, pool, 0);
+        }
+    }
+
+    @Test
+    public void testSingleBytesAndFlushes() throws IOException {
+        byte[] data = sample(3 * ParallelGzipOutputStream.BLOCK_SIZE + 7);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new ParallelGzipOutputStream(compressed, -1, pool, 3, 0);
+        for (int i = 0; i < data.length; i++) {
+            out.write(data[i]);
+            if (i % 100000 == 0) {
+                out.flush();
+            }
+        }
+        out.close();
+        Assert.assertEquals(gunzip(compressed.toByteArray()), data);
+    }
+
+    @Test
+    public void testShutDownPool() throws IOException {
+        ExecutorService stopped = Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        assertRoundTrip(sample(4 * ParallelGzipOutputStream.BLOCK_SIZE), -1, stopped, 0);
+    }
+
+    /**
+     * Text with enough repetition across block boundaries for the primed
+     * dictionaries to matter.
+     */
+    private static byte[] sample(int size) {
+        Random random = new Random(size);
+        String[] words = { "<node id=\"", "\" lat=\"", "\" lon=\"", "\"/>\n", "<tag k=\"highway\" v=\"", "name" };
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(100000));
+        }
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) text.charAt(i);
+        }
+        return data;
+    }
+
+    private static void assertRoundTrip(byte[] data, int level, ExecutorService pool, int minParallelBytes)
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new ParallelGzipOutputStream(compressed, level, pool, 3, minParallelBytes);
+        // Uneven writes, so blocks are filled across several of them.
+        int offset = 0;
+        while (offset < data.length) {
+            int count = Math.min(data.length - offset, 50000);
+            out.write(data, offset, count);
+            offset += count;
+        }
+        out.close();
+        Assert.assertEquals(gunzip(compressed.toByteArray()), data, "length " + data.length + ", level " + level);
+    }
+
+    private static byte[] gunzip(byte[] gzipped) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,380 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
+
+public class QueryCoalescerTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static final int MEMORY_BYTES = 1024 * 1024;
+
+    // a follower streams what the leader has written so far, before the
+    // leader has finished.
+    @Test
+    public void testFollowerReadsWhileLeaderWrites() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCoalescer.Flight leader = coalescer.join("q");
+        QueryCoalescer.Flight follower = coalescer.join("q");
+        Assert.assertTrue(leader.isLeader());
+        Assert.assertFalse(follower.isLeader());
+        Assert.assertSame(follower.getSpool(), leader.getSpool());
+
+        Reader reader = new Reader(follower);
+        reader.start();
+
+        byte[] first = sample(100000, 1);
+        byte[] second = sample(30000, 2);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        OutputStream out = leader.getSpool().openOutputStream(client, MEMORY_BYTES);
+        out.write(first);
+        out.flush();
+        awaitSize(reader.received, first.length);
+
+        out.write(second);
+        out.close();
+        coalescer.leave(leader);
+        reader.finish();
+
+        Assert.assertNull(reader.failure);
+        Assert.assertEquals(reader.received.toByteArray(), concat(first, second));
+        Assert.assertEquals(client.toByteArray(), concat(first, second));
+    }
+
+    // followers fail with FailedException if the leader leaves without
+    // completing the result, whether or not it had started writing.
+    @Test
+    public void testLeaderFailure() throws Exception {
+        for (boolean started : new boolean[] { false, true }) {
+            QueryCoalescer coalescer = new QueryCoalescer();
+            QueryCoalescer.Flight leader = coalescer.join("q");
+            Reader reader = new Reader(coalescer.join("q"));
+            reader.start();
+
+            if (started) {
+                OutputStream out = leader.getSpool().openOutputStream(new ByteArrayOutputStream(), MEMORY_BYTES);
+                out.write(sample(1000, 3));
+                out.flush();
+                awaitSize(reader.received, 1000);
+            }
+            coalescer.leave(leader);
+            reader.finish();
+
+            Assert.assertTrue(reader.failure instanceof ResultSpool.FailedException, "started=" + started + ": "
+                    + reader.failure);
+        }
+    }
+
+    // a follower whose leader failed is told to retry rather than being sent
+    // a partial response.
+    @Test
+    public void testFollowerOfFailedLeaderGets503() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        final QueryCoalescer.Flight leader = coalescer.join("q");
+        QueryCoalescer.Flight follower = coalescer.join("q");
+
+        XapiServlet servlet = new XapiServlet();
+        servlet.init(fake(ServletConfig.class, new FakeServletConfig()));
+        FakeResponse response = new FakeResponse();
+
+        Thread leaving = new Thread() {
+            @Override
+            public void run() {
+                leader.getSpool().abandon();
+            }
+        };
+        leaving.start();
+        servlet.followQuery(follower, fake(HttpServletRequest.class, new FakeRequest()), fake(
+                HttpServletResponse.class, response), Filetype.xml, null, XapiQueryStats.beginTracking(Thread
+                .currentThread()));
+        leaving.join(TIMEOUT_MILLIS);
+        coalescer.leave(leader);
+
+        Assert.assertEquals(response.status, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertNotNull(response.headers.get("Retry-After"));
+        Assert.assertEquals(response.body.size(), 0);
+    }
+
+    // the leader keeps writing for its followers when its own client goes
+    // away, but stops if nobody else is reading.
+    @Test
+    public void testLeaderClientDisconnect() throws Exception {
+        byte[] data = sample(200000, 4);
+
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCoalescer.Flight leader = coalescer.join("q");
+        Reader reader = new Reader(coalescer.join("q"));
+        reader.start();
+        OutputStream out = leader.getSpool().openOutputStream(new DisconnectingStream(70000), MEMORY_BYTES);
+        out.write(data, 0, 100000);
+        out.write(data, 100000, 100000);
+        out.close();
+        coalescer.leave(leader);
+        reader.finish();
+
+        Assert.assertNull(reader.failure);
+        Assert.assertEquals(reader.received.toByteArray(), data);
+
+        leader = coalescer.join("q");
+        Assert.assertTrue(leader.isLeader());
+        out = leader.getSpool().openOutputStream(new DisconnectingStream(70000), MEMORY_BYTES);
+        try {
+            out.write(data, 0, 100000);
+            out.write(data, 100000, 100000);
+            Assert.fail("Writing for nobody should stop when the client disconnects.");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            coalescer.leave(leader);
+        }
+    }
+
+    // a follower reading from memory carries on from the file once the
+    // result outgrows memory.
+    @Test
+    public void testFollowerCarriesOnFromFile() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCoalescer.Flight leader = coalescer.join("q");
+        Reader reader = new Reader(coalescer.join("q"));
+        reader.start();
+
+        byte[] data = sample(200000, 6);
+        OutputStream out = leader.getSpool().openOutputStream(new ByteArrayOutputStream(), 120000);
+        out.write(data, 0, 100000);
+        out.flush();
+        awaitSize(reader.received, 100000);
+
+        out.write(data, 100000, 100000);
+        out.close();
+        coalescer.leave(leader);
+        reader.finish();
+
+        Assert.assertNull(reader.failure);
+        Assert.assertEquals(reader.received.toByteArray(), data);
+    }
+
+    // a result nobody has joined by the time it outgrows memory is never
+    // written to disk, and stops being shared.
+    @Test
+    public void testUnsharedResultStaysOffDisk() throws Exception {
+        Set<File> before = spoolFiles();
+
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCoalescer.Flight leader = coalescer.join("q");
+        byte[] data = sample(200000, 7);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        OutputStream out = leader.getSpool().openOutputStream(client, 100000);
+        out.write(data, 0, 100000);
+        out.write(data, 100000, 100000);
+
+        Set<File> created = spoolFiles();
+        created.removeAll(before);
+        Assert.assertTrue(created.isEmpty(), "Nothing should be spooled to disk for a single client.");
+        QueryCoalescer.Flight late = coalescer.join("q");
+        Assert.assertTrue(late.isLeader(), "A result that stopped being shared can't be joined.");
+        coalescer.leave(late);
+
+        out.close();
+        coalescer.leave(leader);
+        Assert.assertEquals(client.toByteArray(), data);
+    }
+
+    // the spool file outlives whoever releases it first, and is deleted by
+    // the last release. Joining afterwards starts a new query.
+    @Test
+    public void testLastReleaseDeletesFile() throws Exception {
+        Set<File> before = spoolFiles();
+
+        QueryCoalescer coalescer = new QueryCoalescer();
+        QueryCoalescer.Flight leader = coalescer.join("q");
+        QueryCoalescer.Flight follower = coalescer.join("q");
+        OutputStream out = leader.getSpool().openOutputStream(new ByteArrayOutputStream(), 100);
+        out.write(sample(1000, 5));
+        out.close();
+
+        Set<File> created = spoolFiles();
+        created.removeAll(before);
+        Assert.assertEquals(created.size(), 1);
+        File file = created.iterator().next();
+
+        coalescer.leave(leader);
+        Assert.assertTrue(file.exists(), "The follower is still reading.");
+        Assert.assertTrue(coalescer.join("q").isLeader(), "A finished query can't be joined.");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        follower.getSpool().copyTo(received);
+        Assert.assertEquals(received.toByteArray(), sample(1000, 5));
+        coalescer.leave(follower);
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(follower.getSpool().retain(), "A released spool can't be read again.");
+    }
+
+    /**
+     * Copies a follower's spool on a thread of its own, as a following
+     * request would.
+     */
+    private static class Reader extends Thread {
+        private final QueryCoalescer.Flight flight;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile IOException failure;
+
+        Reader(QueryCoalescer.Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public void run() {
+            try {
+                flight.getSpool().copyTo(received);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                flight.getSpool().release();
+            }
+        }
+
+        void finish() throws InterruptedException {
+            join(TIMEOUT_MILLIS);
+            Assert.assertFalse(isAlive(), "The follower should have finished.");
+        }
+    }
+
+    /**
+     * A client that disconnects after a number of bytes.
+     */
+    private static class DisconnectingStream extends OutputStream {
+        private int remaining;
+
+        DisconnectingStream(int limit) {
+            remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Connection reset by peer");
+            }
+            remaining -= len;
+        }
+    }
+
+    private static class FakeServletConfig implements InvocationHandler {
+        private final ServletContext context = fake(ServletContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getServletContext")) {
+                return context;
+            }
+            return null;
+        }
+    }
+
+    private static class FakeRequest implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the status, headers and body of a response.
+     */
+    private static class FakeResponse implements InvocationHandler {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        };
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getOutputStream")) {
+                return out;
+            } else if (name.equals("isCommitted")) {
+                return body.size() > 0;
+            } else if (name.equals("setHeader") || name.equals("addHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+            } else if (name.equals("sendError") || name.equals("setStatus")) {
+                status = (Integer) args[0];
+            } else if (name.equals("reset")) {
+                status = HttpServletResponse.SC_OK;
+                headers.clear();
+                body.reset();
+            }
+            return null;
+        }
+    }
+
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(QueryCoalescerTest.class.getClassLoader(), new Class<?>[] { type },
+                handler));
+    }
+
+    private static Set<File> spoolFiles() {
+        Set<File> files = new HashSet<File>();
+        File[] all = new File(System.getProperty("java.io.tmpdir")).listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (file.getName().startsWith("xapi-spool")) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void awaitSize(ByteArrayOutputStream received, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.size() < size) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, "The follower didn't receive the data.");
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] sample(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
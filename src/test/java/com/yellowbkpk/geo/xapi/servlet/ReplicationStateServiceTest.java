@@ -0,0 +1,89 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ReplicationStateServiceTest {
+
+    // a listener that isn't ready for a state is told it again at each poll
+    // until it is, and then not again.
+    @Test
+    public void testListenerToldAgainUntilReady() throws IOException {
+        File directory = createDirectory();
+        writeState(directory, 1);
+        ReplicationStateService service = new ReplicationStateService(directory.getPath());
+        RecordingListener listener = new RecordingListener(2);
+        service.addListener(listener);
+
+        for (int i = 0; i < 4; i++) {
+            service.refresh();
+        }
+        Assert.assertEquals(listener.told, listOf(1L, 1L, 1L));
+    }
+
+    // a newer state replaces the one a listener wasn't ready for.
+    @Test
+    public void testNewerStateReplacesRetry() throws IOException {
+        File directory = createDirectory();
+        writeState(directory, 1);
+        ReplicationStateService service = new ReplicationStateService(directory.getPath());
+        RecordingListener listener = new RecordingListener(1);
+        service.addListener(listener);
+
+        service.refresh();
+        writeState(directory, 12);
+        service.refresh();
+        service.refresh();
+        Assert.assertEquals(listener.told, listOf(1L, 12L));
+    }
+
+    /**
+     * Records the sequence numbers it is told, refusing a number of states
+     * before accepting them.
+     */
+    private static class RecordingListener implements ReplicationStateListener {
+        final List<Long> told = new ArrayList<Long>();
+        private int refusals;
+
+        RecordingListener(int refusals) {
+            this.refusals = refusals;
+        }
+
+        public boolean replicationStateChanged(ReplicationState state) {
+            told.add(state.getSequenceNumber());
+            return refusals-- <= 0;
+        }
+    }
+
+    private static List<Long> listOf(Long... values) {
+        List<Long> list = new ArrayList<Long>();
+        for (Long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static void writeState(File directory, long sequenceNumber) throws IOException {
+        File file = new File(directory, "state.txt");
+        long previous = file.lastModified();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(("sequenceNumber=" + sequenceNumber + "\ntimestamp=2011-03-13T12\\:00\\:" + (10 + sequenceNumber)
+                + "Z\n").getBytes("UTF-8"));
+        out.close();
+        file.setLastModified(Math.max(previous + 1000, System.currentTimeMillis()));
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("replication", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+}
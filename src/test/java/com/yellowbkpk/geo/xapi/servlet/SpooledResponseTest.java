@@ -0,0 +1,151 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SpooledResponseTest {
+
+    @Test
+    public void testHeldInMemory() throws IOException {
+        byte[] data = sample(10000);
+        SpooledResponse spool = new SpooledResponse(10000, false);
+        write(spool, data);
+        Assert.assertFalse(spool.isOnDisk());
+        assertSent(spool, data);
+    }
+
+    @Test
+    public void testOverflowsToDisk() throws IOException {
+        byte[] data = sample(300000);
+        for (boolean encoded : new boolean[] { false, true }) {
+            SpooledResponse spool = new SpooledResponse(65536, encoded);
+            write(spool, data);
+            Assert.assertTrue(spool.isOnDisk());
+            assertSent(spool, data);
+        }
+    }
+
+    @Test
+    public void testSingleBytes() throws IOException {
+        byte[] data = sample(20000);
+        SpooledResponse spool = new SpooledResponse(5000, false);
+        for (byte b : data) {
+            spool.write(b);
+        }
+        spool.close();
+        Assert.assertTrue(spool.isOnDisk());
+        assertSent(spool, data);
+    }
+
+    @Test
+    public void testDiscardedWithoutClosing() throws IOException {
+        SpooledResponse spool = new SpooledResponse(100, false);
+        spool.write(sample(1000));
+        spool.discard();
+    }
+
+    @Test
+    public void testFailureSendsError() throws IOException {
+        SpooledResponse spool = new SpooledResponse(100, true);
+        spool.write(sample(1000));
+        FakeResponse fake = new FakeResponse();
+        HttpServletResponse response = fake.proxy();
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("ETag", "\"1\"");
+
+        XapiServlet.serializationFailed(new IllegalStateException("broken"), spool, response, 10);
+        Assert.assertEquals(fake.status, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        Assert.assertTrue(fake.headers.isEmpty());
+    }
+
+    @Test
+    public void testFailureAfterCommitSendsNothing() throws IOException {
+        FakeResponse fake = new FakeResponse();
+        fake.committed = true;
+        HttpServletResponse response = fake.proxy();
+        response.setHeader("Content-Encoding", "gzip");
+
+        XapiServlet.serializationFailed(new IllegalStateException("broken"), new SpooledResponse(100, true),
+                response, 10);
+        XapiServlet.serializationFailed(new IllegalStateException("broken"), null, fake.proxy(), 10);
+        Assert.assertEquals(fake.status, HttpServletResponse.SC_OK);
+        Assert.assertEquals(fake.headers.get("Content-Encoding"), "gzip");
+    }
+
+    @Test
+    public void testClientDisconnectSendsNothing() throws IOException {
+        FakeResponse fake = new FakeResponse();
+        XapiServlet.serializationFailed(new IOException("Broken pipe"), new SpooledResponse(100, true), fake
+                .proxy(), 10);
+        Assert.assertEquals(fake.status, HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Records the status and headers of a response.
+     */
+    private static class FakeResponse implements InvocationHandler {
+        int status = HttpServletResponse.SC_OK;
+        boolean committed;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(SpooledResponseTest.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("isCommitted")) {
+                return committed;
+            } else if (name.equals("setHeader")) {
+                headers.put((String) args[0], (String) args[1]);
+            } else if (name.equals("sendError") || name.equals("setStatus")) {
+                status = (Integer) args[0];
+                committed = true;
+            } else if (name.equals("reset")) {
+                status = HttpServletResponse.SC_OK;
+                headers.clear();
+            }
+            return null;
+        }
+    }
+
+    private static void write(SpooledResponse spool, byte[] data) throws IOException {
+        int offset = 0;
+        Random random = new Random(data.length);
+        while (offset < data.length) {
+            int count = Math.min(data.length - offset, random.nextInt(20000));
+            spool.write(data, offset, count);
+            offset += count;
+        }
+        spool.close();
+    }
+
+    private static void assertSent(SpooledResponse spool, byte[] data) throws IOException {
+        Assert.assertEquals(spool.getLength(), data.length);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        spool.writeTo(sent);
+        spool.discard();
+        Assert.assertEquals(sent.toByteArray(), data);
+    }
+
+    private static byte[] sample(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ("<node id=\"" + random.nextInt(100) + "\"/>").charAt(i % 10);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,141 @@
+package com.yellowbkpk.geo.xapi.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yellowbkpk.geo.xapi.db.ChangedArea;
+
+public class TileCacheTest {
+
+    private static final Date PLANET_DATE = new Date(1300000000000L);
+
+    private static final Date NEXT_PLANET_DATE = new Date(1300000060000L);
+
+    // a tile holding a deleted or moved element is dropped even though the
+    // change was nowhere near it.
+    @Test
+    public void testChangedElementsDropTiles() throws IOException {
+        TileCache cache = new TileCache(createDirectory(), Long.MAX_VALUE);
+        cache.reset(PLANET_DATE.getTime());
+        cache.put(16, 100, 200, PLANET_DATE, render(cache, new Way(data(10), Arrays.asList(new WayNode(1),
+                new WayNode(2)))));
+        cache.put(16, 101, 200, PLANET_DATE, render(cache, new Node(data(7), 1, 1)));
+        cache.put(16, 102, 200, PLANET_DATE, render(cache, new Node(data(8), 1, 1)));
+
+        ChangedArea area = new ChangedArea();
+        area.addWayId(10);
+        area.addNodeId(7);
+        area.addPoint(120, -40);
+        cache.advance(area, NEXT_PLANET_DATE.getTime());
+
+        assertMissing(cache, 16, 100, 200);
+        assertMissing(cache, 16, 101, 200);
+        assertHeld(cache, 16, 102, 200);
+        Assert.assertEquals(cache.getTileCount(), 1);
+    }
+
+    // the ids are kept beside the tiles, so tiles still held after a restart
+    // are dropped when their elements change. Tiles without them aren't kept.
+    @Test
+    public void testElementsSurviveRestart() throws IOException {
+        File directory = createDirectory();
+        TileCache cache = new TileCache(directory, Long.MAX_VALUE);
+        cache.reset(PLANET_DATE.getTime());
+        cache.put(16, 100, 200, PLANET_DATE, render(cache, new Node(data(7), 1, 1)));
+        cache.put(16, 101, 200, PLANET_DATE, render(cache, new Node(data(8), 1, 1)));
+        cache.put(16, 102, 200, PLANET_DATE, render(cache, new Node(data(9), 1, 1)));
+        Assert.assertTrue(new File(directory, "16/102/200.ids").delete());
+
+        cache = new TileCache(directory, Long.MAX_VALUE);
+        cache.reset(PLANET_DATE.getTime());
+        Assert.assertEquals(cache.getTileCount(), 2);
+        Assert.assertFalse(new File(directory, "16/102/200.osm.gz").exists());
+
+        ChangedArea area = new ChangedArea();
+        area.addNodeId(7);
+        cache.advance(area, NEXT_PLANET_DATE.getTime());
+        assertMissing(cache, 16, 100, 200);
+        assertHeld(cache, 16, 101, 200);
+        Assert.assertFalse(new File(directory, "16/100/200.ids").exists());
+    }
+
+    // the element ids count towards the size limit.
+    @Test
+    public void testElementsCountTowardsSize() throws IOException {
+        TileCache cache = new TileCache(createDirectory(), Long.MAX_VALUE);
+        cache.reset(PLANET_DATE.getTime());
+        File tile = cache.put(16, 100, 200, PLANET_DATE, render(cache, new Node(data(7), 1, 1)));
+        Assert.assertEquals(cache.getSize(), tile.length() + 8);
+    }
+
+    // evicted tiles and tiles from another planet timestamp have their files
+    // deleted, while a tile put again keeps its own.
+    @Test
+    public void testDroppedTilesAreDeleted() throws IOException {
+        File directory = createDirectory();
+        TileCache cache = new TileCache(directory, Long.MAX_VALUE);
+        cache.reset(PLANET_DATE.getTime());
+        File first = cache.put(16, 100, 200, PLANET_DATE, render(cache, new Node(data(7), 1, 1)));
+        cache.put(16, 101, 200, PLANET_DATE, render(cache, new Node(data(8), 1, 1)));
+        cache.put(16, 100, 200, PLANET_DATE, render(cache, new Node(data(9), 1, 1)));
+        Assert.assertTrue(first.exists(), "The tile put again should keep its file.");
+        Assert.assertTrue(new File(directory, "16/100/200.ids").exists());
+
+        cache.reset(NEXT_PLANET_DATE.getTime());
+        Assert.assertEquals(cache.getTileCount(), 0);
+        Assert.assertFalse(first.exists());
+        Assert.assertFalse(new File(directory, "16/101/200.ids").exists());
+
+        cache = new TileCache(directory, 1);
+        cache.reset(NEXT_PLANET_DATE.getTime());
+        File evicted = cache.put(16, 100, 200, NEXT_PLANET_DATE, render(cache, new Node(data(7), 1, 1)));
+        Assert.assertEquals(cache.getTileCount(), 0);
+        Assert.assertFalse(evicted.exists());
+        Assert.assertFalse(new File(directory, "16/100/200.ids").exists());
+        assertMissing(cache, 16, 100, 200);
+    }
+
+    private static TileCache.Rendering render(TileCache cache, Entity entity) throws IOException {
+        TileCache.Rendering rendering = cache.startRendering();
+        FileOutputStream out = new FileOutputStream(rendering.getFile());
+        out.write(("<osm>" + entity.getType() + " " + entity.getId() + "</osm>").getBytes("UTF-8"));
+        out.close();
+        rendering.addEntity(entity);
+        return rendering;
+    }
+
+    private static void assertHeld(TileCache cache, int zoom, int x, int y) throws IOException {
+        FileInputStream tile = cache.get(zoom, x, y, NEXT_PLANET_DATE);
+        Assert.assertNotNull(tile, zoom + "/" + x + "/" + y + " should be held.");
+        tile.close();
+    }
+
+    private static void assertMissing(TileCache cache, int zoom, int x, int y) {
+        Assert.assertNull(cache.get(zoom, x, y, NEXT_PLANET_DATE), zoom + "/" + x + "/" + y + " should be dropped.");
+    }
+
+    private static CommonEntityData data(long id) {
+        return new CommonEntityData(id, 1, new Date(0), OsmUser.NONE, 0);
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("tilecache", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+}
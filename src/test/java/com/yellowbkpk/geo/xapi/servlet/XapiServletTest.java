@@ -1,10 +1,18 @@
 package com.yellowbkpk.geo.xapi.servlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
@@ -12,6 +20,7 @@ import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
 import org.openstreetmap.osmosis.core.database.DatabaseLoginCredentials;
 import org.openstreetmap.osmosis.core.database.DatabasePreferences;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
 import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
@@ -30,9 +39,14 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.yellowbkpk.geo.xapi.admin.XapiQueryStats;
+import com.yellowbkpk.geo.xapi.db.DatabaseCapabilities;
 import com.yellowbkpk.geo.xapi.db.PostgreSqlDatasetContext;
+import com.yellowbkpk.geo.xapi.db.QueryEngine;
 import com.yellowbkpk.geo.xapi.query.XAPIParseException;
 import com.yellowbkpk.geo.xapi.query.XAPIQueryInfo;
+import com.yellowbkpk.geo.xapi.writer.XapiRowSink;
+import com.yellowbkpk.geo.xapi.writer.XapiSink;
 
 /**
  * Tests of the XAPI servlet functionality.
@@ -341,6 +355,92 @@ public class XapiServletTest {
 
     // relation has only relation members
 
+    /**** query engine tests ****/
+
+    // the single statement engine selects the same elements as staging them
+    // in temporary tables, with and without completing ways.
+    @Test
+    public void testCteMatchesTempTables() {
+        double[][] boxes = { { -0.01, 0.01, 0.01, -0.01 }, { -1, 3, 3, -1 }, { 0.5, 1.5, 1.5, 0.5 },
+                { 1.5, 2.5, 2.5, 1.5 }, { 10, 11, 11, 10 } };
+        for (double[] box : boxes) {
+            for (boolean completeWays : new boolean[] { true, false }) {
+                List<String> tempTables = describeBoundingBox(QueryEngine.TEMP_TABLE, box, completeWays);
+                List<String> cte = describeBoundingBox(QueryEngine.CTE, box, completeWays);
+                Assert.assertEquals(cte, tempTables, Arrays.toString(box) + " with completeWays=" + completeWays);
+            }
+        }
+    }
+
+    /**** metatile tests ****/
+
+    // splitting a metatile gives each tile what its own bounding box query
+    // returns, whichever way geometry the database has. Way 1, from 0,0 to
+    // 1,1 and back, crosses some of these tiles, has its envelope over more
+    // and only has nodes in a few.
+    @Test
+    public void testMetatileMatchesTiles() {
+        int[][] origins = { { 13, 4096, 4088 }, { 13, 4096, 4096 }, { 13, 4088, 4088 }, { 13, 4118, 4073 },
+                { 16, 32768, 32760 } };
+        for (int[] origin : origins) {
+            int zoom = origin[0];
+            Metatile metatile = new Metatile(zoom, origin[1], origin[2], Metatile.MAX_SIZE);
+            DatabaseCapabilities capabilities;
+            PostgreSqlDatasetContext context = openContext(QueryEngine.TEMP_TABLE, 0);
+            ReleasableIterator<EntityContainer> iterator = context.iterateBoundingBox(metatile.getLeft(),
+                    metatile.getRight(), metatile.getTop(), metatile.getBottom(), true);
+            try {
+                while (iterator.hasNext()) {
+                    metatile.add(iterator.next());
+                }
+                capabilities = context.getCapabilities();
+            } finally {
+                iterator.release();
+                closeContext(context);
+            }
+
+            for (Map.Entry<String, List<Entity>> tile : metatile.split(capabilities).entrySet()) {
+                String[] xy = tile.getKey().split("/");
+                int x = Integer.parseInt(xy[0]);
+                int y = Integer.parseInt(xy[1]);
+                double[] box = { TiledApiServlet.tile2lon(x, zoom), TiledApiServlet.tile2lon(x + 1, zoom),
+                        TiledApiServlet.tile2lat(y, zoom), TiledApiServlet.tile2lat(y + 1, zoom) };
+
+                List<String> split = new ArrayList<String>();
+                for (Entity entity : tile.getValue()) {
+                    split.add(describe(entity));
+                }
+                Collections.sort(split);
+                List<String> queried = new ArrayList<String>();
+                for (String element : describeBoundingBox(QueryEngine.TEMP_TABLE, box, true)) {
+                    if (!element.startsWith(EntityType.Bound.toString())) {
+                        queried.add(element);
+                    }
+                }
+                Assert.assertEquals(split, queried, "Tile " + zoom + "/" + tile.getKey());
+            }
+        }
+    }
+
+    /**** direct row writing tests ****/
+
+    // writing a map query straight from its rows gives the same response as
+    // going through entities, whichever engine runs it and however many
+    // round trips the rows take.
+    @Test
+    public void testMapRowsMatchEntities() throws IOException {
+        String[] queries = { "map?bbox=-0.01,-0.01,0.01,0.01", "map?bbox=-1,-1,3,3", "map?bbox=10,10,11,11" };
+        for (QueryEngine engine : QueryEngine.values()) {
+            for (int fetchSize : new int[] { 2, 5000 }) {
+                for (Filetype filetype : new Filetype[] { Filetype.xml, Filetype.geojson }) {
+                    for (String query : queries) {
+                        assertRowsMatchEntities(query, engine, fetchSize, filetype);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Simple tuple-class of entity type and ID to allow the expected results of
      * the tests to be judged.
@@ -441,6 +541,100 @@ public class XapiServletTest {
         }
     }
 
+    /**
+     * Runs a query through entities and then straight from its rows, and
+     * compares what the two wrote.
+     */
+    private void assertRowsMatchEntities(String query, QueryEngine engine, int fetchSize, Filetype filetype)
+            throws IOException {
+        XAPIQueryInfo info = null;
+        try {
+            info = XAPIQueryInfo.fromString(query);
+        } catch (XAPIParseException ex) {
+            Assert.fail("Parsing query shouldn't fail.", ex);
+        }
+        Assert.assertTrue(XapiServlet.canWriteRows(info));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PostgreSqlDatasetContext context = openContext(engine, fetchSize);
+        ReleasableIterator<EntityContainer> iterator = XapiServlet.makeRequestIterator(context, info);
+        try {
+            XapiSink sink = filetype.getSink(expected);
+            while (iterator.hasNext()) {
+                sink.process(iterator.next());
+            }
+            sink.complete();
+        } finally {
+            iterator.release();
+            closeContext(context);
+        }
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        context = openContext(engine, fetchSize);
+        try {
+            XapiRowSink sink = (XapiRowSink) filetype.getSink(actual);
+            XapiServlet.writeRequestRows(context, info, sink);
+            sink.complete();
+        } finally {
+            closeContext(context);
+        }
+
+        Assert.assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"), query + " as " + filetype
+                + " with the " + engine + " engine fetching " + fetchSize + " rows at a time");
+    }
+
+    /**
+     * Runs a bounding box query with one engine and describes each element
+     * it returns, sorted so engines that order their rows differently can be
+     * compared.
+     */
+    private List<String> describeBoundingBox(QueryEngine engine, double[] box, boolean completeWays) {
+        List<String> elements = new ArrayList<String>();
+        PostgreSqlDatasetContext context = openContext(engine, 0);
+        ReleasableIterator<EntityContainer> iterator = context.iterateBoundingBox(box[0], box[1], box[2], box[3],
+                completeWays);
+        try {
+            while (iterator.hasNext()) {
+                elements.add(describe(iterator.next().getEntity()));
+            }
+        } finally {
+            iterator.release();
+            closeContext(context);
+        }
+        Collections.sort(elements);
+        return elements;
+    }
+
+    private static String describe(Entity entity) {
+        StringBuilder element = new StringBuilder();
+        element.append(entity.getType()).append(' ').append(entity.getId()).append(" v")
+                .append(entity.getVersion()).append(' ').append(new TreeSet<Tag>(entity.getTags()));
+        if (entity instanceof Way) {
+            for (WayNode wayNode : ((Way) entity).getWayNodes()) {
+                element.append(' ').append(wayNode.getNodeId());
+            }
+        } else if (entity instanceof Relation) {
+            for (RelationMember member : ((Relation) entity).getMembers()) {
+                element.append(' ').append(member.getMemberType()).append(member.getMemberId())
+                        .append('=').append(member.getMemberRole());
+            }
+        }
+        return element.toString();
+    }
+
+    private PostgreSqlDatasetContext openContext(QueryEngine engine, int fetchSize) {
+        PostgreSqlDatasetContext context = new PostgreSqlDatasetContext(loginCredentials, preferences);
+        context.includeTimer(XapiQueryStats.beginTracking(Thread.currentThread()));
+        context.setQueryEngine(engine);
+        context.setFetchSize(fetchSize);
+        return context;
+    }
+
+    private void closeContext(PostgreSqlDatasetContext context) {
+        context.complete();
+        context.release();
+    }
+
     // utility function to build elements
     private EntityContainer node(long id, int version, double lon, double lat, String... tags) {
         Date timestamp = new Date();
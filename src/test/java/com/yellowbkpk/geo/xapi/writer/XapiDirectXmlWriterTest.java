@@ -0,0 +1,118 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class XapiDirectXmlWriterTest {
+
+    @Test
+    public void testMatchesOsmosisWriter() throws IOException {
+        List<EntityContainer> entities = new ArrayList<EntityContainer>();
+        entities.add(new BoundContainer(new Bound(1.5, -1.25, 52.123456, 51, "Osmosis <test>")));
+
+        List<Tag> tags = new ArrayList<Tag>();
+        tags.add(new Tag("name", "Fish & Chips <\"The 'Plaice'\">"));
+        tags.add(new Tag("note", "line one\nline two\r\n\tindented"));
+        tags.add(new Tag("name:el", "\u039A\u03B1\u03C6\u03B5\u03BD\u03B5\u03AF\u03BF"));
+        tags.add(new Tag("name:zh", "\u5496\u5561\u9986 \uD83C\uDF75"));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(1, 3, new Date(1300000000123L), new OsmUser(5,
+                "us&r \"quoted\""), 42, tags), 51.1234567, -0.0000001)));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(2, 1, new Date(0), OsmUser.NONE, 0), -0.0,
+                180)));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(3, 1, new Date(-86400001L), new OsmUser(1,
+                ""), 1), 0.123456789, 1e-8)));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(Long.MAX_VALUE, Integer.MAX_VALUE, new Date(
+                253402300799000L), OsmUser.NONE, Integer.MAX_VALUE), -90, -180)));
+
+        List<WayNode> wayNodes = new ArrayList<WayNode>();
+        wayNodes.add(new WayNode(1));
+        wayNodes.add(new WayNode(2));
+        entities.add(new WayContainer(new Way(new CommonEntityData(10, 2, new Date(1300000000000L), new OsmUser(5,
+                "u"), 7, tags), wayNodes)));
+        entities.add(new WayContainer(new Way(new CommonEntityData(11, 2, new Date(1300000000000L), new OsmUser(5,
+                "u"), 7), new ArrayList<WayNode>())));
+        entities.add(new WayContainer(new Way(new CommonEntityData(12, 1, new Date(1300000000000L), OsmUser.NONE,
+                7), wayNodes)));
+
+        List<RelationMember> members = new ArrayList<RelationMember>();
+        members.add(new RelationMember(10, EntityType.Way, "outer \"ring\""));
+        members.add(new RelationMember(1, EntityType.Node, ""));
+        members.add(new RelationMember(3, EntityType.Relation, "subarea"));
+        entities.add(new RelationContainer(new Relation(new CommonEntityData(20, 1, new Date(1300000000000L),
+                new OsmUser(5, "u"), 7, tags), members)));
+        entities.add(new RelationContainer(new Relation(new CommonEntityData(21, 1, new Date(1300000000000L),
+                OsmUser.NONE, 7), new ArrayList<RelationMember>())));
+
+        assertSameOutput(entities);
+    }
+
+    @Test
+    public void testMatchesOsmosisWriterAcrossBuffers() throws IOException {
+        // Enough elements to fill the buffer several times over, with
+        // timestamps spread over many days.
+        Random random = new Random(42);
+        List<EntityContainer> entities = new ArrayList<EntityContainer>();
+        for (int i = 0; i < 5000; i++) {
+            List<Tag> tags = new ArrayList<Tag>();
+            for (int j = random.nextInt(4); j > 0; j--) {
+                tags.add(new Tag("key" + j, "value " + random.nextInt() + " \u00E9\u00E8"));
+            }
+            double latitude = random.nextInt(1800000001) / 1e7 - 90;
+            double longitude = random.nextInt(2000000000) / 1e7 - 100;
+            entities.add(new NodeContainer(new Node(new CommonEntityData(i, random.nextInt(50) + 1, new Date(
+                    1100000000000L + (long) random.nextInt(Integer.MAX_VALUE) * 173), new OsmUser(random.nextInt(
+                    1000), "user " + random.nextInt(1000)), random.nextInt(100000), tags), latitude, longitude)));
+        }
+        assertSameOutput(entities);
+    }
+
+    @Test
+    public void testEmptyDocument() throws IOException {
+        assertSameOutput(new ArrayList<EntityContainer>());
+    }
+
+    private void assertSameOutput(List<EntityContainer> entities) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(expected, "UTF-8"));
+        write(new XapiXmlWriter(writer), entities);
+        writer.flush();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        write(new XapiDirectXmlWriter(actual), entities);
+
+        Assert.assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"));
+    }
+
+    private void write(XapiSink sink, List<EntityContainer> entities) {
+        sink.setExtra("xapi:planetDate", "2013-01-01T00:00:00Z");
+        sink.setExtra("xmlns:xapi", "http://jxapi.openstreetmap.org/");
+        for (EntityContainer entity : entities) {
+            sink.process(entity);
+        }
+        sink.complete();
+    }
+}
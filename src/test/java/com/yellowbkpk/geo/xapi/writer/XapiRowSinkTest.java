@@ -0,0 +1,170 @@
+package com.yellowbkpk.geo.xapi.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.container.v0_6.BoundContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yellowbkpk.geo.xapi.servlet.Filetype;
+
+public class XapiRowSinkTest {
+
+    @Test
+    public void testXmlRowsMatchEntities() throws IOException {
+        assertRowsMatchEntities(Filetype.xml, sample());
+    }
+
+    @Test
+    public void testGeoJsonRowsMatchEntities() throws IOException {
+        assertRowsMatchEntities(Filetype.geojson, sample());
+    }
+
+    @Test
+    public void testNullColumns() throws IOException {
+        List<EntityContainer> entities = new ArrayList<EntityContainer>();
+        entities.add(new NodeContainer(new Node(new CommonEntityData(1, 1, new Date(0), new OsmUser(3, ""), 0),
+                1, 2)));
+        entities.add(new WayContainer(new Way(new CommonEntityData(2, 1, new Date(0), OsmUser.NONE, 0),
+                new ArrayList<WayNode>())));
+        entities.add(new RelationContainer(new Relation(new CommonEntityData(3, 1, new Date(0), OsmUser.NONE, 0),
+                new ArrayList<RelationMember>())));
+
+        for (Filetype filetype : new Filetype[] { Filetype.xml, Filetype.geojson }) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            XapiSink entitySink = filetype.getSink(expected);
+            for (EntityContainer entity : entities) {
+                entitySink.process(entity);
+            }
+            entitySink.complete();
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            XapiRowSink rowSink = (XapiRowSink) filetype.getSink(actual);
+            rowSink.processNode(1, 1, 0, 3, null, 0, null, 1, 2);
+            rowSink.processWay(2, 1, 0, OsmUser.NONE.getId(), null, 0, null, null, 0);
+            rowSink.processRelation(3, 1, 0, OsmUser.NONE.getId(), null, 0, null, null, null, null, 0);
+            rowSink.complete();
+
+            Assert.assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"), filetype.toString());
+        }
+    }
+
+    private List<EntityContainer> sample() {
+        List<EntityContainer> entities = new ArrayList<EntityContainer>();
+        entities.add(new BoundContainer(new Bound(1.5, -1.25, 52.123456, 51, "Osmosis <test>")));
+
+        List<Tag> tags = new ArrayList<Tag>();
+        tags.add(new Tag("name", "Fish & Chips <\"The 'Plaice'\">"));
+        tags.add(new Tag("note", "line one\nline two"));
+        tags.add(new Tag("name:zh", "\u5496\u5561\u9986"));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(1, 3, new Date(1300000000123L), new OsmUser(5,
+                "us&r"), 42, tags), 51.1234567, -0.0000001)));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(2, 1, new Date(0), OsmUser.NONE, 0), 51.5,
+                1)));
+        entities.add(new NodeContainer(new Node(new CommonEntityData(3, 1, new Date(-86400001L), OsmUser.NONE, 1),
+                51.25, 0.5)));
+
+        List<WayNode> wayNodes = new ArrayList<WayNode>();
+        wayNodes.add(new WayNode(1));
+        wayNodes.add(new WayNode(2));
+        wayNodes.add(new WayNode(99));
+        entities.add(new WayContainer(new Way(new CommonEntityData(10, 2, new Date(1300000000000L), new OsmUser(5,
+                "u"), 7, tags), wayNodes)));
+        entities.add(new WayContainer(new Way(new CommonEntityData(11, 2, new Date(1300000000000L), OsmUser.NONE,
+                7), wayNodes)));
+
+        List<RelationMember> members = new ArrayList<RelationMember>();
+        members.add(new RelationMember(10, EntityType.Way, "outer"));
+        members.add(new RelationMember(1, EntityType.Node, ""));
+        members.add(new RelationMember(3, EntityType.Relation, "sub\"area"));
+        entities.add(new RelationContainer(new Relation(new CommonEntityData(20, 1, new Date(1300000000000L),
+                new OsmUser(5, "u"), 7, tags), members)));
+        return entities;
+    }
+
+    /**
+     * Writes elements to one sink as entities and to another as the columns
+     * they would be read from, and compares the two.
+     */
+    private void assertRowsMatchEntities(Filetype filetype, List<EntityContainer> entities) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        XapiSink entitySink = filetype.getSink(expected);
+        entitySink.setExtra("xapi:planetDate", "2013-01-01T00:00:00Z");
+        for (EntityContainer entity : entities) {
+            entitySink.process(entity);
+        }
+        entitySink.complete();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        XapiRowSink rowSink = (XapiRowSink) filetype.getSink(actual);
+        rowSink.setExtra("xapi:planetDate", "2013-01-01T00:00:00Z");
+        for (EntityContainer container : entities) {
+            Entity entity = container.getEntity();
+            long timestamp = entity.getTimestamp() == null ? 0 : entity.getTimestamp().getTime();
+            OsmUser user = entity.getUser();
+            if (entity instanceof Node) {
+                Node node = (Node) entity;
+                rowSink.processNode(node.getId(), node.getVersion(), timestamp, user.getId(), user.getName(), node
+                        .getChangesetId(), toMap(node.getTags()), node.getLatitude(), node.getLongitude());
+            } else if (entity instanceof Way) {
+                Way way = (Way) entity;
+                long[] nodeIds = new long[way.getWayNodes().size()];
+                for (int i = 0; i < nodeIds.length; i++) {
+                    nodeIds[i] = way.getWayNodes().get(i).getNodeId();
+                }
+                rowSink.processWay(way.getId(), way.getVersion(), timestamp, user.getId(), user.getName(), way
+                        .getChangesetId(), toMap(way.getTags()), nodeIds, nodeIds.length);
+            } else if (entity instanceof Relation) {
+                Relation relation = (Relation) entity;
+                int count = relation.getMembers().size();
+                long[] memberIds = new long[count];
+                EntityType[] memberTypes = new EntityType[count];
+                String[] memberRoles = new String[count];
+                for (int i = 0; i < count; i++) {
+                    RelationMember member = relation.getMembers().get(i);
+                    memberIds[i] = member.getMemberId();
+                    memberTypes[i] = member.getMemberType();
+                    memberRoles[i] = member.getMemberRole();
+                }
+                rowSink.processRelation(relation.getId(), relation.getVersion(), timestamp, user.getId(), user
+                        .getName(), relation.getChangesetId(), toMap(relation.getTags()), memberIds, memberTypes,
+                        memberRoles, count);
+            } else {
+                rowSink.process(container);
+            }
+        }
+        rowSink.complete();
+
+        Assert.assertEquals(actual.toString("UTF-8"), expected.toString("UTF-8"));
+    }
+
+    private static Map<String, String> toMap(Collection<Tag> tags) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (Tag tag : tags) {
+            map.put(tag.getKey(), tag.getValue());
+        }
+        return map;
+    }
+}